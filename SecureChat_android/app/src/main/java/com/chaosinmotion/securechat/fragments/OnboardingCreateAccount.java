@@ -144,6 +144,7 @@ public class OnboardingCreateAccount extends Fragment implements WizardFragment
 			json.put("password", creds.getPassword());
 			json.put("deviceid", SCRSAManager.shared().getDeviceUUID());
 			json.put("pubkey", SCRSAManager.shared().getPublicKey());
+			json.put("envelopes", true);
 
 			SCNetwork.get().request("login/createaccount", json, this, new SCNetwork.ResponseInterface()
 			{
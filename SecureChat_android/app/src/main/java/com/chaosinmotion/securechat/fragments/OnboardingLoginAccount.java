@@ -158,6 +158,7 @@ public class OnboardingLoginAccount extends Fragment implements WizardFragment
 						JSONObject d = new JSONObject();
 						d.put("deviceid",SCRSAManager.shared().getDeviceUUID());
 						d.put("pubkey",SCRSAManager.shared().getPublicKey());
+						d.put("envelopes",true);
 
 						SCNetwork.get().request("device/adddevice", d, this, new SCNetwork.ResponseInterface()
 						{
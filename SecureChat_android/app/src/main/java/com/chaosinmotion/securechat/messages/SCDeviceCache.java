@@ -38,12 +38,14 @@ public class SCDeviceCache
 	{
 		private String deviceid;
 		private String pubkeytext;
+		private boolean envelopes;
 		public SCRSAEncoder publickey;
 
-		private Device(String devID, String pubKey)
+		private Device(String devID, String pubKey, boolean env)
 		{
 			deviceid = devID;
 			pubkeytext = pubKey;
+			envelopes = env;
 			publickey = new SCRSAEncoder(pubKey);
 		}
 
@@ -61,6 +63,16 @@ public class SCDeviceCache
 		{
 			return publickey;
 		}
+
+		/**
+		 *	True if this device can read version 2 envelopes (SCEnvelope).
+		 *	Devices which do not say so, such as the iOS client, are sent
+		 *	messages encrypted entirely with RSA.
+		 */
+		public boolean getEnvelopes()
+		{
+			return envelopes;
+		}
 	}
 
 	private static class DeviceCacheEntry
@@ -119,8 +131,9 @@ public class SCDeviceCache
 						JSONObject obj = array.optJSONObject(i);
 						String deviceid = obj.optString("deviceid");
 						String publickeytext = obj.optString("publickey");
+						boolean envelopes = obj.optBoolean("envelopes");
 
-						Device dev = new Device(deviceid,publickeytext);
+						Device dev = new Device(deviceid,publickeytext,envelopes);
 						devices.add(dev);
 					}
 
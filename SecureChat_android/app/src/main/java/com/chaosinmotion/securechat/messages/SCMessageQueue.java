@@ -25,6 +25,7 @@ import android.util.Log;
 import com.chaosinmotion.securechat.encapsulation.SCMessageObject;
 import com.chaosinmotion.securechat.network.SCNetwork;
 import com.chaosinmotion.securechat.network.SCNetworkCredentials;
+import com.chaosinmotion.securechat.rsa.SCEnvelope;
 import com.chaosinmotion.securechat.rsa.SCRSAEncoder;
 import com.chaosinmotion.securechat.rsa.SCRSAManager;
 import com.chaosinmotion.securechat.rsa.SCSHA256;
@@ -93,6 +94,11 @@ public class SCMessageQueue
 
 	private static final long POLLRATE = 5000;      // 5 seconds in ms
 
+	// Messages at least this large are sent as a version 2 envelope, so
+	// the message is only encrypted and uploaded once. (See SCEnvelope.)
+	// Envelopes only go to devices which say they can read them.
+	private static final int ENVELOPESIZE = 1024;
+
 	/************************************************************************/
 	/*																		*/
 	/*	Fields          													*/
@@ -724,6 +730,28 @@ public class SCMessageQueue
 	/*																		*/
 	/************************************************************************/
 
+	/**
+	 *	Encode the message for one device into the message record, returning
+	 *	the bytes stored in the "message" field. If we have an envelope only
+	 *	the envelope header is stored; the device's message is that header
+	 *	followed by payload 0. Pass a null envelope for devices which cannot
+	 *	read envelopes.
+	 */
+	private static byte[] encodeMessage(JSONObject ds, byte[] cdata, SCEnvelope envelope,
+	                                    SCRSAEncoder encoder)
+			throws NoSuchAlgorithmException, IOException, JSONException
+	{
+		byte[] encoded;
+		if (envelope == null) {
+			encoded = encoder.encodeData(cdata);
+		} else {
+			encoded = envelope.getHeader(encoder);
+			ds.put("payload",0);
+		}
+		ds.put("message",Base64.encodeToString(encoded,Base64.DEFAULT));
+		return encoded;
+	}
+
 	private void encodeMessages(byte[] cdata, final String sender, final int senderID,
 	                            List<SCDeviceCache.Device> sarray,
 	                            List<SCDeviceCache.Device> marray,
@@ -735,6 +763,24 @@ public class SCMessageQueue
 
 		String checksum = SCSHA256.sha256(cdata);
 
+		/*
+		 *  Large messages are encrypted once with a content key, and only
+		 *  the content key is encrypted for each device which can read
+		 *  envelopes. Other devices get the whole message encrypted with
+		 *  RSA.
+		 */
+
+		SCEnvelope envelope = null;
+		if (cdata.length >= ENVELOPESIZE) {
+			try {
+				envelope = new SCEnvelope(cdata);
+			}
+			catch (NoSuchAlgorithmException e) {
+				Log.d("SecureChat","Exception",e);
+				// Should not happen; fall back to encrypting with RSA
+			}
+		}
+
 		/*
 		 *  Build the encoding list to encode all sent messages.
 		 */
@@ -744,13 +790,10 @@ public class SCMessageQueue
 		// Devices we're sending to
 		for (SCDeviceCache.Device d: sarray) {
 			SCRSAEncoder encoder = d.getPublicKey();
-			byte[] encoded = new byte[0];
 			try {
-				encoded = encoder.encodeData(cdata);
-				String message = Base64.encodeToString(encoded,Base64.DEFAULT);
 				JSONObject ds = new JSONObject();
 				ds.put("checksum",checksum);
-				ds.put("message",message);
+				encodeMessage(ds,cdata,d.getEnvelopes() ? envelope : null,encoder);
 				ds.put("deviceid",d.getDeviceID());
 				messages.put(ds);
 			} catch (Exception e) {
@@ -767,13 +810,10 @@ public class SCMessageQueue
 			}
 
 			SCRSAEncoder encoder = d.getPublicKey();
-			byte[] encoded = new byte[0];
 			try {
-				encoded = encoder.encodeData(cdata);
-				String message = Base64.encodeToString(encoded,Base64.DEFAULT);
 				JSONObject ds = new JSONObject();
 				ds.put("checksum",checksum);
-				ds.put("message",message);
+				encodeMessage(ds,cdata,d.getEnvelopes() ? envelope : null,encoder);
 				ds.put("deviceid",d.getDeviceID());
 				ds.put("destuser",senderID);
 				messages.put(ds);
@@ -790,14 +830,20 @@ public class SCMessageQueue
 		SCRSAEncoder encoder = new SCRSAEncoder(SCRSAManager.shared().getPublicKey());
 		byte[] encoded = new byte[0];
 		try {
-			encoded = encoder.encodeData(cdata);
-			String message = Base64.encodeToString(encoded,Base64.DEFAULT);
 			JSONObject ds = new JSONObject();
 			ds.put("checksum",checksum);
-			ds.put("message",message);
+			encoded = encodeMessage(ds,cdata,envelope,encoder);
 			ds.put("deviceid",SCRSAManager.shared().getDeviceUUID());
 			ds.put("destuser",senderID);
 			messages.put(ds);
+
+			if (envelope != null) {
+				byte[] payload = envelope.getPayload();
+				byte[] tmp = new byte[encoded.length + payload.length];
+				System.arraycopy(encoded,0,tmp,0,encoded.length);
+				System.arraycopy(payload,0,tmp,encoded.length,payload.length);
+				encoded = tmp;
+			}
 		} catch (Exception e) {
 			Log.d("SecureChat","Exception",e);
 			// Should not happen; only if there is a constant error above
@@ -810,6 +856,11 @@ public class SCMessageQueue
 		JSONObject params = new JSONObject();
 		try {
 			params.put("messages",messages);
+			if (envelope != null) {
+				JSONArray payloads = new JSONArray();
+				payloads.put(Base64.encodeToString(envelope.getPayload(),Base64.DEFAULT));
+				params.put("payloads",payloads);
+			}
 		}
 		catch (JSONException ex) {
 			// Should never happen
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2016. William Edward Woody
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+
+package com.chaosinmotion.securechat.rsa;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Version 2 message envelope. Rather than encrypting the whole message
+ * with RSA once for each device, the message is encrypted once with
+ * Blowfish using a random content key, and only the content key (along
+ * with the SHA-256 hash of the message) is encrypted with each device's
+ * public key. The envelope for a device is:
+ * <p/>
+ * byte[4]      0x53 0x43 0x45 0x02
+ * int          wrapped key length
+ * byte[]       content key and hash, encrypted with SCRSAEncoder
+ * byte[]       payload
+ * <p/>
+ * The payload is the same for every device, so it only needs to be sent
+ * to the server once. It is encrypted in CBC mode; the first block is
+ * random, followed by the length of the message, the message, and zero
+ * padding to a whole number of blocks.
+ */
+public class SCEnvelope
+{
+	private static final byte[] MAGIC = { 0x53, 0x43, 0x45, 0x02 };
+	private static final int KEYSIZE = 32;
+	private static final int HASHSIZE = 32;
+	private static final int BLOCKSIZE = 8;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private byte[] keyData;
+	private byte[] payload;
+
+	/**
+	 * Create a new envelope for the message, generating a new content key
+	 * and encrypting the payload.
+	 * @param data The message to encrypt
+	 */
+	public SCEnvelope(byte[] data) throws NoSuchAlgorithmException
+	{
+		keyData = new byte[KEYSIZE + HASHSIZE];
+		byte[] key = new byte[KEYSIZE];
+		random.nextBytes(key);
+		System.arraycopy(key, 0, keyData, 0, KEYSIZE);
+
+		MessageDigest d = MessageDigest.getInstance("SHA-256");
+		System.arraycopy(d.digest(data), 0, keyData, KEYSIZE, HASHSIZE);
+
+		int len = BLOCKSIZE + 4 + data.length;
+		len = ((len + BLOCKSIZE - 1) / BLOCKSIZE) * BLOCKSIZE;
+		payload = new byte[len];
+
+		byte[] iv = new byte[BLOCKSIZE];
+		random.nextBytes(iv);
+		System.arraycopy(iv, 0, payload, 0, BLOCKSIZE);
+		writeInt(payload, BLOCKSIZE, data.length);
+		System.arraycopy(data, 0, payload, BLOCKSIZE + 4, data.length);
+
+		new SCBlowfish(key).encryptData(payload);
+	}
+
+	/**
+	 * The encrypted payload, which is shared by all devices
+	 * @return
+	 */
+	public byte[] getPayload()
+	{
+		return payload;
+	}
+
+	/**
+	 * Return the envelope header for the device with the public key given.
+	 * The device's message is this header followed by the payload.
+	 * @param encoder The device's public key
+	 * @return
+	 */
+	public byte[] getHeader(SCRSAEncoder encoder)
+	{
+		int wrapped = encoder.getEncodedSize(keyData.length);
+		byte[] header = new byte[MAGIC.length + 4 + wrapped];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		writeInt(header, MAGIC.length, wrapped);
+		encoder.encodeData(keyData, header, MAGIC.length + 4);
+		return header;
+	}
+
+	/**
+	 * Return the full envelope for the device with the public key given.
+	 * @param encoder The device's public key
+	 * @return
+	 */
+	public byte[] getEnvelope(SCRSAEncoder encoder)
+	{
+		byte[] header = getHeader(encoder);
+		byte[] ret = new byte[header.length + payload.length];
+		System.arraycopy(header, 0, ret, 0, header.length);
+		System.arraycopy(payload, 0, ret, header.length, payload.length);
+		return ret;
+	}
+
+	/**
+	 * Returns true if the data looks like a version 2 envelope. Older
+	 * messages are a sequence of RSA blocks, so this may very rarely give
+	 * a false positive; decode returns null in that case.
+	 * @param data
+	 * @return
+	 */
+	public static boolean isEnvelope(byte[] data)
+	{
+		if (data.length < MAGIC.length + 4) return false;
+		for (int i = 0; i < MAGIC.length; ++i) {
+			if (data[i] != MAGIC[i]) return false;
+		}
+
+		int wrapped = readInt(data, MAGIC.length);
+		int rest = data.length - MAGIC.length - 4 - wrapped;
+		return (wrapped > 0) && (rest >= 2 * BLOCKSIZE) && (rest % BLOCKSIZE == 0);
+	}
+
+	/**
+	 * Decode a version 2 envelope with the private key given.
+	 * @param privateRSAKey The private key
+	 * @param data The envelope
+	 * @return The decoded message, or null if this is not a valid envelope
+	 * for this key.
+	 */
+	public static byte[] decode(SCRSAKey privateRSAKey, byte[] data)
+	{
+		if (!isEnvelope(data)) return null;
+
+		/*
+		 *  Unwrap the content key
+		 */
+
+		int wrapped = readInt(data, MAGIC.length);
+		int start = MAGIC.length + 4;
+		byte[] keyData = SCRSAManager.decodeBlocks(privateRSAKey,
+				Arrays.copyOfRange(data, start, start + wrapped));
+		if ((keyData == null) || (keyData.length != KEYSIZE + HASHSIZE)) return null;
+
+		/*
+		 *  Decrypt the payload
+		 */
+
+		byte[] payload = Arrays.copyOfRange(data, start + wrapped, data.length);
+		new SCBlowfish(Arrays.copyOf(keyData, KEYSIZE)).decryptData(payload);
+
+		int len = readInt(payload, BLOCKSIZE);
+		if ((len < 0) || (len > payload.length - BLOCKSIZE - 4)) return null;
+		byte[] ret = Arrays.copyOfRange(payload, BLOCKSIZE + 4, BLOCKSIZE + 4 + len);
+
+		/*
+		 *  Verify the hash, so a damaged or substituted payload is rejected
+		 */
+
+		try {
+			MessageDigest d = MessageDigest.getInstance("SHA-256");
+			byte[] hash = d.digest(ret);
+			if (!MessageDigest.isEqual(hash, Arrays.copyOfRange(keyData, KEYSIZE, KEYSIZE + HASHSIZE))) {
+				return null;
+			}
+		}
+		catch (NoSuchAlgorithmException e) {
+			return null;    // never happens
+		}
+
+		return ret;
+	}
+
+	private static int readInt(byte[] data, int offset)
+	{
+		int n = 0;
+		for (int i = 0; i < 4; ++i) {
+			n = (n << 8) | (0x00FF & data[i+offset]);
+		}
+		return n;
+	}
+
+	private static void writeInt(byte[] data, int offset, int word)
+	{
+		data[offset] = (byte)(word >> 24);
+		data[offset+1] = (byte)(word >> 16);
+		data[offset+2] = (byte)(word >> 8);
+		data[offset+3] = (byte)(word);
+	}
+}
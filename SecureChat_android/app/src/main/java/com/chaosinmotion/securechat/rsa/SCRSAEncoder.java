@@ -15,32 +15,48 @@
  * with this program. If not, see <http://www.gnu.org/licenses/>
  *
  */
-
 package com.chaosinmotion.securechat.rsa;
 
-import android.util.Log;
-
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 /**
  * Encoder utility. Takes a public key and encrypts the data. Unlike the
  * C++ counterpart, this operates synchronously.
+ *
+ * The data is prefixed with its length, broken into blocks of the padding's
+ * message size (the last block padded with zeros), and each block is padded
+ * and encrypted into a block of the padding's encode size, written directly
+ * into the output array.
+ *
  * @author woody
  *
  */
 public class SCRSAEncoder
 {
 	private SCRSAKey publicRSAKey;
+	private SCRSAPadding padding;
 	
 	public SCRSAEncoder(String publicKey)
 	{
 		publicRSAKey = new SCRSAKey(publicKey);
+		padding = new SCRSAPadding(publicRSAKey.getSize());
 	}
-	
+
+	/**
+	 * Return the number of bytes encodeData will write for data of the given
+	 * length. This is a multiple of the padding's encode size.
+	 * @param length
+	 * @return
+	 */
+	public int getEncodedSize(int length)
+	{
+		int msgSize = padding.getMessageSize();
+		int blocks = (length + 4 + msgSize - 1) / msgSize;
+		return blocks * padding.getEncodeSize();
+	}
+
 	/**
 	 * Encode data using the public key provided when this was initialized
 	 * @param data
@@ -50,106 +66,105 @@ public class SCRSAEncoder
 	 */
 	public byte[] encodeData(byte[] data) throws NoSuchAlgorithmException, IOException
 	{
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		
-		/*
-		 * Perform encryption process. First set up internal buffers
-		 */
-		
-		SCRSAPadding padding = new SCRSAPadding(publicRSAKey.getSize());
+		byte[] out = new byte[getEncodedSize(data.length)];
+		encodeData(data, out, 0);
+		return out;
+	}
+
+	/**
+	 * Encode data into the array provided, which must have room for
+	 * getEncodedSize(data.length) bytes at the offset given.
+	 * @param data
+	 * @param out
+	 * @param off
+	 * @return The number of bytes written
+	 */
+	public int encodeData(byte[] data, byte[] out, int off)
+	{
+		int size = getEncodedSize(data.length);
+		if (off + size > out.length) throw new IndexOutOfBoundsException();
+
 		int msgSize = padding.getMessageSize();
 		int encSize = padding.getEncodeSize();
 		byte[] msgBuffer = new byte[msgSize];
 		byte[] encBuffer = new byte[encSize];
-		
+
+		int blocks = size / encSize;
+		for (int i = 0; i < blocks; ++i) {
+			fillBlock(data, i * msgSize, msgBuffer);
+			encodeBlock(msgBuffer, encBuffer, out, off + i * encSize);
+		}
+		return size;
+	}
+
+	/**
+	 * Fill a message block from the data stream, which is the 4 byte
+	 * length of the data followed by the data, followed by zeros.
+	 * @param data
+	 * @param pos The position of the block in the stream
+	 * @param msgBuffer
+	 */
+	private static void fillBlock(byte[] data, int pos, byte[] msgBuffer)
+	{
 		int len = data.length;
 		int msgPos = 0;
-		int dataPos = 0;
-		
-		/*
-		 * Prepend 4 bytes for length. Assumes message size is bigger than
-		 * 4 bytes
-		 */
-
-		msgBuffer[msgPos++] = (byte)(len >> 24);
-		msgBuffer[msgPos++] = (byte)(len >> 16);
-		msgBuffer[msgPos++] = (byte)(len >> 8);
-		msgBuffer[msgPos++] = (byte)(len);
+		int msgSize = msgBuffer.length;
 
 		/*
-		 *	Now run the rest of the data through
+		 * Length prefix. Assumes message size is bigger than 4 bytes.
 		 */
 
-		while (dataPos < len) {
-			msgBuffer[msgPos++] = data[dataPos++];
-			if (msgPos >= padding.getMessageSize()) {
-				msgPos = 0;
-
-				/*
-				 *	Encode the buffer and encrypt it
-				 */
-
-				padding.encode(msgBuffer, encBuffer);
-				
-				/*
-				 * 	Convert to an integer and transform
-				 */
-				BigInteger bi = new BigInteger(1,encBuffer);
-				BigInteger ei = publicRSAKey.transform(bi);
-
-				byte[] enc = ei.toByteArray();
-				Arrays.fill(encBuffer, (byte)0);
-
-				/* Align to the back of encBuffer. If large. backs align. */
-				int srcStart = 0;
-				int dstStart = encSize - enc.length;
-				int length = enc.length;
-				if (dstStart < 0) {
-					srcStart -= dstStart;
-					length += dstStart;
-					dstStart = 0;
-				}
-				System.arraycopy(enc, srcStart, encBuffer, dstStart, length);
-				
-				baos.write(encBuffer);
-			}
+		if (pos == 0) {
+			msgBuffer[msgPos++] = (byte)(len >> 24);
+			msgBuffer[msgPos++] = (byte)(len >> 16);
+			msgBuffer[msgPos++] = (byte)(len >> 8);
+			msgBuffer[msgPos++] = (byte)(len);
 		}
 
-		if (msgPos > 0) {
-			// zero tail of buffer
-			for (int p = msgPos; p < msgSize; ++p) msgBuffer[p] = 0;
-
-			/*
-			 *	Encode the buffer and encrypt it
-			 */
-
-			padding.encode(msgBuffer, encBuffer);
-
-			BigInteger bi = new BigInteger(1,encBuffer);
-			BigInteger ei = publicRSAKey.transform(bi);
+		int dataPos = pos + msgPos - 4;
+		int n = Math.max(0, Math.min(msgSize - msgPos, len - dataPos));
+		if (n > 0) {
+			System.arraycopy(data, dataPos, msgBuffer, msgPos, n);
+			msgPos += n;
+		}
 
-			byte[] enc = ei.toByteArray();
-			Arrays.fill(encBuffer, (byte)0);
+		// zero tail of buffer
+		for (int p = msgPos; p < msgSize; ++p) msgBuffer[p] = 0;
+	}
 
-			/* Align to the back of encBuffer. If large. backs align. */
-			int srcStart = 0;
-			int dstStart = encSize - enc.length;
-			int length = enc.length;
-			if (dstStart < 0) {
-				srcStart -= dstStart;
-				length += dstStart;
-				dstStart = 0;
-			}
-			System.arraycopy(enc, srcStart, encBuffer, dstStart, length);
+	/**
+	 * Pad and encrypt a single block. The message block must be the
+	 * padding's message size, and the scratch buffer its encode size. The
+	 * encrypted block is written at the offset given, right aligned and
+	 * zero filled, as a big-endian integer of the padding's encode size.
+	 * @param msgBuffer
+	 * @param encBuffer
+	 * @param out
+	 * @param off
+	 */
+	public void encodeBlock(byte[] msgBuffer, byte[] encBuffer, byte[] out, int off)
+	{
+		int encSize = encBuffer.length;
 
-			baos.write(encBuffer);
-		}
+		padding.encode(msgBuffer, encBuffer);
 
 		/*
-		 *	Completed encryption process. Free scratch buffers and return
-		 *	our built data
+		 * 	Convert to an integer and transform. The result is less than
+		 * 	the modulus, but toByteArray may add a leading sign byte or
+		 * 	return fewer bytes than the block.
 		 */
-
-		return baos.toByteArray();
+		BigInteger bi = new BigInteger(1,encBuffer);
+		BigInteger ei = publicRSAKey.transform(bi);
+		byte[] enc = ei.toByteArray();
+
+		int srcStart = 0;
+		int length = enc.length;
+		if (length > encSize) {
+			srcStart = length - encSize;
+			length = encSize;
+		}
+		int pad = encSize - length;
+		for (int p = 0; p < pad; ++p) out[off + p] = 0;
+		System.arraycopy(enc, srcStart, out, off + pad, length);
 	}
 }
@@ -71,6 +71,8 @@ public class SCRSAGenerator
 		BigInteger e;
 		BigInteger d;
 		BigInteger n;
+		BigInteger p;
+		BigInteger q;
 
 		boolean success;
 
@@ -83,8 +85,8 @@ public class SCRSAGenerator
 
 		do {
 			// Generate primes
-			BigInteger p = BigInteger.probablePrime(nbits/2,random);
-			BigInteger q = BigInteger.probablePrime(nbits/2,random);
+			p = BigInteger.probablePrime(nbits/2,random);
+			q = BigInteger.probablePrime(nbits/2,random);
 
 			n = p.multiply(q);
 
@@ -126,9 +128,10 @@ public class SCRSAGenerator
 			success = i >= 5;
 		} while (!success);
 
-		// Copy the resulting keys e,n and d,n
+		// Copy the resulting keys e,n and d,n. The private key keeps p and q
+		// so it can decrypt using the Chinese Remainder Theorem.
 		SCRSAKey pubKey = new SCRSAKey(nbits,e,n);
-		SCRSAKey privKey = new SCRSAKey(nbits,d,n);
+		SCRSAKey privKey = new SCRSAKey(nbits,d,n,p,q);
 		return new Pair(pubKey,privKey);
 	}
 }
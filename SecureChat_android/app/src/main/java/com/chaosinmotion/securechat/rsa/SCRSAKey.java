@@ -19,9 +19,17 @@
 package com.chaosinmotion.securechat.rsa;
 
 import java.math.BigInteger;
+import java.security.SecureRandom;
 
 /**
  * SCRSAKey encodes a custom RSA key
+ *
+ * A private key may also carry the primes p and q of the modulus, in which
+ * case it is written as (exp,size,mod,p,q), and transform() uses the
+ * Chinese Remainder Theorem: two exponentiations with half sized numbers
+ * rather than one with the full modulus, which is about four times faster.
+ * Older code reading the key ignores the extra values.
+ *
  * @author woody
  *
  */
@@ -30,10 +38,19 @@ public class SCRSAKey
 	private BigInteger e;
 	private BigInteger m;
 	private int n;
+
+	/*
+	 *	CRT values. Null if we don't know the factors of the modulus.
+	 */
+	private BigInteger p;
+	private BigInteger q;
+	private BigInteger dP;
+	private BigInteger dQ;
+	private BigInteger qInv;
 	
 	/**
-	 * Decode an RSA key pair (exp,size,mod) and convert into internal
-	 * storage
+	 * Decode an RSA key pair (exp,size,mod) or (exp,size,mod,p,q) and 
+	 * convert into internal storage
 	 * @param str
 	 */
 	public SCRSAKey(String str)
@@ -42,6 +59,9 @@ public class SCRSAKey
 		e = new BigInteger(split[0]);
 		n = Integer.parseInt(split[1]);
 		m = new BigInteger(split[2]);
+		if (split.length >= 5) {
+			setFactors(new BigInteger(split[3]), new BigInteger(split[4]));
+		}
 	}
 
 	/**
@@ -57,9 +77,103 @@ public class SCRSAKey
 		e = eval;
 		m = mval;
 	}
+
+	/**
+	 * Generate a private RSA key from the private exponent, the modulus
+	 * and the two primes which make up the modulus.
+	 * @param nbits
+	 * @param dval
+	 * @param mval
+	 * @param pval
+	 * @param qval
+	 */
+	public SCRSAKey(int nbits, BigInteger dval, BigInteger mval, BigInteger pval, BigInteger qval)
+	{
+		n = nbits;
+		e = dval;
+		m = mval;
+		setFactors(pval, qval);
+	}
+
+	/**
+	 * Precalculate the CRT values for the primes p and q
+	 * @param pval
+	 * @param qval
+	 */
+	private void setFactors(BigInteger pval, BigInteger qval)
+	{
+		BigInteger one = BigInteger.ONE;
+
+		p = pval;
+		q = qval;
+		dP = e.mod(p.subtract(one));
+		dQ = e.mod(q.subtract(one));
+		qInv = q.modInverse(p);
+	}
+
+	/**
+	 * Given the public exponent that goes with this private key, recover
+	 * the primes p and q from the modulus, returning a key which uses them.
+	 * This upgrades keys stored before we kept the primes. If we can't 
+	 * factor the modulus (which should not happen), this returns this key.
+	 * @param pub The public exponent
+	 * @return
+	 */
+	public SCRSAKey withFactors(BigInteger pub)
+	{
+		if (p != null) return this;
+
+		/*
+		 *	e * d - 1 is a multiple of phi(n). Write it as 2^t * r with r
+		 *	odd. For a random g, the sequence g^r, g^2r, ... reaches 1
+		 *	mod n; the value before it is usually a square root of 1 other 
+		 *	than -1, and y - 1 then shares a factor with n.
+		 */
+
+		BigInteger one = BigInteger.ONE;
+		BigInteger nm1 = m.subtract(one);
+		BigInteger k = e.multiply(pub).subtract(one);
+		if (k.signum() <= 0) return this;
+		int t = k.getLowestSetBit();
+		BigInteger r = k.shiftRight(t);
+
+		SecureRandom random = new SecureRandom();
+		for (int tries = 0; tries < 100; ++tries) {
+			BigInteger g = new BigInteger(m.bitLength() - 1, random);
+			if (g.compareTo(one) <= 0) continue;
+
+			BigInteger y = g.modPow(r, m);
+			if (y.equals(one) || y.equals(nm1)) continue;
+
+			for (int i = 0; i < t; ++i) {
+				BigInteger x = y.multiply(y).mod(m);
+				if (x.equals(one)) {
+					BigInteger f = y.subtract(one).gcd(m);
+					if (f.equals(one) || f.equals(m)) break;
+					return new SCRSAKey(n, e, m, f, m.divide(f));
+				}
+				if (x.equals(nm1)) break;
+				y = x;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Returns true if this key knows the primes of its modulus and so
+	 * transforms using the Chinese Remainder Theorem
+	 * @return
+	 */
+	public boolean hasFactors()
+	{
+		return p != null;
+	}
 	
 	public String toString()
 	{
+		if (p != null) {
+			return e.toString() + "," + n + "," + m.toString() + "," + p.toString() + "," + q.toString();
+		}
 		return e.toString() + "," + n + "," + m.toString();
 	}
 	
@@ -80,6 +194,16 @@ public class SCRSAKey
 	
 	public BigInteger transform(BigInteger v)
 	{
-		return v.modPow(e, m);
+		if (p == null) return v.modPow(e, m);
+
+		/*
+		 *	m1 = v^dP mod p, m2 = v^dQ mod q, h = qInv * (m1 - m2) mod p,
+		 *	and the result is m2 + h * q
+		 */
+
+		BigInteger m1 = v.mod(p).modPow(dP, p);
+		BigInteger m2 = v.mod(q).modPow(dQ, q);
+		BigInteger h = qInv.multiply(m1.subtract(m2)).mod(p);
+		return m2.add(h.multiply(q));
 	}
 }
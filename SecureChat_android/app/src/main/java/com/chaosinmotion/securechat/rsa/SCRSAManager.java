@@ -97,6 +97,24 @@ public class SCRSAManager
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Load the private key from the secure store. Keys stored before we
+	 * kept the primes of the modulus are upgraded by recovering the primes
+	 * from the public and private exponents; the caller writes the store
+	 * back, so this only happens once.
+	 * @param sdata The secure store
+	 * @return The private key
+	 */
+	private static SCRSAKey loadPrivateKey(SCSecureData sdata)
+	{
+		SCRSAKey key = new SCRSAKey(sdata.privateKey);
+		if (!key.hasFactors() && (sdata.publicKey.length() > 0)) {
+			SCRSAKey pub = new SCRSAKey(sdata.publicKey);
+			key = key.withFactors(pub.getExponent());
+		}
+		return key;
+	}
+
 	/************************************************************************/
 	/*																		*/
 	/*	Access          													*/
@@ -183,7 +201,7 @@ public class SCRSAManager
 			 */
 
 			publicRSAKey = sdata.publicKey;
-			privateRSAKey = new SCRSAKey(sdata.privateKey);
+			privateRSAKey = loadPrivateKey(sdata);
 			deviceIdentifier = sdata.uuid;
 			server = sdata.serverURL;
 			username = sdata.username;
@@ -271,7 +289,7 @@ public class SCRSAManager
 		 */
 
 		publicRSAKey = sdata.publicKey;
-		privateRSAKey = new SCRSAKey(sdata.privateKey);
+		privateRSAKey = loadPrivateKey(sdata);
 		deviceIdentifier = sdata.uuid;
 		server = sdata.serverURL;
 		username = sdata.username;
@@ -316,10 +334,40 @@ public class SCRSAManager
 	 */
 	public byte[] decodeData(byte[] data)
 	{
-		if (privateRSAKey == null) {
+		SCRSAKey key = privateRSAKey;
+		if (key == null) {
 			return null;
 		}
+		return decodeData(key, data);
+	}
+
+	/**
+	 * Decode data with the private key given. This handles both version 2
+	 * envelopes (see SCEnvelope) and older messages which were encrypted
+	 * entirely with RSA.
+	 * @param privateRSAKey The private key
+	 * @param data The encoded data block
+	 * @return The decoded data, or null if there was a problem.
+	 */
+	public static byte[] decodeData(SCRSAKey privateRSAKey, byte[] data)
+	{
+		if (SCEnvelope.isEnvelope(data)) {
+			byte[] ret = SCEnvelope.decode(privateRSAKey, data);
+			if (ret != null) return ret;
+		}
+		return decodeBlocks(privateRSAKey, data);
+	}
 
+	/**
+	 * Decode data encrypted with SCRSAEncoder. If the key knows the primes
+	 * of its modulus, each block is decrypted using the Chinese Remainder
+	 * Theorem.
+	 * @param privateRSAKey The private key
+	 * @param data The encoded data block
+	 * @return The decoded data, or null if there was a problem.
+	 */
+	static byte[] decodeBlocks(SCRSAKey privateRSAKey, byte[] data)
+	{
 		/*
 		 *  Perform decryption process. This preallocates a chunk of
 		 *  memory which is of the necessary size
@@ -30,6 +30,12 @@ import java.security.SecureRandom;
  */
 public class SCRSAPadding
 {
+	/*
+	 * SecureRandom is thread safe, and seeding a new one for each block
+	 * costs more than the rest of the padding put together.
+	 */
+	private static final SecureRandom random = new SecureRandom();
+
 	private int encSize;
 	private int msgSize;
 
@@ -82,9 +88,8 @@ public class SCRSAPadding
 		 * Step 3: add random data
 		 */
 		
-		SecureRandom sr = new SecureRandom();
 		byte[] rbuf = new byte[msgOffset-1];
-		sr.nextBytes(rbuf);
+		random.nextBytes(rbuf);
 		System.arraycopy(rbuf, 0, enc, 0, rbuf.length);
 		enc[0] &= 0x3F;				// zero out top bits
 		
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016. William Edward Woody
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+
+package com.chaosinmotion.securechat;
+
+import com.chaosinmotion.securechat.rsa.SCEnvelope;
+import com.chaosinmotion.securechat.rsa.SCRSAEncoder;
+import com.chaosinmotion.securechat.rsa.SCRSAGenerator;
+import com.chaosinmotion.securechat.rsa.SCRSAKey;
+import com.chaosinmotion.securechat.rsa.SCRSAManager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies version 2 envelopes decode, that older messages encrypted with
+ * RSA alone still decode, and that a damaged payload is rejected. Then
+ * compares the time and bytes needed to send a large message to several
+ * devices each way.
+ */
+public class EnvelopeUnitTest
+{
+	private static final int DEVICES = 10;
+
+	@Test
+	public void testEnvelope() throws Exception
+	{
+		Random r = new Random(1);
+		SCRSAGenerator.Pair pair = SCRSAGenerator.generateKeyPair(1024);
+		SCRSAKey key = pair.getPrivateKey();
+		SCRSAEncoder encoder = new SCRSAEncoder(pair.getPublicKey().toString());
+
+		for (int i = 0; i < 20; ++i) {
+			byte[] data = new byte[r.nextInt(5000)];
+			r.nextBytes(data);
+
+			SCEnvelope envelope = new SCEnvelope(data);
+			byte[] env = envelope.getEnvelope(encoder);
+			assertTrue(SCEnvelope.isEnvelope(env));
+			assertTrue(Arrays.equals(data, SCRSAManager.decodeData(key, env)));
+
+			byte[] old = encoder.encodeData(data);
+			assertTrue(Arrays.equals(data, SCRSAManager.decodeData(key, old)));
+		}
+
+		// Damage the payload
+		byte[] data = new byte[2000];
+		r.nextBytes(data);
+		byte[] env = new SCEnvelope(data).getEnvelope(encoder);
+		env[env.length - 100] ^= 1;
+		assertNull(SCEnvelope.decode(key, env));
+
+		// Another device's key can't open it
+		SCRSAKey other = SCRSAGenerator.generateKeyPair(1024).getPrivateKey();
+		env = new SCEnvelope(data).getEnvelope(encoder);
+		assertNull(SCEnvelope.decode(other, env));
+		assertFalse(Arrays.equals(data, SCRSAManager.decodeData(other, env)));
+	}
+
+	@Test
+	public void testEnvelopeBenchmark() throws Exception
+	{
+		Random r = new Random(2);
+		SCRSAEncoder[] encoders = new SCRSAEncoder[DEVICES];
+		for (int i = 0; i < DEVICES; ++i) {
+			encoders[i] = new SCRSAEncoder(SCRSAGenerator.generateKeyPair(1024).getPublicKey().toString());
+		}
+
+		byte[] data = new byte[200 * 1024];
+		r.nextBytes(data);
+
+		for (int pass = 0; pass < 2; ++pass) {
+			long t0 = System.nanoTime();
+			long rsaBytes = 0;
+			for (SCRSAEncoder e: encoders) {
+				rsaBytes += e.encodeData(data).length;
+			}
+			long t1 = System.nanoTime();
+			SCEnvelope envelope = new SCEnvelope(data);
+			long envBytes = envelope.getPayload().length;
+			for (SCRSAEncoder e: encoders) {
+				envBytes += envelope.getHeader(e).length;
+			}
+			long t2 = System.nanoTime();
+
+			if (pass == 0) continue;		// warm up
+
+			System.out.println(data.length + " byte message to " + DEVICES + " devices: RSA "
+					+ (t1 - t0) / 1000000 + " ms, " + rsaBytes + " bytes; envelope "
+					+ (t2 - t1) / 1000000 + " ms, " + envBytes + " bytes");
+		}
+	}
+}
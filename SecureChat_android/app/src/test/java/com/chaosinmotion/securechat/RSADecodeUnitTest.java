@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016. William Edward Woody
+ *
+ * This program is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program. If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+
+package com.chaosinmotion.securechat;
+
+import com.chaosinmotion.securechat.rsa.SCRSAEncoder;
+import com.chaosinmotion.securechat.rsa.SCRSAGenerator;
+import com.chaosinmotion.securechat.rsa.SCRSAKey;
+import com.chaosinmotion.securechat.rsa.SCRSAManager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies private key decryption using the Chinese Remainder Theorem
+ * against the plain decryption, the upgrade of keys stored without their
+ * primes, and compares the time taken by the two decode paths.
+ */
+public class RSADecodeUnitTest
+{
+	private static final int ITERATIONS = 20;
+
+	/**
+	 * The same private key without its primes, as stored by older versions
+	 */
+	private static SCRSAKey plainKey(SCRSAKey key)
+	{
+		return new SCRSAKey(key.getSize(), key.getExponent(), key.getModulus());
+	}
+
+	@Test
+	public void testCRTDecode() throws Exception
+	{
+		Random r = new Random(1);
+		SCRSAGenerator.Pair pair = SCRSAGenerator.generateKeyPair(1024);
+		SCRSAKey crt = pair.getPrivateKey();
+		SCRSAKey plain = plainKey(crt);
+		SCRSAEncoder encoder = new SCRSAEncoder(pair.getPublicKey().toString());
+
+		assertTrue(crt.hasFactors());
+		assertFalse(plain.hasFactors());
+
+		for (int i = 0; i < 20; ++i) {
+			byte[] data = new byte[r.nextInt(2000)];
+			r.nextBytes(data);
+			byte[] enc = encoder.encodeData(data);
+
+			assertTrue(Arrays.equals(data, SCRSAManager.decodeData(crt, enc)));
+			assertTrue(Arrays.equals(data, SCRSAManager.decodeData(plain, enc)));
+		}
+
+		// The key survives being written to and read from the secure store
+		SCRSAKey stored = new SCRSAKey(crt.toString());
+		assertTrue(stored.hasFactors());
+		assertTrue(stored.toString().equals(crt.toString()));
+	}
+
+	@Test
+	public void testKeyUpgrade()
+	{
+		SCRSAGenerator.Pair pair = SCRSAGenerator.generateKeyPair(1024);
+		SCRSAKey plain = plainKey(pair.getPrivateKey());
+
+		SCRSAKey upgraded = plain.withFactors(pair.getPublicKey().getExponent());
+		assertTrue(upgraded.hasFactors());
+		assertTrue(upgraded.getExponent().equals(plain.getExponent()));
+		assertTrue(upgraded.getModulus().equals(plain.getModulus()));
+	}
+
+	@Test
+	public void testDecodeBenchmark() throws Exception
+	{
+		Random r = new Random(2);
+		for (int bits: new int[] { 1024, 2048 }) {
+			SCRSAGenerator.Pair pair = SCRSAGenerator.generateKeyPair(bits);
+			SCRSAKey crt = pair.getPrivateKey();
+			SCRSAKey plain = plainKey(crt);
+			SCRSAEncoder encoder = new SCRSAEncoder(pair.getPublicKey().toString());
+
+			byte[] data = new byte[1024];
+			r.nextBytes(data);
+			byte[] enc = encoder.encodeData(data);
+
+			for (int pass = 0; pass < 2; ++pass) {
+				long t0 = System.nanoTime();
+				for (int i = 0; i < ITERATIONS; ++i) {
+					assertNotNull(SCRSAManager.decodeData(plain, enc));
+				}
+				long t1 = System.nanoTime();
+				for (int i = 0; i < ITERATIONS; ++i) {
+					assertNotNull(SCRSAManager.decodeData(crt, enc));
+				}
+				long t2 = System.nanoTime();
+
+				if (pass == 0) continue;		// warm up
+
+				System.out.println(bits + " bit key, " + data.length + " byte message: plain "
+						+ (t1 - t0) / (1000 * ITERATIONS) + " us, CRT "
+						+ (t2 - t1) / (1000 * ITERATIONS) + " us");
+			}
+		}
+	}
+}
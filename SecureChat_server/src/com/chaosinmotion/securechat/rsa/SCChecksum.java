@@ -60,6 +60,17 @@ public class SCChecksum
 		return crc;
 	}
 
+	/**
+	 * Add a single byte to a CRC8 checksum
+	 * @param crc
+	 * @param b
+	 * @return
+	 */
+	public static byte calcCRC8(byte crc, byte b)
+	{
+		return crc8Table[0xFF & (crc ^ b)];
+	}
+
 	public static byte calcCRC8(byte crc, byte[] buf)
 	{
 		for (byte b: buf) {
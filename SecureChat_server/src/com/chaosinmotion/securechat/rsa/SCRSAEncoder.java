@@ -19,25 +19,61 @@
 
 package com.chaosinmotion.securechat.rsa;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Encoder utility. Takes a public key and encrypts the data. Unlike the
  * C++ counterpart, this operates synchronously.
+ * 
+ * The data is prefixed with its length, broken into blocks of the padding's
+ * message size (the last block padded with zeros), and each block is padded 
+ * and encrypted into a block of the padding's encode size. The blocks are
+ * independent, so the encoded data can be written directly into an array
+ * supplied by the caller, and large payloads can be encrypted in parallel
+ * on the common fork-join pool.
+ * 
+ * An encoder holds no state other than the key, so it may be shared 
+ * between threads.
+ * 
  * @author woody
  *
  */
 public class SCRSAEncoder
 {
+	/*
+	 * The fewest blocks a parallel encode will hand to one task
+	 */
+	private static final int MINTASKBLOCKS = 4;
+	
 	private SCRSAKey publicRSAKey;
+	private SCRSAPadding padding;
 	
 	public SCRSAEncoder(String publicKey)
 	{
-		publicRSAKey = new SCRSAKey(publicKey);
+		this(new SCRSAKey(publicKey));
+	}
+	
+	public SCRSAEncoder(SCRSAKey publicKey)
+	{
+		publicRSAKey = publicKey;
+		padding = new SCRSAPadding(publicRSAKey.getSize());
+	}
+	
+	/**
+	 * Return the number of bytes encodeData will write for data of the given
+	 * length. This is a multiple of the padding's encode size.
+	 * @param length
+	 * @return
+	 */
+	public int getEncodedSize(int length)
+	{
+		int msgSize = padding.getMessageSize();
+		int blocks = (length + 4 + msgSize - 1) / msgSize;
+		return blocks * padding.getEncodeSize();
 	}
 	
 	/**
@@ -49,84 +85,185 @@ public class SCRSAEncoder
 	 */
 	public byte[] encodeData(byte[] data) throws NoSuchAlgorithmException, IOException
 	{
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] out = new byte[getEncodedSize(data.length)];
+		encodeData(data, out, 0, false);
+		return out;
+	}
+	
+	/**
+	 * Encode data into the array provided, which must have room for
+	 * getEncodedSize(data.length) bytes at the offset given. If parallel is
+	 * set and the data takes more than a few blocks, the blocks are encrypted
+	 * on the common fork-join pool.
+	 * @param data
+	 * @param out
+	 * @param off
+	 * @param parallel
+	 * @return The number of bytes written
+	 * @throws NoSuchAlgorithmException
+	 */
+	public int encodeData(final byte[] data, final byte[] out, final int off, boolean parallel) throws NoSuchAlgorithmException
+	{
+		int size = getEncodedSize(data.length);
+		if (off + size > out.length) throw new IndexOutOfBoundsException();
+		
+		int blocks = size / padding.getEncodeSize();
+		if (!parallel || (blocks < 2 * MINTASKBLOCKS)) {
+			encodeBlocks(data, 0, blocks, out, off);
+			return size;
+		}
 		
 		/*
-		 * Perform encryption process. First set up internal buffers
+		 * Split the blocks between tasks. Exceptions thrown by a task are
+		 * thrown again here.
 		 */
 		
-		SCRSAPadding padding = new SCRSAPadding(publicRSAKey.getSize());
+		try {
+			ForkJoinPool.commonPool().invoke(new EncodeTask(data, 0, blocks, out, off));
+		}
+		catch (RuntimeException ex) {
+			for (Throwable th = ex.getCause(); th != null; th = th.getCause()) {
+				if (th instanceof NoSuchAlgorithmException) {
+					throw (NoSuchAlgorithmException)th;
+				}
+			}
+			throw ex;
+		}
+		return size;
+	}
+	
+	/**
+	 * Encrypt a range of the blocks of a message on the fork-join pool
+	 */
+	private class EncodeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final byte[] data;
+		private final int start;
+		private final int end;
+		private final byte[] out;
+		private final int off;
+		
+		EncodeTask(byte[] data, int start, int end, byte[] out, int off)
+		{
+			this.data = data;
+			this.start = start;
+			this.end = end;
+			this.out = out;
+			this.off = off;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (end - start < 2 * MINTASKBLOCKS) {
+				try {
+					encodeBlocks(data, start, end, out, off);
+				}
+				catch (NoSuchAlgorithmException ex) {
+					throw new RuntimeException(ex);
+				}
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll(new EncodeTask(data, start, mid, out, off),
+						new EncodeTask(data, mid, end, out, off));
+			}
+		}
+	}
+	
+	/**
+	 * Encrypt the blocks from start up to (but not including) end, writing 
+	 * block i at off + i * encode size.
+	 * @param data
+	 * @param start
+	 * @param end
+	 * @param out
+	 * @param off
+	 * @throws NoSuchAlgorithmException
+	 */
+	private void encodeBlocks(byte[] data, int start, int end, byte[] out, int off) throws NoSuchAlgorithmException
+	{
 		int msgSize = padding.getMessageSize();
 		int encSize = padding.getEncodeSize();
 		byte[] msgBuffer = new byte[msgSize];
 		byte[] encBuffer = new byte[encSize];
 		
+		for (int i = start; i < end; ++i) {
+			fillBlock(data, i * msgSize, msgBuffer);
+			encodeBlock(msgBuffer, encBuffer, out, off + i * encSize);
+		}
+	}
+	
+	/**
+	 * Fill a message block from the data stream, which is the 4 byte
+	 * length of the data followed by the data, followed by zeros.
+	 * @param data
+	 * @param pos The position of the block in the stream
+	 * @param msgBuffer
+	 */
+	private static void fillBlock(byte[] data, int pos, byte[] msgBuffer)
+	{
 		int len = data.length;
 		int msgPos = 0;
-		int dataPos = 0;
+		int msgSize = msgBuffer.length;
 		
 		/*
-		 * Prepend 4 bytes for length. Assumes message size is bigger than
-		 * 4 bytes
-		 */
-
-		msgBuffer[msgPos++] = (byte)(len >> 24);
-		msgBuffer[msgPos++] = (byte)(len >> 16);
-		msgBuffer[msgPos++] = (byte)(len >> 8);
-		msgBuffer[msgPos++] = (byte)(len);
-
-		/*
-		 *	Now run the rest of the data through
+		 * Length prefix. Assumes message size is bigger than 4 bytes.
 		 */
-
-		while (dataPos < len) {
-			msgBuffer[msgPos++] = data[dataPos++];
-			if (msgPos >= padding.getMessageSize()) {
-				msgPos = 0;
-
-				/*
-				 *	Encode the buffer and encrypt it
-				 */
-
-				padding.encode(msgBuffer, encBuffer);
-				
-				/*
-				 * 	Convert to an integer and transform
-				 */
-				BigInteger bi = new BigInteger(1,encBuffer);
-				BigInteger ei = publicRSAKey.transform(bi);
-				byte[] enc = ei.toByteArray();
-				Arrays.fill(encBuffer, (byte)0);
-				System.arraycopy(enc, encSize - enc.length, encBuffer, 0, enc.length);
-				
-				baos.write(encBuffer);
-			}
+		
+		if (pos == 0) {
+			msgBuffer[msgPos++] = (byte)(len >> 24);
+			msgBuffer[msgPos++] = (byte)(len >> 16);
+			msgBuffer[msgPos++] = (byte)(len >> 8);
+			msgBuffer[msgPos++] = (byte)(len);
 		}
-
-		if (msgPos > 0) {
-			// zero tail of buffer
-			for (int p = msgPos; p < msgSize; ++p) msgBuffer[p] = 0;
-
-			/*
-			 *	Encode the buffer and encrypt it
-			 */
-
-			padding.encode(msgBuffer, encBuffer);
-
-			BigInteger bi = new BigInteger(1,encBuffer);
-			BigInteger ei = publicRSAKey.transform(bi);
-			byte[] enc = ei.toByteArray();
-			Arrays.fill(encBuffer, (byte)0);
-			System.arraycopy(enc, encSize - enc.length, encBuffer, 0, enc.length);
-			
-			baos.write(encBuffer);
+		
+		int dataPos = pos + msgPos - 4;
+		int n = Math.max(0, Math.min(msgSize - msgPos, len - dataPos));
+		if (n > 0) {
+			System.arraycopy(data, dataPos, msgBuffer, msgPos, n);
+			msgPos += n;
 		}
-
+		
+		// zero tail of buffer
+		for (int p = msgPos; p < msgSize; ++p) msgBuffer[p] = 0;
+	}
+	
+	/**
+	 * Pad and encrypt a single block. The message block must be the 
+	 * padding's message size, and the scratch buffer its encode size. The 
+	 * encrypted block is written at the offset given, right aligned and 
+	 * zero filled, as a big-endian integer of the padding's encode size.
+	 * @param msgBuffer
+	 * @param encBuffer
+	 * @param out
+	 * @param off
+	 * @throws NoSuchAlgorithmException
+	 */
+	public void encodeBlock(byte[] msgBuffer, byte[] encBuffer, byte[] out, int off) throws NoSuchAlgorithmException
+	{
+		int encSize = encBuffer.length;
+		
+		padding.encode(msgBuffer, encBuffer);
+		
 		/*
-		 *	Completed encryption process. Free scratch buffers and return
-		 *	our built data
+		 * 	Convert to an integer and transform. The result is less than
+		 * 	the modulus, but toByteArray may add a leading sign byte or
+		 * 	return fewer bytes than the block.
 		 */
-
-		return baos.toByteArray();
+		BigInteger bi = new BigInteger(1,encBuffer);
+		BigInteger ei = publicRSAKey.transform(bi);
+		byte[] enc = ei.toByteArray();
+		
+		int srcStart = 0;
+		int length = enc.length;
+		if (length > encSize) {
+			srcStart = length - encSize;
+			length = encSize;
+		}
+		int pad = encSize - length;
+		for (int p = 0; p < pad; ++p) out[off + p] = 0;
+		System.arraycopy(enc, srcStart, out, off + pad, length);
 	}
 }
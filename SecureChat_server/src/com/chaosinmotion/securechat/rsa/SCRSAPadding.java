@@ -31,6 +31,13 @@ import java.security.SecureRandom;
  */
 public class SCRSAPadding
 {
+	/*
+	 * SecureRandom is thread safe, and seeding a new one for each block
+	 * (especially a strong one, which may block for entropy) costs more 
+	 * than the rest of the padding put together.
+	 */
+	private static final SecureRandom random = new SecureRandom();
+	
 	private int encSize;
 	private int msgSize;
 
@@ -59,7 +66,7 @@ public class SCRSAPadding
 	 * @throws NoSuchAlgorithmException 
 	 */
 	
-	boolean encode(byte[] msg, byte[] enc) throws NoSuchAlgorithmException
+	public boolean encode(byte[] msg, byte[] enc) throws NoSuchAlgorithmException
 	{
 		if (msg.length != msgSize) throw new RuntimeException();
 		if (enc.length != encSize) throw new RuntimeException();
@@ -83,9 +90,8 @@ public class SCRSAPadding
 		 * Step 3: add random data
 		 */
 		
-		SecureRandom sr = SecureRandom.getInstanceStrong();
 		byte[] rbuf = new byte[msgOffset-1];
-		sr.nextBytes(rbuf);
+		random.nextBytes(rbuf);
 		System.arraycopy(rbuf, 0, enc, 0, rbuf.length);
 		enc[0] &= 0x3F;				// zero out top bits
 		
@@ -135,7 +141,7 @@ public class SCRSAPadding
 	 * @return
 	 * @throws NoSuchAlgorithmException
 	 */
-	boolean decode(byte[] enc, byte[] msg) throws NoSuchAlgorithmException
+	public boolean decode(byte[] enc, byte[] msg) throws NoSuchAlgorithmException
 	{
 		if (msg.length != msgSize) throw new RuntimeException();
 		if (enc.length != encSize) throw new RuntimeException();
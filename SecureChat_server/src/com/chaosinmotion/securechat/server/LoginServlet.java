@@ -246,8 +246,8 @@ public class LoginServlet extends HttpServlet
 			 */
 			
 			ServletOutputStream stream = resp.getOutputStream();
-			resp.setContentType("application/json");
-			stream.print(retVal.toString());
+			resp.setContentType("application/json; charset=UTF-8");
+			retVal.write(stream);
 		}
 	}
 }
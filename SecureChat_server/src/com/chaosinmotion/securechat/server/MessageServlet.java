@@ -28,13 +28,16 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import org.json.JSONObject;
 import org.json.JSONTokener;
+import com.chaosinmotion.securechat.server.commands.AckMessages;
 import com.chaosinmotion.securechat.server.commands.DropMessages;
 import com.chaosinmotion.securechat.server.commands.GetMessages;
 import com.chaosinmotion.securechat.server.commands.Login;
 import com.chaosinmotion.securechat.server.commands.SendMessages;
+import com.chaosinmotion.securechat.server.json.MessageReturnResult;
 import com.chaosinmotion.securechat.server.json.ReturnResult;
 import com.chaosinmotion.securechat.server.json.SimpleReturnResult;
 import com.chaosinmotion.securechat.server.messages.NotificationService;
+import com.chaosinmotion.securechat.shared.Constants;
 import com.chaosinmotion.securechat.shared.Errors;
 
 /**
@@ -63,6 +66,7 @@ public class MessageServlet extends HttpServlet
 			throws ServletException, IOException
 	{
 		ReturnResult retVal = null;
+		boolean binary = false;
 		
 		/*
 		 * Step 1: determine the path element after the api/1/ URL. This
@@ -91,12 +95,18 @@ public class MessageServlet extends HttpServlet
 					/*
 					 * Process the send messages request. This takes an array
 					 * of device IDs and messages. The assumption is that each
-					 * messages.
+					 * messages. Clients may send the messages in binary
+					 * rather than as JSON.
 					 */
 					
-					JSONTokener tokener = new JSONTokener(req.getInputStream());
-					JSONObject requestParams = new JSONObject(tokener);
-					retVal = SendMessages.processRequest(userinfo, requestParams);
+					String type = req.getContentType();
+					if ((type != null) && type.startsWith(Constants.MESSAGETYPE)) {
+						retVal = SendMessages.processRequest(userinfo, req.getInputStream());
+					} else {
+						JSONTokener tokener = new JSONTokener(req.getInputStream());
+						JSONObject requestParams = new JSONObject(tokener);
+						retVal = SendMessages.processRequest(userinfo, requestParams);
+					}
 				
 				} else if (path.equalsIgnoreCase("getmessages")) {
 					/*
@@ -104,9 +114,13 @@ public class MessageServlet extends HttpServlet
 					 * associated with the device provided, so long as it is
 					 * tied to the username that we've logged into. This will
 					 * pull the data and delete the messages from the back
-					 * end as they are pulled.
+					 * end as they are pulled. Clients which accept binary
+					 * get the messages in binary.
 					 */
 					
+					String accept = req.getHeader("Accept");
+					binary = (accept != null) && accept.contains(Constants.MESSAGETYPE);
+					
 					JSONTokener tokener = new JSONTokener(req.getInputStream());
 					JSONObject requestParams = new JSONObject(tokener);
 					retVal = GetMessages.processRequest(userinfo, requestParams);
@@ -122,8 +136,17 @@ public class MessageServlet extends HttpServlet
 					
 					JSONTokener tokener = new JSONTokener(req.getInputStream());
 					JSONObject requestParams = new JSONObject(tokener);
-					DropMessages.processRequest(userinfo, requestParams);
-					retVal = new ReturnResult();
+					retVal = DropMessages.processRequest(userinfo, requestParams);
+
+				} else if (path.equalsIgnoreCase("ackmessages")) {
+					/*
+					 * Acknowledge every message to the device up to the
+					 * message ID given. The messages are deleted later.
+					 */
+					
+					JSONTokener tokener = new JSONTokener(req.getInputStream());
+					JSONObject requestParams = new JSONObject(tokener);
+					retVal = AckMessages.processRequest(userinfo, requestParams);
 
 				} else if (path.equalsIgnoreCase("notifications")) {
 					/*
@@ -161,14 +184,24 @@ public class MessageServlet extends HttpServlet
 		if (retVal == null) {
 			resp.sendError(404);
 			
+		} else if (binary && (retVal instanceof MessageReturnResult)) {
+			/*
+			 * Return the messages in binary. Errors are still returned
+			 * as JSON.
+			 */
+			
+			ServletOutputStream stream = resp.getOutputStream();
+			resp.setContentType(Constants.MESSAGETYPE);
+			((MessageReturnResult)retVal).writeBinary(stream);
+			
 		} else {
 			/*
 			 * We now have a return result. Formulate the response
 			 */
 			
 			ServletOutputStream stream = resp.getOutputStream();
-			resp.setContentType("application/json");
-			stream.print(retVal.toString());
+			resp.setContentType("application/json; charset=UTF-8");
+			retVal.write(stream);
 		}
 	}
 }
@@ -0,0 +1,55 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import com.chaosinmotion.securechat.server.database.ConnectionPool;
+import com.chaosinmotion.securechat.server.maintenance.MaintenanceScheduler;
+
+/**
+ * Releases the server's shared resources when the web application is
+ * stopped or redeployed: the maintenance jobs are stopped and the pooled
+ * database connections are closed. Nothing is created here if it was never
+ * started.
+ * @author woody
+ */
+public class ShutdownListener implements ServletContextListener
+{
+	@Override
+	public void contextInitialized(ServletContextEvent sce)
+	{
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent sce)
+	{
+		/*
+		 * Stop the scheduler first, so no job borrows a connection from the
+		 * pool as we close it.
+		 */
+		
+		MaintenanceScheduler scheduler = MaintenanceScheduler.peekShared();
+		if (scheduler != null) scheduler.shutdown();
+		
+		ConnectionPool pool = ConnectionPool.peekShared();
+		if (pool != null) pool.close();
+	}
+}
@@ -20,14 +20,26 @@
 package com.chaosinmotion.securechat.server;
 
 import java.io.IOException;
+import java.util.Date;
+import java.util.List;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
+import com.chaosinmotion.securechat.server.cache.UserNameCache;
 import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.ConnectionPool;
 import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.StatementCache;
+import com.chaosinmotion.securechat.server.maintenance.MaintenanceScheduler;
+import com.chaosinmotion.securechat.server.messages.MessageBodyStore;
+import com.chaosinmotion.securechat.server.messages.MessageIngest;
 import com.chaosinmotion.securechat.server.messages.NotificationService;
+import com.chaosinmotion.securechat.server.messages.NotificationConnection;
+import com.chaosinmotion.securechat.server.messages.PartitionManager;
+import com.chaosinmotion.securechat.server.messages.RetentionSweeper;
 
 /**
  * This class helps with installation by verifying we can access the database
@@ -66,7 +78,130 @@ public class ValidateServlet extends HttpServlet
 		catch (Throwable e) {
 			out.println("<b>Failure:</b> " + e.getLocalizedMessage() + ".</p>");
 		}
-		
+
+		/*
+		 * Report the state of the database connection pool
+		 */
+
+		ConnectionPool pool = ConnectionPool.peekShared();
+		if (pool != null) {
+			out.println("<p>Connection pool: " + pool.getActiveCount() + " active, "
+					+ pool.getIdleCount() + " idle, " + pool.getWaiterCount()
+					+ " waiting (maximum " + pool.getMaxSize() + ")<br>");
+			out.println("Borrowed " + pool.getBorrowCount() + " times, average "
+					+ pool.getAverageBorrowTime() + "&micro;s, maximum "
+					+ pool.getMaxBorrowTime() + "&micro;s, "
+					+ pool.getTimeoutCount() + " timeouts<br>");
+			out.println("Opened " + pool.getCreateCount() + " connections, closed "
+					+ pool.getDiscardCount() + "<br>");
+			out.println("Statement cache: " + StatementCache.getHitCount() + " hits, "
+					+ StatementCache.getMissCount() + " misses, "
+					+ StatementCache.getEvictionCount() + " evictions</p>");
+		}
+
+		/*
+		 * Report the state of our caches
+		 */
+
+		DeviceDirectory directory = DeviceDirectory.getShared();
+		out.println("<p>Device directory: " + directory.getDeviceCount() + " devices, "
+				+ directory.getUserCount() + " users; " + directory.getHitCount() + " hits, "
+				+ directory.getMissCount() + " misses, " + directory.getEvictionCount()
+				+ " evictions</p>");
+
+		UserNameCache names = UserNameCache.getShared();
+		out.println("<p>User name cache: " + names.getCount() + " names; "
+				+ names.getHitCount() + " hits, " + names.getMissCount() + " misses, "
+				+ names.getEvictionCount() + " evictions</p>");
+
+		/*
+		 * Report group commit
+		 */
+
+		if (MessageIngest.isEnabled()) {
+			MessageIngest ingest = MessageIngest.getShared();
+			out.print("<p>Group commit: " + ingest.getRowCount() + " messages in " 
+					+ ingest.getFlushCount() + " transactions, " + ingest.getRowsPerSecond() 
+					+ " messages/s while writing, " + ingest.getPendingCount() + " waiting, "
+					+ ingest.getErrorCount() + " failed transactions<br>");
+			out.print("Messages per transaction:");
+			long[] histogram = ingest.getBatchHistogram();
+			int low = 1;
+			for (int i = 0; i < histogram.length; ++i) {
+				int high = MessageIngest.getHistogramBucket(i);
+				String label = (high == Integer.MAX_VALUE) ? (low + "+") 
+						: (low == high) ? Integer.toString(low) : (low + "-" + high);
+				out.print(" " + label + ": " + histogram[i] + (i < histogram.length - 1 ? ";" : ""));
+				low = high + 1;
+			}
+			out.println("</p>");
+		}
+
+		/*
+		 * Report the bytes stored for each send, and what would have been
+		 * stored with every message stored whole
+		 */
+
+		MessageBodyStore bodies = MessageBodyStore.getShared();
+		out.println("<p>Message bodies " + (bodies.isEnabled() ? "stored once" : "stored with each message")
+				+ ": " + bodies.getSendCount() + " sends, " + bodies.getMessageCount() + " messages, "
+				+ bodies.getBodyCount() + " shared bodies; " + bodies.getStoredPerSend() 
+				+ " bytes stored per send, " + bodies.getBytesPerSend() + " bytes per send as sent</p>");
+
+		/*
+		 * Report the message partitions and the last pass of the retention
+		 * sweeper
+		 */
+
+		PartitionManager partitions = PartitionManager.getShared();
+		if (partitions.getLastRun() != 0) {
+			out.println("<p>Message partitions: " + partitions.getPartitionCount() + " from "
+					+ partitions.getOldestPartition() + " to " + partitions.getNewestPartition()
+					+ "; " + partitions.getCreatedCount() + " created, " + partitions.getRemovedCount()
+					+ (partitions.isDetaching() ? " detached" : " dropped") + " since startup</p>");
+			if (partitions.getLastError() != null) {
+				out.println("<p><b>Partition maintenance failed:</b> " + partitions.getLastError() + "</p>");
+			}
+		}
+
+		RetentionSweeper sweeper = RetentionSweeper.getShared();
+		out.print("<p>Messages kept " + sweeper.getRetentionDays() + " days; ");
+		if (sweeper.getLastRun() == 0) {
+			out.println("no expired messages removed yet</p>");
+		} else {
+			out.println("last sweep " + new Date(sweeper.getLastRun()) + " removed "
+					+ sweeper.getLastRowCount() + " messages in " + sweeper.getLastBatchCount()
+					+ " batches, " + sweeper.getLastDuration() + "ms; "
+					+ sweeper.getTotalRowCount() + " removed since startup</p>");
+			if (sweeper.getLastError() != null) {
+				out.println("<p><b>Sweep failed:</b> " + sweeper.getLastError() + "</p>");
+			}
+		}
+
+		/*
+		 * Report the maintenance jobs
+		 */
+
+		MaintenanceScheduler scheduler = MaintenanceScheduler.peekShared();
+		if (scheduler != null) {
+			out.println("<table><tr><th>Job</th><th>Every</th><th>Runs</th><th>Last run</th>"
+					+ "<th>Duration</th><th>Rows</th><th>Total rows</th><th>Error</th></tr>");
+			for (MaintenanceScheduler.Job job: scheduler.getJobs()) {
+				out.print("<tr><td>" + job.getName() + "</td><td>" + (job.getPeriod() / 1000) 
+						+ "&plusmn;" + (job.getJitter() / 1000) + "s</td><td>" + job.getRunCount() + "</td>");
+				if (job.getLastRun() == 0) {
+					out.print("<td>never</td><td></td><td></td>");
+				} else {
+					out.print("<td>" + new Date(job.getLastRun()) + "</td><td>" + job.getLastDuration() 
+							+ "ms</td><td>" + job.getLastRowCount() + "</td>");
+				}
+				String error = job.getLastError();
+				out.println("<td>" + job.getTotalRowCount() + "</td><td>" + (error == null ? "" : error) 
+						+ "</td></tr>");
+			}
+			out.println("</table>");
+		}
+
 		/*
 		 * Now get the server URL the client would use
 		 */
@@ -86,6 +221,38 @@ public class ValidateServlet extends HttpServlet
 			out.print("<p>Notification service ");
 			if (n.getSSLFlag()) out.print("<b>is secure</b> ");
 			out.print("running on " + n.getServerAddress() + ":" + n.getServerPort() + "</p>");
+			
+			/*
+			 * Outbound queues. We list any connection which has a backlog
+			 * or has dropped packets.
+			 */
+			
+			List<NotificationConnection> sockets = n.getConnections();
+			int queued = 0;
+			int maxDepth = 0;
+			for (NotificationConnection s: sockets) {
+				int depth = s.getQueueDepth();
+				queued += depth;
+				if (maxDepth < depth) maxDepth = depth;
+			}
+			out.println("<p>" + sockets.size() + " connections; " + queued + " packets queued, "
+					+ "deepest queue " + maxDepth + "; " + NotificationConnection.getTotalDropCount() 
+					+ " packets dropped, " + NotificationConnection.getOverflowCount() 
+					+ " connections dropped for overflow</p>");
+			out.println("<p>Connections use " + n.getConnectionMode() + "; " 
+					+ NotificationConnection.getLoginWaitCount() + " logins waiting for the database</p>");
+			
+			int listed = 0;
+			for (NotificationConnection s: sockets) {
+				if ((s.getQueueDepth() == 0) && (s.getDropCount() == 0)) continue;
+				if (listed == 0) {
+					out.println("<table><tr><th>Device</th><th>Queued</th><th>Dropped</th></tr>");
+				}
+				out.println("<tr><td>" + s.getDeviceID() + "</td><td>" + s.getQueueDepth() 
+						+ "</td><td>" + s.getDropCount() + "</td></tr>");
+				if (++listed >= 50) break;
+			}
+			if (listed > 0) out.println("</table>");
 		} else {
 			Throwable ex = n.getStartException();
 			out.println("<p>Notification service is not running.</p>");
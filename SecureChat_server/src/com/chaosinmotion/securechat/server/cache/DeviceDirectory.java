@@ -0,0 +1,458 @@
+/*	SecureChat: A secure chat system which permits secure communications
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it
+ *	under the terms of the GNU General Public License as published by the
+ *	Free Software Foundation, either version 3 of the License, or (at your
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.cache;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.chaosinmotion.securechat.rsa.SCRSAKey;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+
+/**
+ * In-memory directory of devices. Nearly every request needs to translate
+ * a device UUID into a device ID, or find the devices owned by a user, and
+ * the Devices table almost never changes. So we cache the device records
+ * here, loading them on demand.
+ *
+ * Any command which changes the Devices table must invalidate the affected
+ * entries. To avoid a race where a lookup reads the table just before a
+ * change and stores the stale result just after it is invalidated, each
+ * invalidation bumps a generation count, and a lookup only stores what it
+ * read if the generation has not changed in the meantime.
+ *
+ * The directory is bounded by the devicecache property (default 10000
+ * entries in each of the two maps).
+ *
+ * @author woody
+ *
+ */
+public class DeviceDirectory
+{
+	private static DeviceDirectory shared;
+
+	private final int maxSize;
+	private final ConcurrentHashMap<String,Device> byUUID;
+	private final ConcurrentHashMap<Integer,List<Device>> byUser;
+	private final AtomicLong generation;
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+
+	/**
+	 * A device record. These are immutable; changing a device replaces it.
+	 * The public key is parsed the first time it is needed for encryption,
+	 * and the parsed key is kept with the record, so it is dropped along
+	 * with the record when the device is invalidated.
+	 */
+	public static class Device
+	{
+		private final int deviceID;
+		private final int userID;
+		private final String deviceUUID;
+		private final String publicKey;
+		private final boolean envelopes;
+		private volatile SCRSAKey rsaKey;
+
+		Device(int deviceID, int userID, String deviceUUID, String publicKey, boolean envelopes)
+		{
+			this.deviceID = deviceID;
+			this.userID = userID;
+			this.deviceUUID = deviceUUID;
+			this.publicKey = publicKey;
+			this.envelopes = envelopes;
+		}
+
+		public int getDeviceID()
+		{
+			return deviceID;
+		}
+
+		public int getUserID()
+		{
+			return userID;
+		}
+
+		public String getDeviceUUID()
+		{
+			return deviceUUID;
+		}
+
+		public String getPublicKey()
+		{
+			return publicKey;
+		}
+
+		/**
+		 * True if the device said it can read version 2 message envelopes
+		 * when it was registered
+		 * @return
+		 */
+		public boolean getEnvelopes()
+		{
+			return envelopes;
+		}
+
+		/**
+		 * Get the parsed public key of this device
+		 * @return
+		 */
+		public SCRSAKey getRSAKey()
+		{
+			SCRSAKey key = rsaKey;
+			if (key == null) {
+				key = new SCRSAKey(publicKey);
+				rsaKey = key;
+			}
+			return key;
+		}
+	}
+
+	public static synchronized DeviceDirectory getShared()
+	{
+		if (shared == null) {
+			shared = new DeviceDirectory();
+		}
+		return shared;
+	}
+
+	private DeviceDirectory()
+	{
+		maxSize = Math.max(16, Config.getInt("devicecache", 10000));
+		byUUID = new ConcurrentHashMap<String,Device>();
+		byUser = new ConcurrentHashMap<Integer,List<Device>>();
+		generation = new AtomicLong();
+
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+
+	/**
+	 * Look up a device by UUID, using the connection provided if we need to
+	 * go to the database.
+	 * @param c
+	 * @param uuid
+	 * @return The device, or null if the device does not exist
+	 * @throws SQLException
+	 */
+	public Device getDevice(Connection c, String uuid) throws SQLException
+	{
+		Device d = byUUID.get(uuid);
+		if (d != null) {
+			hits.incrementAndGet();
+			return d;
+		}
+		misses.incrementAndGet();
+
+		long gen = generation.get();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			ps = Database.prepare(c, Query.DEVICE_BY_UUID);
+			ps.setString(1, uuid);
+			rs = ps.executeQuery();
+			if (rs.next()) {
+				d = new Device(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getBoolean(5));
+			}
+		}
+		finally {
+			if (rs != null) rs.close();
+			if (ps != null) ps.close();
+		}
+
+		if ((d != null) && (gen == generation.get())) {
+			trim(byUUID);
+			byUUID.put(uuid, d);
+		}
+		return d;
+	}
+
+	/**
+	 * Look up a device by UUID. This only opens a database connection if the
+	 * device is not in the directory.
+	 * @param uuid
+	 * @return
+	 * @throws SQLException
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	public Device getDevice(String uuid) throws SQLException, ClassNotFoundException, IOException
+	{
+		Device d = byUUID.get(uuid);
+		if (d != null) {
+			hits.incrementAndGet();
+			return d;
+		}
+
+		Connection c = null;
+		try {
+			c = Database.get();
+			return getDevice(c, uuid);
+		}
+		finally {
+			if (c != null) c.close();
+		}
+	}
+
+	/**
+	 * Look up a collection of devices by UUID. Devices which are not in the
+	 * directory are loaded with a single query.
+	 * @param c
+	 * @param uuids
+	 * @return A map from UUID to device. Unknown devices are not in the map.
+	 * @throws SQLException
+	 */
+	public Map<String,Device> getDevices(Connection c, Collection<String> uuids) throws SQLException
+	{
+		HashMap<String,Device> ret = new HashMap<String,Device>();
+		ArrayList<String> missing = new ArrayList<String>();
+
+		for (String uuid: uuids) {
+			Device d = byUUID.get(uuid);
+			if (d != null) {
+				hits.incrementAndGet();
+				ret.put(uuid, d);
+			} else {
+				misses.incrementAndGet();
+				missing.add(uuid);
+			}
+		}
+		if (missing.isEmpty()) return ret;
+
+		long gen = generation.get();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		ArrayList<Device> loaded = new ArrayList<Device>();
+
+		try {
+			ps = Database.prepare(c, Query.DEVICES_BY_UUIDS);
+			ps.setArray(1, c.createArrayOf("text", missing.toArray()));
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				Device d = new Device(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getBoolean(5));
+				if (!ret.containsKey(d.deviceUUID)) {
+					ret.put(d.deviceUUID, d);
+					loaded.add(d);
+				}
+			}
+		}
+		finally {
+			if (rs != null) rs.close();
+			if (ps != null) ps.close();
+		}
+
+		if (gen == generation.get()) {
+			for (Device d: loaded) {
+				trim(byUUID);
+				byUUID.put(d.deviceUUID, d);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the list of devices owned by a user.
+	 * @param c
+	 * @param userid
+	 * @return An unmodifiable list of devices
+	 * @throws SQLException
+	 */
+	public List<Device> getDevicesForUser(Connection c, int userid) throws SQLException
+	{
+		List<Device> list = byUser.get(userid);
+		if (list != null) {
+			hits.incrementAndGet();
+			return list;
+		}
+		misses.incrementAndGet();
+
+		long gen = generation.get();
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		ArrayList<Device> a = new ArrayList<Device>();
+
+		try {
+			ps = Database.prepare(c, Query.DEVICES_BY_USER);
+			ps.setInt(1, userid);
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				a.add(new Device(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4), rs.getBoolean(5)));
+			}
+		}
+		finally {
+			if (rs != null) rs.close();
+			if (ps != null) ps.close();
+		}
+
+		list = Collections.unmodifiableList(a);
+		if (gen == generation.get()) {
+			trim(byUser);
+			byUser.put(userid, list);
+		}
+		return list;
+	}
+
+	/**
+	 * Get the list of devices owned by a user. This only opens a database
+	 * connection if the user's devices are not in the directory.
+	 * @param userid
+	 * @return
+	 * @throws SQLException
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	public List<Device> getDevicesForUser(int userid) throws SQLException, ClassNotFoundException, IOException
+	{
+		List<Device> list = byUser.get(userid);
+		if (list != null) {
+			hits.incrementAndGet();
+			return list;
+		}
+
+		Connection c = null;
+		try {
+			c = Database.get();
+			return getDevicesForUser(c, userid);
+		}
+		finally {
+			if (c != null) c.close();
+		}
+	}
+
+	/**
+	 * Invalidate a device UUID. This must be called after any change to the
+	 * Devices table for this UUID. This also forgets the device list for
+	 * any user which owned the device.
+	 * @param uuid
+	 */
+	public void invalidateDevice(String uuid)
+	{
+		generation.incrementAndGet();
+		byUUID.remove(uuid);
+
+		Iterator<List<Device>> iter = byUser.values().iterator();
+		while (iter.hasNext()) {
+			for (Device d: iter.next()) {
+				if (d.deviceUUID.equals(uuid)) {
+					iter.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invalidate the list of devices for a user. This must be called after
+	 * any device is added to or removed from the user.
+	 * @param userid
+	 */
+	public void invalidateUser(int userid)
+	{
+		generation.incrementAndGet();
+		byUser.remove(userid);
+	}
+
+	/**
+	 * Make room for a new entry if the map is full. We don't track use, so
+	 * we simply drop whatever entries the map iterates first.
+	 * @param map
+	 */
+	private void trim(ConcurrentHashMap<?,?> map)
+	{
+		if (map.size() < maxSize) return;
+
+		int remove = map.size() - maxSize + 1 + maxSize/16;
+		Iterator<?> iter = map.keySet().iterator();
+		while ((remove > 0) && iter.hasNext()) {
+			iter.next();
+			iter.remove();
+			evictions.incrementAndGet();
+			--remove;
+		}
+	}
+
+	/**
+	 * Trim both maps back to the maximum size. Entries added concurrently
+	 * can push a map slightly past its limit; this is run periodically by
+	 * the MaintenanceScheduler to put it back.
+	 * @return The number of entries removed
+	 */
+	public int cleanup()
+	{
+		return cleanup(byUUID) + cleanup(byUser);
+	}
+
+	private int cleanup(ConcurrentHashMap<?,?> map)
+	{
+		int removed = 0;
+		Iterator<?> iter = map.keySet().iterator();
+		while ((map.size() > maxSize) && iter.hasNext()) {
+			iter.next();
+			iter.remove();
+			evictions.incrementAndGet();
+			++removed;
+		}
+		return removed;
+	}
+
+	/*
+	 *	Statistics
+	 */
+
+	public int getDeviceCount()
+	{
+		return byUUID.size();
+	}
+
+	public int getUserCount()
+	{
+		return byUser.size();
+	}
+
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+}
@@ -0,0 +1,218 @@
+/*	SecureChat: A secure chat system which permits secure communications
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it
+ *	under the terms of the GNU General Public License as published by the
+ *	Free Software Foundation, either version 3 of the License, or (at your
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.cache;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+
+/**
+ * Cache of user IDs to user names. Every message sent to a device carries
+ * the name of the sender, and user names cannot be changed once an account
+ * is created, so there is no need to go back to the database once we know
+ * a user's name.
+ *
+ * Unknown users are cached as well, with a marker entry, so messages from
+ * a sender without an account don't go back to the database every time.
+ * If a user with that ID is created later, CreateAccount replaces the
+ * marker with the real name. The administrator account, user ID 0, has no
+ * entry in the Users table, so it is never looked up at all. The cache is
+ * bounded by the usernamecache property (default 10000 entries).
+ *
+ * @author woody
+ *
+ */
+public class UserNameCache
+{
+	private static UserNameCache shared;
+	
+	/*
+	 *	Marker for a user ID with no user. Compared by identity, so it can
+	 *	never be mistaken for a real (if empty) name.
+	 */
+	private static final String NONAME = new String("");
+
+	private final int maxSize;
+	private final ConcurrentHashMap<Integer,String> names;
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+
+	public static synchronized UserNameCache getShared()
+	{
+		if (shared == null) {
+			shared = new UserNameCache();
+		}
+		return shared;
+	}
+
+	private UserNameCache()
+	{
+		maxSize = Math.max(16, Config.getInt("usernamecache", 10000));
+		names = new ConcurrentHashMap<Integer,String>();
+
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+
+	/**
+	 * Get the name of the user with the specified ID, using the connection
+	 * provided if we need to go to the database. If the connection is null,
+	 * only the cache is consulted.
+	 * @param c
+	 * @param userid
+	 * @return The user name, or null if the user does not exist
+	 * @throws SQLException
+	 */
+	public String getName(Connection c, int userid) throws SQLException
+	{
+		if (userid == 0) return null;
+		
+		String name = names.get(userid);
+		if (name != null) {
+			hits.incrementAndGet();
+			return (name == NONAME) ? null : name;
+		}
+		misses.incrementAndGet();
+		if (c == null) return null;
+
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			ps = Database.prepare(c, Query.USERNAME_BY_ID);
+			ps.setInt(1, userid);
+			rs = ps.executeQuery();
+			if (rs.next()) {
+				name = rs.getString(1);
+			}
+		}
+		finally {
+			if (rs != null) rs.close();
+			if (ps != null) ps.close();
+		}
+
+		trim();
+		if (name != null) {
+			names.put(userid, name);
+		} else {
+			/*
+			 * Don't overwrite a name recorded by put() while we were
+			 * querying.
+			 */
+			names.putIfAbsent(userid, NONAME);
+		}
+		return name;
+	}
+	
+	/**
+	 * Returns true if getName can answer for this user ID without going to
+	 * the database.
+	 * @param userid
+	 * @return
+	 */
+	public boolean isCached(int userid)
+	{
+		return (userid == 0) || names.containsKey(userid);
+	}
+
+	/**
+	 * Record a user name we already know, such as when a user logs in or
+	 * creates an account. Since a sender must be logged in, this means the
+	 * realtime push path rarely has to go to the database at all.
+	 * @param userid
+	 * @param name
+	 */
+	public void put(int userid, String name)
+	{
+		if (name == null) return;
+		if (!names.containsKey(userid)) trim();
+		names.put(userid, name);
+	}
+
+	/**
+	 * Make room for a new entry if the cache is full.
+	 */
+	private void trim()
+	{
+		if (names.size() < maxSize) return;
+
+		int remove = names.size() - maxSize + 1 + maxSize/16;
+		Iterator<Integer> iter = names.keySet().iterator();
+		while ((remove > 0) && iter.hasNext()) {
+			iter.next();
+			iter.remove();
+			evictions.incrementAndGet();
+			--remove;
+		}
+	}
+
+	/**
+	 * Trim the cache back to its maximum size. Entries added concurrently
+	 * can push the cache slightly past its limit; this is run periodically
+	 * by the MaintenanceScheduler to put it back.
+	 * @return The number of entries removed
+	 */
+	public int cleanup()
+	{
+		int removed = 0;
+		Iterator<Integer> iter = names.keySet().iterator();
+		while ((names.size() > maxSize) && iter.hasNext()) {
+			iter.next();
+			iter.remove();
+			evictions.incrementAndGet();
+			++removed;
+		}
+		return removed;
+	}
+
+	/*
+	 *	Statistics
+	 */
+
+	public int getCount()
+	{
+		return names.size();
+	}
+
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+}
@@ -0,0 +1,183 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package com.chaosinmotion.securechat.server.commands;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Properties;
+import java.util.TimeZone;
+import org.json.JSONObject;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
+import com.chaosinmotion.securechat.server.commands.Login.UserInfo;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+import com.chaosinmotion.securechat.server.json.ReturnResult;
+import com.chaosinmotion.securechat.server.json.SimpleReturnResult;
+import com.chaosinmotion.securechat.server.messages.MessageBodyStore;
+import com.chaosinmotion.securechat.server.messages.MessageQueue;
+import com.chaosinmotion.securechat.shared.Errors;
+
+/**
+ * Acknowledge every message to a device up to and including a message ID.
+ * This moves the device's delivery cursor forward; messages at or below
+ * the cursor are no longer returned by getmessages or the notification
+ * backlog, and are deleted in bulk later by the MaintenanceScheduler.
+ * 
+ * The cursor never moves past the highest message ID stored for the
+ * device, so a client cannot acknowledge messages which have not been
+ * sent yet. Message IDs are handed out before messages are committed, so
+ * a message with a lower ID may still be committed after the client
+ * acknowledged. An acknowledgement therefore covers the messages at or
+ * below the cursor which were committed when it was made, and no others:
+ * 
+ * Messages received more than MessageQueue.ACKGRACE milliseconds before
+ * the acknowledgement are taken to be committed, and are covered by the
+ * cursor itself, through the time of the latest acknowledgement.
+ * 
+ * Messages received more recently than that may still be in flight, so
+ * those which are already committed are deleted here, in the same
+ * transaction that moves the cursor. A message committed later is not
+ * touched, and is still delivered; the next acknowledgement covers it.
+ * 
+ * The client may pass the checksum of the last message acknowledged, in
+ * which case the cursor only moves if the checksum matches, as with 
+ * dropmessages. Setting ackchecksum = yes in securechat.properties makes
+ * the checksum required.
+ * 
+ * @author woody
+ *
+ */
+public class AckMessages
+{
+	private static final boolean requireChecksum;
+	
+	static {
+		Properties p = Config.get();
+		String value = (p == null) ? null : p.getProperty("ackchecksum");
+		requireChecksum = (value != null) && value.equalsIgnoreCase("yes");
+	}
+	
+	public static ReturnResult processRequest(UserInfo userinfo,
+			JSONObject requestParams) throws ClassNotFoundException, SQLException, IOException
+	{
+		String deviceid = requestParams.optString("deviceid");
+		int messageid = requestParams.getInt("messageid");
+		String checksum = requestParams.optString("checksum", null);
+		
+		if ((checksum == null) && requireChecksum) {
+			return new ReturnResult(Errors.ERROR_CHECKSUM,"Checksum required");
+		}
+		
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			/*
+			 * Get the device ID for this device. Verify it belongs to the
+			 * user specified
+			 */
+			c = Database.get();
+			DeviceDirectory.Device device = DeviceDirectory.getShared().getDevice(c, deviceid);
+			
+			int deviceID = 0;
+			if ((device != null) && (device.getUserID() == userinfo.getUserID())) {
+				deviceID = device.getDeviceID();
+			}
+			
+			if (deviceID == 0) {
+				return new ReturnResult(Errors.ERROR_UNKNOWNDEVICE,"Unknown device");
+			}
+			
+			/*
+			 * If we were given a checksum, the last message acknowledged
+			 * must still be waiting and must match it.
+			 */
+			
+			if (checksum != null) {
+				ps = Database.prepare(c, Query.MESSAGE_CHECKSUM);
+				ps.setInt(1, deviceID);
+				ps.setInt(2, messageid);
+				ps.setString(3, checksum);
+				rs = ps.executeQuery();
+				if (!rs.next()) {
+					return new ReturnResult(Errors.ERROR_CHECKSUM,"Checksum does not match");
+				}
+				
+				rs.close();
+				rs = null;
+				ps.close();
+				ps = null;
+			}
+			
+			/*
+			 * Move the cursor, up to the last message stored for this 
+			 * device. Neither the cursor nor the time it was acknowledged
+			 * ever moves backwards, so a late acknowledgement does no harm,
+			 * and repeating an acknowledgement covers any message committed
+			 * since the last one.
+			 */
+			
+			long now = System.currentTimeMillis();
+			Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+			c.setAutoCommit(false);
+			ps = Database.prepare(c, Query.ACK_MESSAGES);
+			ps.setInt(1, deviceID);
+			ps.setInt(2, messageid);
+			ps.setTimestamp(3, new Timestamp(now), cal);
+			ps.setInt(4, deviceID);
+			rs = ps.executeQuery();
+			
+			int cursor = messageid;
+			if (rs.next()) cursor = rs.getInt(1);
+			rs.close();
+			rs = null;
+			ps.close();
+			ps = null;
+			
+			/*
+			 * Delete the recent messages the cursor does not cover yet,
+			 * releasing their bodies.
+			 */
+			
+			ps = Database.prepare(c, Query.DROP_RECENT_ACKED);
+			ps.setInt(1, deviceID);
+			ps.setInt(2, cursor);
+			ps.setTimestamp(3, new Timestamp(now - MessageQueue.ACKGRACE), cal);
+			MessageBodyStore.drop(c, ps);
+			
+			c.commit();
+			c.setAutoCommit(true);
+			return new SimpleReturnResult("messageid", cursor);
+		}
+		finally {
+			if (rs != null) rs.close();
+			if (ps != null) ps.close();
+			if (c != null) c.close();
+		}
+	}
+}
@@ -25,13 +25,16 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import org.json.JSONObject;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
 import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+import com.chaosinmotion.securechat.server.messages.MessageBodyStore;
 
 public class AddDevice
 {
 	/**
-	 * Add device request. Takes parameters for deviceid, pubkey, as well as
-	 * the user info.
+	 * Add device request. Takes parameters for deviceid, pubkey, and 
+	 * optionally envelopes, as well as the user info.
 	 * @param userinfo
 	 * @param requestParams
 	 * @return
@@ -44,6 +47,7 @@ public class AddDevice
 	{
 		String deviceid = requestParams.optString("deviceid");
 		String pubkey = requestParams.optString("pubkey");
+		boolean envelopes = requestParams.optBoolean("envelopes", false);
 
 		/*
 		 * Attempt to insert a new user into the database
@@ -70,18 +74,14 @@ public class AddDevice
              * 
              * In the off chance we did have a collision, we also delete all
              * old messages to the device; that prevents messages from being
-             * accidentally delivered.
+             * accidentally delivered. The bodies of those messages are
+             * released in the same transaction.
              */
             
-            ps = c.prepareStatement(
-            		"DELETE FROM Messages " +
-            		"WHERE messageid IN " +
-            		"    (SELECT Messages.messageid " +
-            		"     FROM Messages, Devices " +
-            		"     WHERE Messages.deviceid = Devices.deviceid " +
-            		"     AND Devices.deviceuuid = ?)");
+            c.setAutoCommit(false);
+            ps = Database.prepare(c, Query.DROP_DEVICE_MESSAGES);
             ps.setString(1, deviceid);
-            ps.execute();
+            MessageBodyStore.drop(c, ps);
             ps.close();
             ps = null;
             		
@@ -93,13 +93,24 @@ public class AddDevice
 
             ps = c.prepareStatement(
             		"INSERT INTO Devices " +
-            		"    ( userid, deviceuuid, publickey ) " +
+            		"    ( userid, deviceuuid, publickey, envelopes ) " +
             		"VALUES " + 
-            		"    ( ?, ?, ?)");
+            		"    ( ?, ?, ?, ?)");
             ps.setInt(1, userinfo.getUserID());
             ps.setString(2, deviceid);
             ps.setString(3, pubkey);
+            ps.setBoolean(4, envelopes);
             ps.execute();
+            c.commit();
+            c.setAutoCommit(true);
+            
+            /*
+             * The device may have moved between users; forget what we knew
+             */
+            
+            DeviceDirectory directory = DeviceDirectory.getShared();
+            directory.invalidateDevice(deviceid);
+            directory.invalidateUser(userinfo.getUserID());
             
             /*
              * Complete; return result
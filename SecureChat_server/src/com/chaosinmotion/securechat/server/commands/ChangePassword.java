@@ -26,6 +26,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import org.json.JSONObject;
 import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
 import com.chaosinmotion.securechat.server.utils.Hash;
 import com.chaosinmotion.securechat.shared.Constants;
 
@@ -48,9 +49,7 @@ public class ChangePassword
 
 		try {
 			c = Database.get();
-			ps = c.prepareStatement("SELECT password "
-					+ "FROM Users "
-					+ "WHERE userid = ?");
+			ps = Database.prepare(c, Query.USER_PASSWORD);
 			ps.setInt(1, userinfo.getUserID());
 			rs = ps.executeQuery();
 			
@@ -25,8 +25,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import org.json.JSONObject;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
+import com.chaosinmotion.securechat.server.cache.UserNameCache;
 import com.chaosinmotion.securechat.server.commands.Login.UserInfo;
 import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+import com.chaosinmotion.securechat.server.messages.MessageBodyStore;
 
 /**
  * This contains the logic for creating a new account. This requires a bunch
@@ -54,6 +58,7 @@ public class CreateAccount
 		String password = requestParams.optString("password");
 		String deviceid = requestParams.optString("deviceid");
 		String pubkey = requestParams.optString("pubkey");
+		boolean envelopes = requestParams.optBoolean("envelopes", false);
 		
 		/*
 		 * Attempt to insert a new user into the database
@@ -107,18 +112,14 @@ public class CreateAccount
              * 
              * In the off chance we did have a collision, we also delete all
              * old messages to the device; that prevents messages from being
-             * accidentally delivered.
+             * accidentally delivered. The bodies of those messages are
+             * released in the same transaction.
              */
             
-            ps = c.prepareStatement(
-            		"DELETE FROM Messages " +
-            		"WHERE messageid IN " +
-            		"    (SELECT Messages.messageid " +
-            		"     FROM Messages, Devices " +
-            		"     WHERE Messages.deviceid = Devices.deviceid " +
-            		"     AND Devices.deviceuuid = ?)");
+            c.setAutoCommit(false);
+            ps = Database.prepare(c, Query.DROP_DEVICE_MESSAGES);
             ps.setString(1, deviceid);
-            ps.execute();
+            MessageBodyStore.drop(c, ps);
             ps.close();
             ps = null;
             		
@@ -130,13 +131,21 @@ public class CreateAccount
 
             ps = c.prepareStatement(
             		"INSERT INTO Devices " +
-            		"    ( userid, deviceuuid, publickey ) " +
+            		"    ( userid, deviceuuid, publickey, envelopes ) " +
             		"VALUES " + 
-            		"    ( ?, ?, ?)");
+            		"    ( ?, ?, ?, ?)");
             ps.setInt(1, userid);
             ps.setString(2, deviceid);
             ps.setString(3, pubkey);
+            ps.setBoolean(4, envelopes);
             ps.execute();
+            c.commit();
+            c.setAutoCommit(true);
+            
+            DeviceDirectory directory = DeviceDirectory.getShared();
+            directory.invalidateDevice(deviceid);
+            directory.invalidateUser(userid);
+            UserNameCache.getShared().put(userid, username);
             
             /*
              * Complete; return the user info record
@@ -24,8 +24,11 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 import org.json.JSONObject;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
 import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
 import com.chaosinmotion.securechat.server.json.DeviceReturnResult;
 import com.chaosinmotion.securechat.server.json.ReturnResult;
 import com.chaosinmotion.securechat.shared.Errors;
@@ -57,10 +60,7 @@ public class Devices
 			 * 	Get user ID
 			 */
 			
-			ps = c.prepareStatement(
-					"SELECT userid "
-					+ "FROM Users "
-					+ "WHERE username = ?");
+			ps = Database.prepare(c, Query.USERID_BY_NAME);
 			ps.setString(1, username);
 			rs = ps.executeQuery();
 			
@@ -78,17 +78,11 @@ public class Devices
 			/*
 			 * Get devices
 			 */
-			ps = c.prepareStatement(
-					"SELECT Devices.deviceuuid, Devices.publickey "
-					+ "FROM Devices, Users "
-					+ "WHERE Users.userid = Devices.userid "
-					+ "AND Users.username = ?");
-			ps.setString(1, username);
-			rs = ps.executeQuery();
+			List<DeviceDirectory.Device> list = DeviceDirectory.getShared().getDevicesForUser(c, userid);
 			
 			DeviceReturnResult drr = new DeviceReturnResult(userid);
-			while (rs.next()) {
-				drr.addDeviceUUID(rs.getString(1),rs.getString(2));
+			for (DeviceDirectory.Device d: list) {
+				drr.addDeviceUUID(d.getDeviceUUID(),d.getPublicKey(),d.getEnvelopes());
 			}
 			return drr;
 		}
@@ -20,92 +20,85 @@
 package com.chaosinmotion.securechat.server.commands;
 
 import java.io.IOException;
-import java.sql.BatchUpdateException;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import com.chaosinmotion.securechat.server.commands.Login.UserInfo;
 import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+import com.chaosinmotion.securechat.server.json.ReturnResult;
+import com.chaosinmotion.securechat.server.json.SimpleReturnResult;
+import com.chaosinmotion.securechat.server.messages.MessageBodyStore;
 
 public class DropMessages
 {
-	private static class Message
-	{
-		int message;
-		String checksum;
-	}
+	private static final int MAXDROPROWS = 10000;		/* acks per statement */
 
-	public static void processRequest(UserInfo userinfo,
+	public static ReturnResult processRequest(UserInfo userinfo,
 			JSONObject requestParams) throws ClassNotFoundException, SQLException, IOException
 	{
-		ArrayList<Message> messages = new ArrayList<Message>();
-		
 		JSONArray a = requestParams.getJSONArray("messages");
 		int i,len = a.length();
+		Integer[] ids = new Integer[len];
+		String[] checksums = new String[len];
 		for (i = 0; i < len; ++i) {
 			JSONObject item = a.getJSONObject(i);
-			Message msg = new Message();
-			msg.message  = item.getInt("messageid");
-			msg.checksum = item.getString("checksum");
-			messages.add(msg);
+			ids[i] = item.getInt("messageid");
+			checksums[i] = item.getString("checksum");
 		}
 		
 		/*
-		 * Iterate through the messages, deleting each. We only delete a
-		 * message if message belongs to the user and the checksum matches.
-		 * This assumes it's our message and it was read with someone who
-		 * can read the message.
+		 * Delete the messages. We only delete a message if message belongs
+		 * to the user and the checksum matches. This assumes it's our 
+		 * message and it was read with someone who can read the message.
 		 * 
-		 * (Thus, the weird query)
+		 * Rather than deleting each message separately, we pass the message
+		 * IDs and checksums as a pair of arrays, and delete every matching
+		 * message in one statement. (Thus, the weird query.) Very large
+		 * requests are split so no one statement gets too large.
+		 * 
+		 * The bodies of the deleted messages are released in the same
+		 * transaction.
 		 */
 		
 		Connection c = null;
 		PreparedStatement ps = null;
-		ResultSet rs = null;
+		int deleted = 0;
 
 		try {
-			int count = 0;
 			c = Database.get();
-			ps = c.prepareStatement(
-					"DELETE FROM Messages " +
-					"WHERE messageid IN " +
-					"    (SELECT Messages.messageid " + 
-					"     FROM Messages, Devices " +
-					"     WHERE Messages.messageid = ? " +
-					"     AND Messages.checksum = ? " +
-					"     AND Devices.deviceid = Messages.deviceid " + 
-					"     AND Devices.userid = ?)");
+			c.setAutoCommit(false);
+			ps = Database.prepare(c, Query.DROP_MESSAGES);
 			
-			for (Message msg: messages) {
-				/*
-				 * Get the device ID for this device. Verify it belongs to the
-				 * user specified
-				 */
+			for (int start = 0; start < len; start += MAXDROPROWS) {
+				int end = Math.min(len, start + MAXDROPROWS);
+				Integer[] idChunk = ids;
+				String[] checksumChunk = checksums;
+				if ((start > 0) || (end < len)) {
+					idChunk = Arrays.copyOfRange(ids, start, end);
+					checksumChunk = Arrays.copyOfRange(checksums, start, end);
+				}
 				
-				ps.setInt(1, msg.message);
-				ps.setString(2, msg.checksum);
+				Array idArray = c.createArrayOf("int4", idChunk);
+				Array checksumArray = c.createArrayOf("text", checksumChunk);
+				ps.setArray(1, idArray);
+				ps.setArray(2, checksumArray);
 				ps.setInt(3, userinfo.getUserID());
-				ps.addBatch();
-				++count;
-				if (count > 10240) {
-					ps.executeBatch();
-				}
-			}
-			if (count > 0) {
-				ps.executeBatch();
+				deleted += MessageBodyStore.drop(c, ps);
 			}
-		}
-		catch(BatchUpdateException batch) {
-			throw batch.getNextException();
+			
+			c.commit();
+			c.setAutoCommit(true);
 		}
 		finally {
-			if (rs != null) rs.close();
 			if (ps != null) ps.close();
 			if (c != null) c.close();
 		}
+		
+		return new SimpleReturnResult("deleted", deleted);
 	}
 }
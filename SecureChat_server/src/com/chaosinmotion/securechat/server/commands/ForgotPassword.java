@@ -30,6 +30,7 @@ import java.util.UUID;
 import org.json.JSONException;
 import org.json.JSONObject;
 import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
 import com.chaosinmotion.securechat.server.messages.MessageQueue;
 
 public class ForgotPassword
@@ -61,10 +62,7 @@ public class ForgotPassword
 
 		try {
 			c = Database.get();
-			ps = c.prepareStatement(
-					"SELECT userid " +
-					"FROM Users " + 
-					"WHERE username = ?");
+			ps = Database.prepare(c, Query.USERID_BY_NAME);
 			ps.setString(1, username);
 			rs = ps.executeQuery();
 			if (rs.next()) {
@@ -26,9 +26,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import org.json.JSONObject;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
+import com.chaosinmotion.securechat.server.cache.UserNameCache;
 import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
 import com.chaosinmotion.securechat.server.json.MessageReturnResult;
 import com.chaosinmotion.securechat.server.json.ReturnResult;
+import com.chaosinmotion.securechat.server.messages.MessageBodyStore;
+import com.chaosinmotion.securechat.server.messages.MessageQueue;
 import com.chaosinmotion.securechat.shared.Errors;
 
 public class GetMessages
@@ -37,12 +42,11 @@ public class GetMessages
 			JSONObject requestParams) throws ClassNotFoundException, SQLException, IOException
 	{
 		String deviceid = requestParams.optString("deviceid");
+		int after = requestParams.optInt("after", 0);
+		int limit = requestParams.optInt("limit", MessageQueue.PAGESIZE);
+		if ((limit <= 0) || (limit > MessageQueue.PAGESIZE)) limit = MessageQueue.PAGESIZE;
 		MessageReturnResult mrr = new MessageReturnResult();
 
-		/*
-		 * Save message to the database.
-		 */
-		
 		Connection c = null;
 		PreparedStatement ps = null;
 		ResultSet rs = null;
@@ -53,48 +57,54 @@ public class GetMessages
 			 * user specified
 			 */
 			c = Database.get();
-			ps = c.prepareStatement(
-					"SELECT deviceid " +
-					"FROM Devices " +
-					"WHERE deviceuuid = ? AND userid = ?"); 
-			ps.setString(1, deviceid);
-			ps.setInt(2, userinfo.getUserID());
-			rs = ps.executeQuery();
+			DeviceDirectory.Device device = DeviceDirectory.getShared().getDevice(c, deviceid);
 			
 			int deviceID = 0;
-			if (rs.next()) {
-				deviceID = rs.getInt(1);
+			if ((device != null) && (device.getUserID() == userinfo.getUserID())) {
+				deviceID = device.getDeviceID();
 			}
 			
-			rs.close();
-			ps.close();
 			if (deviceID == 0) {
 				return new ReturnResult(Errors.ERROR_UNKNOWNDEVICE,"Unknown device");
 			}
 			
 			/*
-			 * Run query to get messages
+			 * Run query to get the page of messages after the message ID
+			 * given. We ask for one more row than we return so we know if
+			 * there are more to come. The page is read in full here, so a
+			 * database error is returned as an error result rather than
+			 * cutting off a response already being written, and the
+			 * connection goes back to the pool before the client reads.
 			 */
 			
-			ps = c.prepareStatement("SELECT Messages.messageid, "
-					+ "    Messages.senderid, "
-					+ "    Users.username, "
-					+ "    Messages.toflag, "
-					+ "    Messages.received, "
-					+ "    Messages.message "
-					+ "FROM Messages, Users "
-					+ "WHERE Messages.deviceid = ? "
-					+ "  AND Messages.senderid = Users.userid");
+			UserNameCache names = UserNameCache.getShared();
+			ps = Database.prepare(c, Query.MESSAGES_FOR_DEVICE);
 			ps.setInt(1, deviceID);
+			ps.setInt(2, after);
+			ps.setInt(3, MessageQueue.ACKGRACE);
+			ps.setInt(4, limit + 1);
 			
+			int count = 0;
 			rs = ps.executeQuery();
 			while (rs.next()) {
+				if (++count > limit) {
+					mrr.setMore(after);
+					break;
+				}
+				
 				int messageID = rs.getInt(1);
+				after = messageID;
 				int senderID = rs.getInt(2);
-				String senderName = rs.getString(3);
-				boolean toflag = rs.getBoolean(4);
-				Timestamp received = rs.getTimestamp(5);
-				byte[] message = rs.getBytes(6);
+				boolean toflag = rs.getBoolean(3);
+				Timestamp received = rs.getTimestamp(4);
+				byte[] message = MessageBodyStore.join(rs.getBytes(5), rs.getBytes(6));
+				
+				/*
+				 * Messages from senders without an account (the admin
+				 * sender) are not delivered through this path.
+				 */
+				String senderName = names.getName(c, senderID);
+				if (senderName == null) continue;
 				
 				mrr.addMessage(messageID, senderID, senderName, toflag, received, message);
 			}
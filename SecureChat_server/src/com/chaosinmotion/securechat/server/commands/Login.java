@@ -25,7 +25,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import org.json.JSONObject;
+import com.chaosinmotion.securechat.server.cache.UserNameCache;
 import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
 import com.chaosinmotion.securechat.server.utils.Hash;
 import com.chaosinmotion.securechat.shared.Constants;
 
@@ -81,9 +83,7 @@ public class Login
 
 		try {
 			c = Database.get();
-			ps = c.prepareStatement("SELECT userid, password "
-					+ "FROM Users "
-					+ "WHERE username = ?");
+			ps = Database.prepare(c, Query.USER_LOGIN);
 			ps.setString(1, username);
 			rs = ps.executeQuery();
 			
@@ -113,6 +113,7 @@ public class Login
 				 */
 				
 				if (spassword.equalsIgnoreCase(password)) {
+					UserNameCache.getShared().put(userID, username);
 					return new UserInfo(userID);
 				}
 			}
@@ -25,6 +25,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import org.json.JSONObject;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
 import com.chaosinmotion.securechat.server.database.Database;
 
 /**
@@ -55,6 +56,10 @@ public class RemoveDevice
 			ps.setString(2, deviceid);
 			ps.execute();
 			
+			DeviceDirectory directory = DeviceDirectory.getShared();
+			directory.invalidateDevice(deviceid);
+			directory.invalidateUser(userinfo.getUserID());
+			
 			return true;
 		}
 		finally {
@@ -19,8 +19,12 @@
 
 package com.chaosinmotion.securechat.server.commands;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import com.chaosinmotion.securechat.server.json.ReturnResult;
@@ -29,12 +33,45 @@ import com.chaosinmotion.securechat.server.messages.MessageQueue;
 import com.chaosinmotion.securechat.server.utils.Base64;
 
 /**
- * Send message.
+ * Send message. The messages may be sent as JSON, or in binary with the
+ * content type Constants.MESSAGETYPE. In binary each message is a record:
+ * 
+ *	byte		0x30
+ *	UTF			device UUID
+ *	int			destuser, or 0
+ *	UTF			checksum
+ *	int			message length
+ *	byte[]		message
+ * 
+ * with records sent one after the other to the end of the request.
+ * 
+ * Version 2 envelopes share a single encrypted payload between all of the
+ * devices a message is sent to, and only the envelope header differs from
+ * device to device. So the payload only needs to be uploaded once, each
+ * message may refer to a payload. In JSON the payloads are sent as an
+ * array "payloads" of Base64 strings, and a message with the field
+ * "payload" set to an index in that array has the payload appended to its
+ * message. In binary a payload is the record
+ * 
+ *	byte		0x31
+ *	int			payload length
+ *	byte[]		payload
+ * 
+ * and a message which refers to a payload is sent as a 0x30 record with
+ * the type 0x32, followed by
+ * 
+ *	int			index of the payload, counting 0x31 records from 0
+ * 
+ * The server does not otherwise interpret messages. The payload is stored
+ * once for all of the messages which share it; see MessageBodyStore.
+ * 
  * @author woody
  *
  */
 public class SendMessages
 {
+	private static final int MAXMESSAGE = 1048576;	/* largest binary message */
+	
 	/*
 	 * Note: sentflag indicates the sender is the receiver of the message.
 	 * (That is, this message is being sent to the the owner of deviceid from
@@ -43,7 +80,21 @@ public class SendMessages
 	public static ReturnResult processRequest(Login.UserInfo userinfo,
 			JSONObject requestParams) throws ClassNotFoundException, SQLException, IOException
 	{
-		int messageid = 0;
+		/*
+		 * Gather the messages so they can be saved in a single batch
+		 */
+		
+		ArrayList<MessageQueue.OutgoingMessage> list = new ArrayList<MessageQueue.OutgoingMessage>();
+		MessageQueue.OutgoingMessage last = null;
+		
+		ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+		JSONArray parray = requestParams.optJSONArray("payloads");
+		if (parray != null) {
+			int i,len = parray.length();
+			for (i = 0; i < len; ++i) {
+				payloads.add(Base64.decode(parray.getString(i)));
+			}
+		}
 		
 		JSONArray array = requestParams.optJSONArray("messages");
 		int i,len = array.length();
@@ -55,6 +106,10 @@ public class SendMessages
 			int destuser = mrecord.optInt("destuser");
 			
 			byte[] mdata = Base64.decode(message);
+			byte[] body = null;
+			if (mrecord.has("payload")) {
+				body = getPayload(payloads, mrecord.getInt("payload"));
+			}
 			
 			/*
 			 * If destuser is not provided, then this indicates that the
@@ -63,11 +118,106 @@ public class SendMessages
 			 * the user in userinfo, the message is being sent to the
 			 * destuser.
 			 */
+			MessageQueue.OutgoingMessage m;
+			if (destuser == 0) {
+				m = new MessageQueue.OutgoingMessage(userinfo.getUserID(), deviceid, false, mdata, body, checksum);
+			} else {
+				m = new MessageQueue.OutgoingMessage(destuser, deviceid, true, mdata, body, checksum);
+				last = m;
+			}
+			list.add(m);
+		}
+		
+		return send(list, last);
+	}
+	
+	/**
+	 * Process the binary form of the request
+	 * @param userinfo
+	 * @param is
+	 * @return
+	 * @throws ClassNotFoundException
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public static ReturnResult processRequest(Login.UserInfo userinfo,
+			InputStream is) throws ClassNotFoundException, SQLException, IOException
+	{
+		ArrayList<MessageQueue.OutgoingMessage> list = new ArrayList<MessageQueue.OutgoingMessage>();
+		MessageQueue.OutgoingMessage last = null;
+		
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+		ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+		int type;
+		while (-1 != (type = dis.read())) {
+			if (type == 0x31) {
+				payloads.add(readData(dis));
+				continue;
+			}
+			if ((type != 0x30) && (type != 0x32)) throw new IOException("Unknown record type " + type);
+			
+			String deviceid = dis.readUTF();
+			int destuser = dis.readInt();
+			String checksum = dis.readUTF();
+			byte[] mdata = readData(dis);
+			byte[] body = null;
+			if (type == 0x32) {
+				body = getPayload(payloads, dis.readInt());
+			}
+			
+			MessageQueue.OutgoingMessage m;
 			if (destuser == 0) {
-				MessageQueue.getInstance().enqueue(userinfo.getUserID(), deviceid, false, mdata, checksum);
+				m = new MessageQueue.OutgoingMessage(userinfo.getUserID(), deviceid, false, mdata, body, checksum);
 			} else {
-				messageid = MessageQueue.getInstance().enqueue(destuser, deviceid, true, mdata, checksum);
+				m = new MessageQueue.OutgoingMessage(destuser, deviceid, true, mdata, body, checksum);
+				last = m;
 			}
+			list.add(m);
+		}
+		
+		return send(list, last);
+	}
+	
+	private static byte[] readData(DataInputStream dis) throws IOException
+	{
+		int length = dis.readInt();
+		if ((length < 0) || (length > MAXMESSAGE)) {
+			throw new IOException("Illegal message length " + length);
+		}
+		byte[] data = new byte[length];
+		dis.readFully(data);
+		return data;
+	}
+	
+	/**
+	 * Get the shared payload by index. Every message which refers to the
+	 * payload gets the same array, so it is only stored once.
+	 * @param payloads
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] getPayload(ArrayList<byte[]> payloads, int index) throws IOException
+	{
+		if ((index < 0) || (index >= payloads.size())) {
+			throw new IOException("Illegal payload index " + index);
+		}
+		return payloads.get(index);
+	}
+	
+	private static ReturnResult send(ArrayList<MessageQueue.OutgoingMessage> list,
+			MessageQueue.OutgoingMessage last) throws ClassNotFoundException, SQLException, IOException
+	{
+		int messageid = 0;
+		
+		MessageQueue.getInstance().enqueue(list);
+		
+		/*
+		 * We return the message ID of the last message sent to one of our
+		 * own devices
+		 */
+		if (last != null) {
+			messageid = last.getMessageID();
 		}
 		return new SimpleReturnResult("messageid",messageid);
 	}
@@ -54,24 +54,16 @@ public class UpdateForgottenPassword
 
 		try {
 			/*
-			 * Delete old requests
+			 * Verify the token we passed back was correct. Expired tokens
+			 * are deleted periodically by the MaintenanceScheduler.
 			 */
 			c = Database.get();
-			ps = c.prepareStatement(
-					"DELETE FROM forgotpassword WHERE expires < LOCALTIMESTAMP");
-			ps.execute();
-			
-			ps.close();
-			ps = null;
-			
-			/*
-			 * Verify the token we passed back was correct
-			 */
 			ps = c.prepareStatement(
 					"SELECT token "
 					+ "FROM forgotpassword "
 					+ "WHERE userid = ? "
-					+ "AND token = ?");
+					+ "AND token = ? "
+					+ "AND expires >= LOCALTIMESTAMP");
 			ps.setInt(1, userinfo.getUserID());
 			ps.setString(2, requestToken);
 			rs = ps.executeQuery();
@@ -112,6 +112,28 @@ public class Config
         }
         return gProperties;
     }
+
+    /**
+     * Get an integer property, returning the default value if the property
+     * is missing or cannot be parsed
+     * @param key
+     * @param defValue
+     * @return
+     */
+    public static int getInt(String key, int defValue)
+    {
+        Properties p = get();
+        if (p == null) return defValue;
+
+        String value = p.getProperty(key);
+        if (value == null) return defValue;
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException ex) {
+            return defValue;
+        }
+    }
 }
 
 
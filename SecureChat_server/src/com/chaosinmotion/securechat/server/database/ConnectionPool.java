@@ -0,0 +1,556 @@
+/*	SecureChat: A secure chat system which permits secure communications
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it
+ *	under the terms of the GNU General Public License as published by the
+ *	Free Software Foundation, either version 3 of the License, or (at your
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.database;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.maintenance.MaintenanceScheduler;
+
+/**
+ * A small bounded pool of database connections. Prior to this, every call
+ * to Database.get() opened a new connection to the database, which meant
+ * every command paid for a full connect and login handshake.
+ *
+ * The pool holds at most a fixed number of connections. Idle connections
+ * are handed out in most-recently-used order, are validated before being
+ * handed out if they have been sitting idle for a while, and are closed if
+ * they sit idle too long. If all connections are in use, callers wait up to
+ * a configurable timeout before we give up.
+ *
+ * The connection returned by borrow() is a thin wrapper around the real
+ * connection; calling close() on the wrapper returns the connection to the
+ * pool rather than closing it. This means the existing pattern of opening
+ * a connection in a try block and closing it in the finally block works as
+ * before.
+ *
+ * The following properties can be set in securechat.properties:
+ *
+ * dbpoolsize: the maximum number of open connections (default 10)
+ * dbpoolidle: seconds before an idle connection is closed (default 300)
+ * dbpooltimeout: milliseconds to wait for a free connection (default 10000)
+ * dbpoolvalidate: milliseconds a connection may sit idle before we validate
+ * it on borrow (default 5000)
+ * dbstatementcache: the number of prepared statements cached for each
+ * connection (default 32)
+ *
+ * @author woody
+ *
+ */
+public class ConnectionPool
+{
+    private static final int VALIDATETIMEOUT = 2;       /* seconds */
+
+    private static volatile ConnectionPool shared;
+
+    private final int maxSize;
+    private final long idleTimeout;
+    private final long borrowTimeout;
+    private final long validateIdle;
+    private final int statementCacheSize;
+
+    private final ArrayDeque<PooledConnection> idle;
+    private int active;
+    private int waiters;
+    private boolean closed;
+
+    /*
+     *  Statistics
+     */
+    private long borrowCount;
+    private long borrowTime;
+    private long maxBorrowTime;
+    private long timeoutCount;
+    private long createCount;
+    private long discardCount;
+
+    /**
+     * Internal record tracking a real database connection held by the pool.
+     */
+    static class PooledConnection
+    {
+        final Connection connection;
+        final StatementCache statements;
+        long lastUsed;
+        boolean broken;
+
+        PooledConnection(Connection c, int cacheSize)
+        {
+            connection = c;
+            statements = new StatementCache(this, cacheSize);
+            lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Examine an exception thrown while using this connection. SQL state
+         * class 08 is a connection exception; if we see one, the connection
+         * should not go back into the pool.
+         * @param th
+         */
+        void checkException(Throwable th)
+        {
+            if (th instanceof SQLException) {
+                String state = ((SQLException)th).getSQLState();
+                if ((state != null) && state.startsWith("08")) {
+                    broken = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The handle given to callers. Each borrow gets a new handle, so that
+     * a caller which accidentally uses a connection after closing it cannot
+     * interfere with the next caller to borrow the same connection.
+     */
+    private class Handle implements InvocationHandler
+    {
+        private PooledConnection pooled;
+
+        Handle(PooledConnection pc)
+        {
+            pooled = pc;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (name.equals("close") && (args == null)) {
+                PooledConnection pc;
+                synchronized(this) {
+                    pc = pooled;
+                    pooled = null;
+                }
+                if (pc != null) release(pc);
+                return null;
+            } else if (name.equals("isClosed") && (args == null)) {
+                synchronized(this) {
+                    if (pooled == null) return Boolean.TRUE;
+                }
+            } else if (name.equals("equals") && (args != null) && (args.length == 1)) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode") && (args == null)) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString") && (args == null)) {
+                return "Pooled connection " + System.identityHashCode(proxy);
+            }
+
+            PooledConnection pc;
+            synchronized(this) {
+                pc = pooled;
+            }
+            if (pc == null) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+
+            try {
+                return method.invoke(pc.connection, args);
+            }
+            catch (InvocationTargetException ex) {
+                Throwable th = ex.getCause();
+                pc.checkException(th);
+                throw th;
+            }
+        }
+
+        /**
+         * Borrow a cached statement for this connection
+         */
+        PreparedStatement prepare(Query q) throws SQLException
+        {
+            PooledConnection pc;
+            synchronized(this) {
+                pc = pooled;
+            }
+            if (pc == null) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+
+            try {
+                return pc.statements.prepare(q);
+            }
+            catch (SQLException ex) {
+                pc.checkException(ex);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Get the shared connection pool. The first time this is called we
+     * bootstrap the database schema, so the schema check is not part of
+     * opening each connection.
+     *
+     * This is called for every connection we hand out, so once the pool
+     * exists we return it without taking a lock.
+     * @return
+     * @throws SQLException
+     * @throws ClassNotFoundException
+     * @throws IOException
+     */
+    public static ConnectionPool getShared() throws SQLException, ClassNotFoundException, IOException
+    {
+        ConnectionPool pool = shared;
+        if (pool != null) return pool;
+
+        synchronized(ConnectionPool.class) {
+            if (shared == null) {
+                DatabaseBuilder.bootstrap();
+                shared = new ConnectionPool();
+
+                /*
+                 * Start our periodic housekeeping, which includes closing
+                 * connections which have been idle too long.
+                 */
+                MaintenanceScheduler.getShared();
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Return the shared pool if it has been created, without creating it.
+     * Used by the status page so we do not open the database just to report
+     * statistics.
+     * @return
+     */
+    public static ConnectionPool peekShared()
+    {
+        return shared;
+    }
+
+    private ConnectionPool()
+    {
+        maxSize = Math.max(1, Config.getInt("dbpoolsize", 10));
+        idleTimeout = Config.getInt("dbpoolidle", 300) * 1000L;
+        borrowTimeout = Config.getInt("dbpooltimeout", 10000);
+        validateIdle = Config.getInt("dbpoolvalidate", 5000);
+        statementCacheSize = Math.max(1, Config.getInt("dbstatementcache", 32));
+
+        idle = new ArrayDeque<PooledConnection>();
+    }
+
+    /**
+     * Borrow a connection from the pool. The connection must be closed when
+     * the caller is done with it, which returns it to the pool.
+     * @return
+     * @throws SQLException
+     * @throws ClassNotFoundException
+     * @throws IOException
+     */
+    public Connection borrow() throws SQLException, ClassNotFoundException, IOException
+    {
+        long start = System.nanoTime();
+        PooledConnection pc = null;
+
+        for (;;) {
+            boolean create = false;
+
+            synchronized(this) {
+                long deadline = start + borrowTimeout * 1000000L;
+                while (!closed && idle.isEmpty() && (active >= maxSize)) {
+                    long wait = (deadline - System.nanoTime()) / 1000000L;
+                    if (wait <= 0) {
+                        ++timeoutCount;
+                        throw new SQLException("Timed out waiting for a database connection");
+                    }
+                    ++waiters;
+                    try {
+                        wait(wait);
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted waiting for a database connection");
+                    }
+                    finally {
+                        --waiters;
+                    }
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+
+                ++active;
+                pc = idle.pollFirst();
+                if (pc == null) create = true;
+            }
+
+            /*
+             * Open or validate outside of our lock, so other threads can
+             * return connections while we wait on the network.
+             */
+            try {
+                if (create) {
+                    pc = new PooledConnection(DatabaseBuilder.openConnection(), statementCacheSize);
+                    synchronized(this) {
+                        ++createCount;
+                    }
+                    break;
+                }
+
+                long now = System.currentTimeMillis();
+                if ((now - pc.lastUsed < validateIdle) || pc.connection.isValid(VALIDATETIMEOUT)) {
+                    break;
+                }
+            }
+            catch (SQLException ex) {
+                if (create) {
+                    drop(null);
+                    throw ex;
+                }
+            }
+            catch (ClassNotFoundException | IOException | RuntimeException ex) {
+                drop(create ? null : pc);
+                throw ex;
+            }
+
+            /*
+             * Validation failed; throw the connection away and try again.
+             */
+            drop(pc);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        synchronized(this) {
+            ++borrowCount;
+            borrowTime += elapsed;
+            if (maxBorrowTime < elapsed) maxBorrowTime = elapsed;
+        }
+
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new Handle(pc));
+    }
+
+    /**
+     * Prepare a statement from the Query registry. If the connection came
+     * from this pool, the statement comes from the connection's statement
+     * cache; otherwise it is simply prepared.
+     * @param c
+     * @param q
+     * @return
+     * @throws SQLException
+     */
+    static PreparedStatement prepare(Connection c, Query q) throws SQLException
+    {
+        if (Proxy.isProxyClass(c.getClass())) {
+            InvocationHandler h = Proxy.getInvocationHandler(c);
+            if (h instanceof Handle) {
+                return ((Handle)h).prepare(q);
+            }
+        }
+        return c.prepareStatement(q.getSQL());
+    }
+
+    /**
+     * Return a connection to the pool. If the caller left a transaction open
+     * we roll it back, so the next borrower starts with a clean connection.
+     * @param pc
+     */
+    private void release(PooledConnection pc)
+    {
+        boolean discard = pc.broken;
+        if (!discard) {
+            try {
+                if (pc.connection.isClosed()) {
+                    discard = true;
+                } else if (!pc.connection.getAutoCommit()) {
+                    pc.connection.rollback();
+                    pc.connection.setAutoCommit(true);
+                }
+            }
+            catch (SQLException ex) {
+                discard = true;
+            }
+        }
+
+        if (discard) {
+            drop(pc);
+            return;
+        }
+
+        boolean shutdown;
+        synchronized(this) {
+            --active;
+            shutdown = closed;
+            if (!shutdown) {
+                pc.lastUsed = System.currentTimeMillis();
+                idle.addFirst(pc);
+            }
+            notify();
+        }
+        if (shutdown) closeQuietly(pc);
+    }
+
+    /**
+     * Drop a connection that was checked out, freeing its slot
+     * @param pc The connection to close, or null if we never obtained one
+     */
+    private void drop(PooledConnection pc)
+    {
+        synchronized(this) {
+            --active;
+            if (pc != null) ++discardCount;
+            notify();
+        }
+        if (pc != null) closeQuietly(pc);
+    }
+
+    private static void closeQuietly(PooledConnection pc)
+    {
+        try {
+            pc.connection.close();
+        }
+        catch (SQLException ex) {
+            // ignore.
+        }
+    }
+
+    /**
+     * Close connections that have been idle longer than the idle timeout.
+     * Connections are returned to the front of the idle queue, so the oldest
+     * connections are at the end. This is run periodically by the
+     * MaintenanceScheduler.
+     * @return The number of connections closed
+     */
+    public int evictIdle()
+    {
+        ArrayList<PooledConnection> expired = new ArrayList<PooledConnection>();
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+
+        synchronized(this) {
+            Iterator<PooledConnection> iter = idle.descendingIterator();
+            while (iter.hasNext()) {
+                PooledConnection pc = iter.next();
+                if (pc.lastUsed >= cutoff) break;
+                iter.remove();
+                expired.add(pc);
+                ++discardCount;
+            }
+        }
+
+        for (PooledConnection pc: expired) {
+            closeQuietly(pc);
+        }
+        return expired.size();
+    }
+
+    /**
+     * Shut down the pool, closing all idle connections. Connections which
+     * are checked out are closed as they are returned.
+     */
+    public void close()
+    {
+        ArrayList<PooledConnection> list;
+        synchronized(this) {
+            closed = true;
+            list = new ArrayList<PooledConnection>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (PooledConnection pc: list) {
+            closeQuietly(pc);
+        }
+    }
+
+    /*
+     *  Pool statistics
+     */
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Number of connections currently checked out
+     * @return
+     */
+    public synchronized int getActiveCount()
+    {
+        return active;
+    }
+
+    /**
+     * Number of open connections waiting in the pool
+     * @return
+     */
+    public synchronized int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    /**
+     * Number of threads waiting for a connection
+     * @return
+     */
+    public synchronized int getWaiterCount()
+    {
+        return waiters;
+    }
+
+    public synchronized long getBorrowCount()
+    {
+        return borrowCount;
+    }
+
+    public synchronized long getTimeoutCount()
+    {
+        return timeoutCount;
+    }
+
+    public synchronized long getCreateCount()
+    {
+        return createCount;
+    }
+
+    public synchronized long getDiscardCount()
+    {
+        return discardCount;
+    }
+
+    /**
+     * Average time in microseconds spent obtaining a connection
+     * @return
+     */
+    public synchronized long getAverageBorrowTime()
+    {
+        if (borrowCount == 0) return 0;
+        return borrowTime / borrowCount / 1000;
+    }
+
+    /**
+     * Longest time in microseconds spent obtaining a connection
+     * @return
+     */
+    public synchronized long getMaxBorrowTime()
+    {
+        return maxBorrowTime / 1000;
+    }
+}
@@ -29,14 +29,32 @@ public class Database
 {
     /**
      * Initialize the database and returns a database connection 
-     * that can be used for managing the database
+     * that can be used for managing the database. The connection is
+     * borrowed from the shared connection pool; closing it returns it
+     * to the pool.
      * @return
      * @throws IOException 
      * @throws ClassNotFoundException 
      */
     public static Connection get() throws SQLException, ClassNotFoundException, IOException
     {
-        return DatabaseBuilder.openConnection();
+        return ConnectionPool.getShared().borrow();
+    }
+    
+    /**
+     * Prepare one of the statements in the Query registry. Statements are
+     * cached per connection, so this avoids having the database parse and
+     * plan the same statement on every request. As with any other statement
+     * the result must be closed when done; this returns the statement to
+     * the cache.
+     * @param c
+     * @param q
+     * @return
+     * @throws SQLException
+     */
+    public static PreparedStatement prepare(Connection c, Query q) throws SQLException
+    {
+        return ConnectionPool.prepare(c, q);
     }
     
     /**
@@ -50,13 +68,18 @@ public class Database
     {
     	Connection c = get();
 		int version = 0;
-        PreparedStatement ps = c.prepareStatement("SELECT MAX(version) FROM DBVERSION");
-        ResultSet rs = ps.executeQuery();
-        if (rs.next()) {
-            version = rs.getInt(1);
+        try {
+            PreparedStatement ps = c.prepareStatement("SELECT MAX(version) FROM DBVERSION");
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                version = rs.getInt(1);
+            }
+            rs.close();
+            ps.close();
+        }
+        finally {
+            c.close();
         }
-        rs.close();
-        ps.close();
         return version;
     }
 }
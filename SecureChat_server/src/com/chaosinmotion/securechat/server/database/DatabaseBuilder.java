@@ -37,8 +37,17 @@ import com.chaosinmotion.securechat.server.config.Config;
 public class DatabaseBuilder
 {
     private static boolean gInit = false;
-    
-    public synchronized static Connection openConnection() throws ClassNotFoundException, IOException, SQLException
+
+    /**
+     * Open a new connection to the database. This is used by the connection
+     * pool to create connections; everything else should obtain connections
+     * through Database.get().
+     * @return
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    static Connection openConnection() throws ClassNotFoundException, IOException, SQLException
     {
         Class.forName("org.postgresql.Driver"); 
 
@@ -46,11 +55,23 @@ public class DatabaseBuilder
         String url = p.getProperty("dburl");
         String uname = p.getProperty("username");
         String pword = p.getProperty("password");
-        Connection conn = DriverManager.getConnection(url,uname,pword);
-        
-        if (!gInit) {
-            gInit = true;
-            
+        return DriverManager.getConnection(url,uname,pword);
+    }
+
+    /**
+     * Bootstrap the database schema. This is run once on startup, before
+     * the connection pool hands out its first connection, and brings the
+     * schema up to the latest version.
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws SQLException
+     */
+    synchronized static void bootstrap() throws ClassNotFoundException, IOException, SQLException
+    {
+        if (gInit) return;
+
+        Connection conn = openConnection();
+        try {
             /*
              * Start with bootstrap of version file
              */
@@ -70,13 +91,28 @@ public class DatabaseBuilder
                 exists = false;
             }
             
+            /*
+             * Each schema file runs in its own transaction, along with the
+             * update to DBVERSION, so a file which fails part way through
+             * leaves the database as it was, to be retried on the next
+             * start.
+             */
+            
+            conn.setAutoCommit(false);
             if (!exists) {
                 runSchemaFile(conn,"coreschema.sql");
+                conn.commit();
             }
             runUpdateSchema(version,conn);
+            gInit = true;
+        }
+        finally {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            conn.close();
         }
-        
-        return conn;
     }
    
     /**
@@ -114,7 +150,8 @@ public class DatabaseBuilder
     
     /**
      * This loads the version stored in the DBVERSION table, and executes the various
-     * SQL files as needed to bring the version to the latest version
+     * SQL files as needed to bring the version to the latest version. Each file is
+     * committed with its DBVERSION entry.
      * @param conn
      * @throws SQLException
      * @throws IOException
@@ -133,6 +170,7 @@ public class DatabaseBuilder
         int i = version+1;
         while (runSchemaFile(conn,"schema" + i + ".sql")) {
             s.executeUpdate("INSERT INTO DBVERSION ( version ) VALUES ( " + i + " )");
+            conn.commit();
             ++i;
         }
         s.close();
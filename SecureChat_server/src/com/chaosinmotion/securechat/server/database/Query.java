@@ -0,0 +1,197 @@
+/*	SecureChat: A secure chat system which permits secure communications
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it
+ *	under the terms of the GNU General Public License as published by the
+ *	Free Software Foundation, either version 3 of the License, or (at your
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.database;
+
+/**
+ * The registry of SQL statements which are run on nearly every request.
+ * Statements named here are prepared once per pooled connection and kept
+ * in that connection's statement cache, so the database does not need to
+ * parse and plan them on each call. Obtain one through Database.prepare().
+ *
+ * Statements which are only run occasionally (such as those used to create
+ * an account) are simply prepared inline.
+ *
+ * @author woody
+ *
+ */
+public enum Query
+{
+    /*
+     *  Users
+     */
+
+    USER_LOGIN(
+            "SELECT userid, password " +
+            "FROM Users " +
+            "WHERE username = ?"),
+
+    USER_PASSWORD(
+            "SELECT password " +
+            "FROM Users " +
+            "WHERE userid = ?"),
+
+    USERID_BY_NAME(
+            "SELECT userid " +
+            "FROM Users " +
+            "WHERE username = ?"),
+
+    USERNAME_BY_ID(
+            "SELECT username FROM users WHERE userid = ?"),
+
+    /*
+     *  Devices
+     */
+
+    DEVICE_BY_UUID(
+            "SELECT deviceid, userid, deviceuuid, publickey, envelopes " +
+            "FROM Devices " +
+            "WHERE deviceuuid = ?"),
+
+    DEVICES_BY_UUIDS(
+            "SELECT deviceid, userid, deviceuuid, publickey, envelopes " +
+            "FROM Devices " +
+            "WHERE deviceuuid = ANY(?)"),
+
+    DEVICES_BY_USER(
+            "SELECT deviceid, userid, deviceuuid, publickey, envelopes " +
+            "FROM Devices " +
+            "WHERE userid = ?"),
+
+    /*
+     *  Messages
+     */
+
+    ALLOCATE_MESSAGEIDS(
+            "SELECT nextval('Messages_messageid_seq') " +
+            "FROM generate_series(1, ?)"),
+
+    MESSAGES_FOR_DEVICE(
+            "SELECT Messages.messageid, Messages.senderid, Messages.toflag, " +
+            "    Messages.received, Messages.message, MessageBodies.body " +
+            "FROM Messages LEFT JOIN MessageBodies " +
+            "    ON MessageBodies.bodyhash = Messages.bodyhash " +
+            "WHERE Messages.deviceid = ? " +
+            "AND Messages.messageid > ? " +
+            "AND NOT EXISTS " +
+            "    (SELECT 1 FROM DeliveryCursors " +
+            "     WHERE DeliveryCursors.deviceid = Messages.deviceid " +
+            "     AND Messages.messageid <= DeliveryCursors.messageid " +
+            "     AND Messages.received < DeliveryCursors.acked - ? * interval '1 millisecond') " +
+            "ORDER BY Messages.messageid " +
+            "LIMIT ?"),
+
+    MESSAGE_CHECKSUM(
+            "SELECT messageid " +
+            "FROM Messages " +
+            "WHERE deviceid = ? " +
+            "AND messageid = ? " +
+            "AND checksum = ?"),
+
+    ACK_MESSAGES(
+            "INSERT INTO DeliveryCursors " +
+            "    ( deviceid, messageid, acked ) " +
+            "SELECT ?, LEAST(?, COALESCE(MAX(messageid), 0)), ? " +
+            "FROM Messages " +
+            "WHERE deviceid = ? " +
+            "ON CONFLICT ( deviceid ) DO UPDATE " +
+            "SET messageid = GREATEST(DeliveryCursors.messageid, EXCLUDED.messageid), " +
+            "    acked = GREATEST(DeliveryCursors.acked, EXCLUDED.acked) " +
+            "RETURNING messageid"),
+
+    DROP_RECENT_ACKED(
+            "DELETE FROM Messages " +
+            "WHERE deviceid = ? " +
+            "AND messageid <= ? " +
+            "AND received >= ? " +
+            "RETURNING bodyhash"),
+
+    DROP_MESSAGES(
+            "DELETE FROM Messages " +
+            "USING unnest(?::int[], ?::text[]) AS Acks ( messageid, checksum ), " +
+            "    Devices " +
+            "WHERE Messages.messageid = Acks.messageid " +
+            "AND Messages.checksum = Acks.checksum " +
+            "AND Devices.deviceid = Messages.deviceid " +
+            "AND Devices.userid = ? " +
+            "RETURNING Messages.bodyhash"),
+
+    DROP_DEVICE_MESSAGES(
+            "DELETE FROM Messages " +
+            "USING Devices " +
+            "WHERE Messages.deviceid = Devices.deviceid " +
+            "AND Devices.deviceuuid = ? " +
+            "RETURNING Messages.bodyhash"),
+
+    DROP_EXPIRED(
+            "DELETE FROM Messages " +
+            "WHERE received < ? " +
+            "AND messageid IN " +
+            "    (SELECT messageid " +
+            "     FROM Messages " +
+            "     WHERE received < ? " +
+            "     LIMIT ?)"),
+
+    DROP_ACKED(
+            "DELETE FROM Messages " +
+            "WHERE ( deviceid, messageid ) IN " +
+            "    (SELECT Messages.deviceid, Messages.messageid " +
+            "     FROM Messages, DeliveryCursors " +
+            "     WHERE Messages.deviceid = DeliveryCursors.deviceid " +
+            "     AND Messages.messageid <= DeliveryCursors.messageid " +
+            "     AND Messages.received < DeliveryCursors.acked - ? * interval '1 millisecond' " +
+            "     LIMIT ?) " +
+            "RETURNING bodyhash"),
+
+    /*
+     *  Message bodies
+     */
+
+    INSERT_BODY(
+            "INSERT INTO MessageBodies " +
+            "    ( bodyhash, body, refcount, created ) " +
+            "VALUES " +
+            "    ( ?, ?, ?, ? ) " +
+            "ON CONFLICT ( bodyhash ) DO UPDATE " +
+            "SET refcount = MessageBodies.refcount + EXCLUDED.refcount, " +
+            "    created = GREATEST(MessageBodies.created, EXCLUDED.created)"),
+
+    RELEASE_BODIES(
+            "UPDATE MessageBodies " +
+            "SET refcount = MessageBodies.refcount - Released.refs " +
+            "FROM unnest(?::text[], ?::int[]) AS Released ( bodyhash, refs ) " +
+            "WHERE MessageBodies.bodyhash = Released.bodyhash"),
+
+    DROP_RELEASED(
+            "DELETE FROM MessageBodies " +
+            "WHERE bodyhash = ANY(?) " +
+            "AND refcount <= 0");
+
+    private final String sql;
+
+    private Query(String s)
+    {
+        sql = s;
+    }
+
+    public String getSQL()
+    {
+        return sql;
+    }
+}
@@ -0,0 +1,236 @@
+/*	SecureChat: A secure chat system which permits secure communications
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it
+ *	under the terms of the GNU General Public License as published by the
+ *	Free Software Foundation, either version 3 of the License, or (at your
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.PGStatement;
+
+/**
+ * Per-connection cache of prepared statements from the Query registry.
+ * Each pooled connection owns one of these. The cache is bounded; when it
+ * fills we close the least recently used statement.
+ *
+ * Statements handed out by the cache are wrapped so that calling close()
+ * returns the statement to the cache rather than closing it. If the same
+ * statement is requested while it is still in use (for example, while
+ * the caller is iterating a result set from it), a new uncached statement
+ * is prepared instead.
+ *
+ * We also ask the PostgreSQL driver to use a server-side prepared statement
+ * right away, rather than waiting for the statement to be executed a few
+ * times first.
+ *
+ * A pooled connection is only used by one thread at a time, so this class
+ * is not thread safe. The statistics are shared across all connections.
+ *
+ * @author woody
+ *
+ */
+public class StatementCache
+{
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private final ConnectionPool.PooledConnection owner;
+    private final LinkedHashMap<Query,CachedStatement> cache;
+
+    /**
+     * A cached statement
+     */
+    private static class CachedStatement
+    {
+        final PreparedStatement statement;
+        boolean inUse;
+        boolean evicted;
+
+        CachedStatement(PreparedStatement ps)
+        {
+            statement = ps;
+        }
+    }
+
+    /**
+     * Wrapper for a borrowed statement. As with connections, each borrow
+     * gets its own handle.
+     */
+    private class Handle implements InvocationHandler
+    {
+        private CachedStatement entry;
+
+        Handle(CachedStatement e)
+        {
+            entry = e;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (name.equals("close") && (args == null)) {
+                CachedStatement e = entry;
+                entry = null;
+                if (e != null) release(e);
+                return null;
+            } else if (name.equals("isClosed") && (args == null)) {
+                if (entry == null) return Boolean.TRUE;
+            } else if (name.equals("equals") && (args != null) && (args.length == 1)) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode") && (args == null)) {
+                return System.identityHashCode(proxy);
+            }
+
+            CachedStatement e = entry;
+            if (e == null) {
+                throw new SQLException("Statement has been closed");
+            }
+
+            try {
+                return method.invoke(e.statement, args);
+            }
+            catch (InvocationTargetException ex) {
+                Throwable th = ex.getCause();
+                owner.checkException(th);
+                throw th;
+            }
+        }
+    }
+
+    StatementCache(ConnectionPool.PooledConnection pc, final int maxSize)
+    {
+        owner = pc;
+        cache = new LinkedHashMap<Query,CachedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Query,CachedStatement> eldest)
+            {
+                if (size() <= maxSize) return false;
+
+                /*
+                 * Close the statement unless someone is still using it, in
+                 * which case it is closed when it is returned.
+                 */
+                CachedStatement e = eldest.getValue();
+                e.evicted = true;
+                if (!e.inUse) closeQuietly(e.statement);
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Borrow a prepared statement for the query. The statement must be
+     * closed when the caller is done with it.
+     * @param q
+     * @return
+     * @throws SQLException
+     */
+    PreparedStatement prepare(Query q) throws SQLException
+    {
+        CachedStatement e = cache.get(q);
+        if (e == null) {
+            misses.incrementAndGet();
+            PreparedStatement ps = owner.connection.prepareStatement(q.getSQL());
+            if (ps instanceof PGStatement) {
+                ((PGStatement)ps).setPrepareThreshold(1);
+            }
+            e = new CachedStatement(ps);
+            cache.put(q, e);
+        } else if (e.inUse) {
+            /*
+             * Still in use by the caller; hand out a plain statement.
+             */
+            misses.incrementAndGet();
+            return owner.connection.prepareStatement(q.getSQL());
+        } else {
+            hits.incrementAndGet();
+        }
+
+        e.inUse = true;
+        return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, new Handle(e));
+    }
+
+    /**
+     * Return a statement to the cache, clearing its parameters for the
+     * next caller
+     * @param e
+     */
+    private void release(CachedStatement e)
+    {
+        e.inUse = false;
+        if (e.evicted) {
+            closeQuietly(e.statement);
+            return;
+        }
+
+        try {
+            e.statement.clearParameters();
+            e.statement.clearBatch();
+        }
+        catch (SQLException ex) {
+            /*
+             * The statement is unusable; forget about it.
+             */
+            e.evicted = true;
+            cache.values().remove(e);
+            closeQuietly(e.statement);
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement ps)
+    {
+        try {
+            ps.close();
+        }
+        catch (SQLException ex) {
+            // ignore.
+        }
+    }
+
+    /*
+     *  Statistics
+     */
+
+    public static long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public static long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public static long getEvictionCount()
+    {
+        return evictions.get();
+    }
+}
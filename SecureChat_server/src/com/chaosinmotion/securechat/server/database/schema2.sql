@@ -0,0 +1,7 @@
+#	schema2.sql
+#
+#		Index the Messages table by the time the message was received. The
+#	retention sweeper deletes expired messages a batch at a time, and each
+#	batch needs to find the oldest messages without scanning the table.
+
+CREATE INDEX MessagesIX3 on Messages ( received );
@@ -0,0 +1,63 @@
+#	schema3.sql
+#
+#		Partition the Messages table by the day the message was received.
+#	This requires PostgreSQL 11 or later.
+#
+#		Messages are constantly inserted and deleted, and as a single table
+#	Messages bloats faster than autovacuum can reclaim it. Partitioned by
+#	day, expired messages are removed by dropping a whole partition, which
+#	leaves nothing behind to vacuum.
+#
+#		Daily partitions are named Messages_yyyymmdd, covering the UTC day
+#	given, and are created ahead of time by the server's PartitionManager.
+#	Rows which fall outside every daily partition (including every message
+#	we hold at the time of this upgrade) land in MessagesDefault, which is
+#	swept a batch at a time by the RetentionSweeper.
+#
+#		Note that the primary key of a partitioned table must include the
+#	partition column, so the key is now (messageid, received). Message IDs
+#	still come from the same sequence and are still unique.
+
+#	Stop before changing anything if partitioning is not available. (The
+#	file also runs in a single transaction, so any later failure is rolled
+#	back as well.)
+
+DO $$ BEGIN IF current_setting('server_version_num')::int < 110000 THEN RAISE EXCEPTION 'SecureChat requires PostgreSQL 11 or later'; END IF; END $$;
+
+#	Move the old table aside, keeping its sequence
+
+ALTER SEQUENCE Messages_messageid_seq OWNED BY NONE;
+ALTER TABLE Messages RENAME TO MessagesOld;
+ALTER TABLE MessagesOld RENAME CONSTRAINT messages_pkey TO messagesold_pkey;
+
+#	Build the partitioned table
+
+CREATE TABLE Messages (
+	messageid int not null default nextval('Messages_messageid_seq'),
+	deviceid int not null,
+	senderid int not null,
+	toflag boolean not null,
+	received timestamp without time zone not null,
+	checksum text not null,
+	message bytea not null,
+	primary key ( messageid, received )
+) PARTITION BY RANGE ( received );
+
+ALTER SEQUENCE Messages_messageid_seq OWNED BY Messages.messageid;
+
+CREATE TABLE MessagesDefault PARTITION OF Messages DEFAULT;
+
+#	Copy the messages across; these all land in MessagesDefault
+
+INSERT INTO Messages ( messageid, deviceid, senderid, toflag, received, checksum, message )
+SELECT messageid, deviceid, senderid, toflag, received, checksum, message
+FROM MessagesOld;
+
+DROP TABLE MessagesOld;
+
+#	Indexes created on Messages are created on every partition, including
+#	partitions added later.
+
+CREATE INDEX MessagesIX1 on Messages ( deviceid );
+CREATE INDEX MessagesIX2 on Messages ( senderid );
+CREATE INDEX MessagesIX3 on Messages ( received );
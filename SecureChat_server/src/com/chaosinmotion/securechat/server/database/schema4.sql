@@ -0,0 +1,10 @@
+#	schema4.sql
+#
+#		Index the Messages table by device and message ID. Backlogged messages
+#	are read a page at a time in message ID order, and each page picks up
+#	after the last message ID of the page before. This index serves those
+#	reads without sorting, and also serves every lookup by device alone, so
+#	it replaces the index on deviceid.
+
+CREATE INDEX MessagesIX4 on Messages ( deviceid, messageid );
+DROP INDEX MessagesIX1;
@@ -0,0 +1,13 @@
+#	schema5.sql
+#
+#		Delivery cursors. A device may acknowledge every message up to a 
+#	message ID in one messages/ackmessages call, rather than dropping each 
+#	message by its checksum. This records the highest message ID each device 
+#	has acknowledged; messages at or below it are no longer delivered, and 
+#	are deleted in bulk by the server's MaintenanceScheduler.
+
+CREATE TABLE DeliveryCursors (
+	deviceid int not null primary key,
+	messageid int not null,
+	acked timestamp without time zone not null
+);
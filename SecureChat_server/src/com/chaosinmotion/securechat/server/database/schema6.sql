@@ -0,0 +1,31 @@
+#	schema6.sql
+#
+#		Message bodies. A version 2 envelope sent to several devices has a
+#	different header for each device but the same encrypted payload. Rather
+#	than store a copy of the payload in every Messages row, each distinct
+#	payload is stored once in MessageBodies, keyed by its SHA-256 hash, and
+#	each Messages row holds only its header and the hash of its body. The
+#	message delivered to the device is the header followed by the body.
+#
+#		refcount is the number of Messages rows which refer to the body. It
+#	is reduced as messages are dropped or acknowledged, and the body is 
+#	deleted when it reaches zero. created is the time the body was last 
+#	referenced; the MaintenanceScheduler removes bodies older than the 
+#	retention period, whose messages have all expired.
+#
+#		The refcount is updated once for each message delivered. Storing
+#	every body out of line (toast_tuple_target) means those updates only
+#	rewrite the small row, not the body. This requires PostgreSQL 11.
+
+CREATE TABLE MessageBodies (
+	bodyhash text not null primary key,
+	body bytea not null,
+	refcount int not null,
+	created timestamp without time zone not null
+) WITH ( toast_tuple_target = 128 );
+
+ALTER TABLE MessageBodies ALTER COLUMN body SET STORAGE EXTERNAL;
+
+#	Messages with no shared body leave this null
+
+ALTER TABLE Messages ADD COLUMN bodyhash text;
@@ -0,0 +1,9 @@
+#	schema7.sql
+#
+#		Devices which can read version 2 message envelopes. A client which
+#	understands envelopes says so when it registers the device; senders only
+#	send an envelope to devices with this flag set, and encrypt the whole
+#	message with RSA for any other device. Devices registered before this
+#	are assumed not to understand envelopes.
+
+ALTER TABLE Devices ADD COLUMN envelopes boolean not null default false;
@@ -0,0 +1,7 @@
+#	schema8.sql
+#
+#		The MaintenanceScheduler only deletes a message body older than the
+#	retention period once no message refers to it; this index lets it check
+#	that without scanning the Messages table.
+
+CREATE INDEX MessagesIX5 on Messages ( bodyhash ) WHERE bodyhash IS NOT NULL;
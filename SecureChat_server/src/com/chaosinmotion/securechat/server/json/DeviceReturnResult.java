@@ -26,7 +26,8 @@ import org.json.JSONObject;
 /**
  * Return result for the devices associated with a user. This returns a list
  * of UUIDs, one for each device. When sending a message, one message per
- * device must be encoded and sent.
+ * device must be encoded and sent; the envelopes flag says if the message
+ * may be sent to the device as a version 2 envelope.
  */
 public class DeviceReturnResult extends ReturnResult
 {
@@ -39,11 +40,12 @@ public class DeviceReturnResult extends ReturnResult
 		devices = new ArrayList<JSONObject>();
 	}
 	
-	public void addDeviceUUID(String uuid, String publicKey)
+	public void addDeviceUUID(String uuid, String publicKey, boolean envelopes)
 	{
 		JSONObject json = new JSONObject();
 		json.put("deviceid", uuid);
 		json.put("publickey", publicKey);
+		json.put("envelopes", envelopes);
 		devices.add(json);
 	}
 	
@@ -19,6 +19,11 @@
 
 package com.chaosinmotion.securechat.server.json;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -27,7 +32,19 @@ import org.json.JSONObject;
 import com.chaosinmotion.securechat.server.utils.Base64;
 
 /**
- * Return result sent when the back end queries for messages
+ * Return result sent when the back end queries for messages.
+ * 
+ * The messages are added before the result is returned; the caller reads
+ * a page of at most messagepagesize messages, so the whole page is held
+ * until it is written. When the result is written with write(), each
+ * message is written straight to the stream, with its payload Base64
+ * encoded as it goes, rather than building a JSONObject tree first.
+ * 
+ * The result can also be written in binary with writeBinary(), for clients
+ * which ask for it. Each message is written as a record in the same form
+ * as the 0x20 notification packet, followed by an end record giving the
+ * more flag and the message ID to read the next page after.
+ * 
  * @author woody
  *
  */
@@ -40,7 +57,7 @@ public class MessageReturnResult extends ReturnResult
 		public boolean toflag;
 		public String senderName;
 		public String received;
-		public String message;
+		public byte[] message;
 		
 		JSONObject getJSON()
 		{
@@ -51,13 +68,15 @@ public class MessageReturnResult extends ReturnResult
 			obj.put("senderName", senderName);
 			obj.put("received", received);
 			obj.put("toflag", toflag);
-			obj.put("message", message);
+			obj.put("message", Base64.encode(message));
 			
 			return obj;
 		}
 	}
 	
 	private ArrayList<Message> messages;
+	private boolean more;
+	private int after;
 	private static SimpleDateFormat format;
 	
 	static {
@@ -83,11 +102,92 @@ public class MessageReturnResult extends ReturnResult
 		m.senderName = senderName;
 		m.toflag = toflag;
 		m.received = date;
-		m.message = Base64.encode(message);
+		m.message = message;
 		
 		messages.add(m);
 	}
 	
+	/**
+	 * Note that there are more messages waiting after this page. The next
+	 * page is read by passing the message ID given as 'after'.
+	 * @param after
+	 */
+	public void setMore(int after)
+	{
+		this.more = true;
+		this.after = after;
+	}
+	
+	/**
+	 * Write the messages straight to the stream
+	 */
+	@Override
+	protected void writeData(Writer w) throws IOException
+	{
+		w.write(",\"data\":{\"messages\":[");
+		boolean first = true;
+		for (Message m: messages) {
+			if (first) {
+				first = false;
+			} else {
+				w.write(',');
+			}
+			w.write("{\"messageID\":");
+			w.write(Integer.toString(m.messageID));
+			w.write(",\"senderID\":");
+			w.write(Integer.toString(m.senderID));
+			w.write(",\"senderName\":");
+			JSONObject.quote(m.senderName, w);
+			w.write(",\"received\":\"");
+			w.write(m.received);
+			w.write("\",\"toflag\":");
+			w.write(m.toflag ? "true" : "false");
+			w.write(",\"message\":\"");
+			Base64.encode(m.message, w, "\\n");
+			w.write("\"}");
+		}
+		
+		w.write("],\"more\":");
+		w.write(more ? "true" : "false");
+		if (more) {
+			w.write(",\"after\":");
+			w.write(Integer.toString(after));
+		}
+		w.write('}');
+	}
+	
+	/**
+	 * Write the result in binary.
+	 * @param os
+	 * @throws IOException
+	 */
+	public void writeBinary(OutputStream os) throws IOException
+	{
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+		for (Message m: messages) {
+			writeRecord(dos, m.messageID, m.senderID, m.senderName, m.toflag, 
+					m.received, m.message);
+		}
+		
+		dos.writeByte(0x2F);
+		dos.writeBoolean(more);
+		dos.writeInt(after);
+		dos.flush();
+	}
+	
+	private static void writeRecord(DataOutputStream dos, int messageID, int senderID, 
+			String senderName, boolean toflag, String received, byte[] message) throws IOException
+	{
+		dos.writeByte(0x20);
+		dos.writeBoolean(toflag);
+		dos.writeInt(messageID);
+		dos.writeInt(senderID);
+		dos.writeUTF(received);
+		dos.writeUTF(senderName);
+		dos.writeInt(message.length);
+		dos.write(message);
+	}
+	
 	/**
 	 * Convert the stored values into a JSON object unless the set is empty.
 	 */
@@ -100,6 +200,8 @@ public class MessageReturnResult extends ReturnResult
 		
 		JSONObject obj = new JSONObject();
 		obj.put("messages", array);
+		obj.put("more", more);
+		if (more) obj.put("after", after);
 		return obj;
 	}
 
@@ -19,6 +19,11 @@
 
 package com.chaosinmotion.securechat.server.json;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import org.json.JSONArray;
@@ -137,6 +142,42 @@ public class ReturnResult
 		return null;
 	}
 	
+	/**
+	 * Write the result to the output stream as compact JSON in UTF-8. This
+	 * is the same result as toString(), without the formatting. Subclasses
+	 * which return a lot of data can override writeData to write it straight
+	 * to the stream, rather than building it as a JSONObject first.
+	 * @param os
+	 * @throws IOException
+	 */
+	public void write(OutputStream os) throws IOException
+	{
+		Writer w = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+		if (success) {
+			w.write("{\"success\":true");
+			writeData(w);
+			w.write('}');
+		} else {
+			toJSON().write(w);
+		}
+		w.flush();
+	}
+	
+	/**
+	 * Write the data field of a successful result, including the leading
+	 * comma. By default this writes the object returned by returnData.
+	 * @param w
+	 * @throws IOException
+	 */
+	protected void writeData(Writer w) throws IOException
+	{
+		JSONObject data = returnData();
+		if (data != null) {
+			w.write(",\"data\":");
+			data.write(w);
+		}
+	}
+	
 	/**
 	 * Convert to string. If this is successful the return looks like:
 	 * { "success": true, "data": ... }
@@ -144,6 +185,11 @@ public class ReturnResult
 	 * { "success": false, "error": number, "message": "msg", "exception": [...] }
 	 */
 	public String toString()
+	{
+		return toJSON().toString(4);		// formatted string.
+	}
+	
+	private JSONObject toJSON()
 	{
 		JSONObject obj = new JSONObject();
 		
@@ -172,6 +218,6 @@ public class ReturnResult
 			}
 		}
 		
-		return obj.toString(4);		// formatted string.
+		return obj;
 	}
 }
@@ -0,0 +1,432 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package com.chaosinmotion.securechat.server.maintenance;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
+import com.chaosinmotion.securechat.server.cache.UserNameCache;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.ConnectionPool;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+import com.chaosinmotion.securechat.server.messages.MessageBodyStore;
+import com.chaosinmotion.securechat.server.messages.MessageQueue;
+import com.chaosinmotion.securechat.server.messages.PartitionManager;
+import com.chaosinmotion.securechat.server.messages.RetentionSweeper;
+
+/**
+ * Runs the server's periodic housekeeping. Each job has a name, and runs
+ * every period seconds plus or minus a random jitter, so jobs which share
+ * a period do not all hit the database at the same moment. A job is not
+ * rescheduled until its previous run finishes, so a slow run is never
+ * overlapped by the next one.
+ * 
+ * The following jobs are registered when the scheduler starts:
+ * 
+ * retention: create upcoming message partitions, then drop expired
+ * partitions and messages (see PartitionManager and RetentionSweeper).
+ * 
+ * forgotpassword: delete expired forgotten password tokens.
+ * 
+ * delivery: delete messages which devices have acknowledged through
+ * messages/ackmessages, deliverybatch messages (default 5000) at a time.
+ * Only messages received before the acknowledgement, less the grace
+ * period in MessageQueue.ACKGRACE, are deleted.
+ * 
+ * dbpool: close database connections which have been idle too long.
+ * 
+ * caches: trim the device directory and user name cache back to their
+ * configured size.
+ * 
+ * The period and jitter of each job can be set in securechat.properties
+ * as the job name followed by "period" or "jitter", in seconds; for
+ * example retentionperiod = 3600. Jobs run on a pool of maintenancethreads
+ * threads (default 2).
+ * 
+ * The scheduler is started the first time the database connection pool
+ * is opened, since every job works against the database or something
+ * which caches it.
+ * 
+ * @author woody
+ *
+ */
+public class MaintenanceScheduler
+{
+	private static MaintenanceScheduler shared;
+	
+	private final ScheduledExecutorService executor;
+	private final ArrayList<Job> jobs;
+	private final Random random;
+	
+	/**
+	 * A named periodic job. The scheduler records the time, duration, rows
+	 * affected and error of the most recent run.
+	 */
+	public static abstract class Job
+	{
+		private final String name;
+		private final long period;
+		private final long jitter;
+		
+		/*
+		 *	Statistics. These are only written by the run, and a job is never
+		 *	run on two threads at once.
+		 */
+		private volatile long lastRun;
+		private volatile long lastDuration;
+		private volatile int lastRows;
+		private volatile long runCount;
+		private volatile long totalRows;
+		private volatile String lastError;
+		
+		/**
+		 * Construct a job. The period and jitter are read from the job name
+		 * followed by "period" and "jitter", in seconds.
+		 * @param name The name of the job
+		 * @param period The default period in seconds
+		 * @param jitter The default jitter in seconds
+		 */
+		protected Job(String name, int period, int jitter)
+		{
+			this.name = name;
+			this.period = 1000L * Math.max(1, Config.getInt(name + "period", period));
+			this.jitter = 1000L * Math.max(0, Config.getInt(name + "jitter", jitter));
+		}
+		
+		/**
+		 * Run the job
+		 * @return The number of rows or entries affected
+		 * @throws Exception
+		 */
+		protected abstract int run() throws Exception;
+		
+		public String getName()
+		{
+			return name;
+		}
+		
+		/**
+		 * The period, in milliseconds
+		 * @return
+		 */
+		public long getPeriod()
+		{
+			return period;
+		}
+		
+		/**
+		 * The jitter, in milliseconds
+		 * @return
+		 */
+		public long getJitter()
+		{
+			return jitter;
+		}
+		
+		public long getLastRun()
+		{
+			return lastRun;
+		}
+		
+		public long getLastDuration()
+		{
+			return lastDuration;
+		}
+		
+		public int getLastRowCount()
+		{
+			return lastRows;
+		}
+		
+		public long getRunCount()
+		{
+			return runCount;
+		}
+		
+		public long getTotalRowCount()
+		{
+			return totalRows;
+		}
+		
+		public String getLastError()
+		{
+			return lastError;
+		}
+	}
+	
+	public static synchronized MaintenanceScheduler getShared()
+	{
+		if (shared == null) {
+			shared = new MaintenanceScheduler();
+		}
+		return shared;
+	}
+	
+	/**
+	 * Return the shared scheduler if it has been started, without starting
+	 * it. Used by the status page.
+	 * @return
+	 */
+	public static synchronized MaintenanceScheduler peekShared()
+	{
+		return shared;
+	}
+	
+	private MaintenanceScheduler()
+	{
+		jobs = new ArrayList<Job>();
+		random = new Random();
+		
+		int nthreads = Math.max(1, Config.getInt("maintenancethreads", 2));
+		executor = Executors.newScheduledThreadPool(nthreads, new ThreadFactory() {
+			private int index;
+			
+			@Override
+			public synchronized Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Maintenance " + (index++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		/*
+		 * Drop expired messages and create upcoming message partitions.
+		 */
+		
+		schedule(new Job("retention", 3600, 300) {
+			@Override
+			protected int run() throws Exception
+			{
+				PartitionManager partitions = PartitionManager.getShared();
+				RetentionSweeper sweeper = RetentionSweeper.getShared();
+				
+				partitions.maintain();
+				sweeper.sweep();
+				
+				String error = partitions.getLastError();
+				if (error == null) error = sweeper.getLastError();
+				if (error != null) throw new SQLException(error);
+				return sweeper.getLastRowCount();
+			}
+		});
+		
+		/*
+		 * Delete expired forgotten password tokens. UpdateForgottenPassword
+		 * ignores expired tokens, so this only keeps the table small.
+		 */
+		
+		schedule(new Job("forgotpassword", 600, 60) {
+			@Override
+			protected int run() throws Exception
+			{
+				Connection c = null;
+				PreparedStatement ps = null;
+				
+				try {
+					c = Database.get();
+					ps = c.prepareStatement(
+							"DELETE FROM forgotpassword WHERE expires < LOCALTIMESTAMP");
+					return ps.executeUpdate();
+				}
+				finally {
+					if (ps != null) ps.close();
+					if (c != null) c.close();
+				}
+			}
+		});
+		
+		/*
+		 * Delete acknowledged messages, a batch at a time, releasing their
+		 * bodies, then forget the delivery cursors of devices which have 
+		 * been removed.
+		 */
+		
+		final int deliveryBatch = Math.max(1, Config.getInt("deliverybatch", 5000));
+		schedule(new Job("delivery", 300, 30) {
+			@Override
+			protected int run() throws Exception
+			{
+				Connection c = null;
+				PreparedStatement ps = null;
+				int rows = 0;
+				
+				try {
+					c = Database.get();
+					ps = Database.prepare(c, Query.DROP_ACKED);
+					c.setAutoCommit(false);
+					for (;;) {
+						ps.setInt(1, MessageQueue.ACKGRACE);
+						ps.setInt(2, deliveryBatch);
+						int n = MessageBodyStore.drop(c, ps);
+						c.commit();
+						rows += n;
+						if (n < deliveryBatch) break;
+					}
+					c.setAutoCommit(true);
+					ps.close();
+					ps = null;
+					
+					ps = c.prepareStatement(
+							"DELETE FROM DeliveryCursors " +
+							"WHERE deviceid NOT IN (SELECT deviceid FROM Devices)");
+					ps.executeUpdate();
+					return rows;
+				}
+				finally {
+					if (ps != null) ps.close();
+					if (c != null) c.close();
+				}
+			}
+		});
+		
+		/*
+		 * Delete message bodies which are no longer used. Most are deleted
+		 * as their last message is dropped; this catches those whose
+		 * messages expired.
+		 */
+		
+		schedule(new Job("bodies", 3600, 300) {
+			@Override
+			protected int run() throws Exception
+			{
+				return MessageBodyStore.getShared().sweep();
+			}
+		});
+		
+		/*
+		 * Close idle database connections
+		 */
+		
+		schedule(new Job("dbpool", 60, 10) {
+			@Override
+			protected int run() throws Exception
+			{
+				ConnectionPool pool = ConnectionPool.peekShared();
+				if (pool == null) return 0;
+				return pool.evictIdle();
+			}
+		});
+		
+		/*
+		 * Trim our caches
+		 */
+		
+		schedule(new Job("caches", 300, 30) {
+			@Override
+			protected int run() throws Exception
+			{
+				return DeviceDirectory.getShared().cleanup() 
+						+ UserNameCache.getShared().cleanup();
+			}
+		});
+	}
+	
+	/**
+	 * Add a job to the scheduler. The job first runs after one period.
+	 * @param job
+	 */
+	public void schedule(Job job)
+	{
+		synchronized(jobs) {
+			jobs.add(job);
+		}
+		scheduleNext(job);
+	}
+	
+	private void scheduleNext(final Job job)
+	{
+		long delay = job.period;
+		if (job.jitter > 0) {
+			synchronized(random) {
+				delay += (long)((random.nextDouble() * 2 - 1) * job.jitter);
+			}
+		}
+		
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run()
+				{
+					runJob(job);
+					scheduleNext(job);
+				}
+			}, Math.max(1000, delay), TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException ex) {
+			// shut down.
+		}
+	}
+	
+	private static void runJob(Job job)
+	{
+		long start = System.currentTimeMillis();
+		int rows = 0;
+		String error = null;
+		
+		try {
+			rows = job.run();
+		}
+		catch (Throwable th) {
+			/*
+			 * Recorded for the status page; the job runs again on its
+			 * next turn.
+			 */
+			error = th.toString();
+		}
+		
+		job.lastRun = start;
+		job.lastDuration = System.currentTimeMillis() - start;
+		job.lastRows = rows;
+		job.totalRows += rows;
+		job.lastError = error;
+		++job.runCount;
+	}
+	
+	/**
+	 * Return a snapshot of the scheduled jobs
+	 * @return
+	 */
+	public List<Job> getJobs()
+	{
+		synchronized(jobs) {
+			return new ArrayList<Job>(jobs);
+		}
+	}
+	
+	/**
+	 * Stop running jobs
+	 */
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+}
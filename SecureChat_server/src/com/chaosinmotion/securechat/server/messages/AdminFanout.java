@@ -0,0 +1,191 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import com.chaosinmotion.securechat.rsa.SCRSAEncoder;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.utils.Hash;
+import com.chaosinmotion.securechat.shared.Constants;
+
+/**
+ * Sends administrative messages, such as the forgotten password request,
+ * to every device of one or more users. Each device gets its own copy of
+ * the message, encrypted with that device's public key.
+ * 
+ * Encrypting a message takes one RSA operation per block, and for an
+ * operator broadcast to thousands of devices this dominates the time 
+ * taken. So the copies are encrypted in parallel on a pool of 
+ * fanoutthreads threads (default one per processor), using the parsed 
+ * public key kept by the DeviceDirectory, and then saved with a single 
+ * batch insert. Devices are handled FANOUTBATCH at a time, so a very 
+ * large broadcast doesn't hold every encrypted copy in memory at once.
+ * 
+ * @author woody
+ *
+ */
+public class AdminFanout
+{
+	private static final int FANOUTBATCH = 1000;	/* devices per insert */
+	
+	private static AdminFanout shared;
+	
+	private final ExecutorService pool;
+	
+	public static synchronized AdminFanout getShared()
+	{
+		if (shared == null) {
+			shared = new AdminFanout();
+		}
+		return shared;
+	}
+	
+	private AdminFanout()
+	{
+		int nthreads = Config.getInt("fanoutthreads", Runtime.getRuntime().availableProcessors());
+		pool = Executors.newFixedThreadPool(Math.max(1, nthreads), new ThreadFactory() {
+			private int index;
+			
+			@Override
+			public synchronized Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Admin fanout " + (index++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * Send a cleartext message from the administrator to every device of
+	 * the users given. This returns once every copy has been saved.
+	 * @param receivers The user IDs to send to
+	 * @param message The message (as clear text) to send
+	 * @return The message ID of the last copy saved, or 0 if none were
+	 * @throws ClassNotFoundException
+	 * @throws SQLException
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public int send(Collection<Integer> receivers, String message) throws ClassNotFoundException, SQLException, IOException, NoSuchAlgorithmException
+	{
+		/*
+		 * Calculate checksum using raw message and salt. This allows us to
+		 * prevent someone from deleting messages unless the message was
+		 * actually correctly decoded.
+		 */
+		final String checksum = Hash.sha256(message + Constants.SALT3);
+		final byte[] data = message.getBytes(StandardCharsets.UTF_8);
+		
+		/*
+		 * Get the devices associated with these users
+		 */
+		
+		ArrayList<DeviceDirectory.Device> devices = new ArrayList<DeviceDirectory.Device>();
+		Connection c = null;
+		try {
+			c = Database.get();
+			DeviceDirectory directory = DeviceDirectory.getShared();
+			for (Integer userid: receivers) {
+				devices.addAll(directory.getDevicesForUser(c, userid));
+			}
+		}
+		finally {
+			if (c != null) c.close();
+		}
+		
+		/*
+		 * Encrypt and save a batch of devices at a time
+		 */
+		
+		MessageQueue queue = MessageQueue.getInstance();
+		int retID = 0;
+		int i,len = devices.size();
+		for (i = 0; i < len; i += FANOUTBATCH) {
+			List<DeviceDirectory.Device> batch = devices.subList(i, Math.min(len, i + FANOUTBATCH));
+			List<MessageQueue.OutgoingMessage> send = encrypt(batch, data, checksum);
+			queue.enqueueDevices(send);
+			retID = send.get(send.size() - 1).messageid;
+		}
+		return retID;
+	}
+	
+	/**
+	 * Encrypt a copy of the message for each device, in parallel
+	 * @param devices
+	 * @param data
+	 * @param checksum
+	 * @return The messages to save, in the same order as the devices
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	private List<MessageQueue.OutgoingMessage> encrypt(List<DeviceDirectory.Device> devices, 
+			final byte[] data, final String checksum) throws IOException, NoSuchAlgorithmException
+	{
+		ArrayList<Callable<MessageQueue.OutgoingMessage>> tasks = new ArrayList<Callable<MessageQueue.OutgoingMessage>>(devices.size());
+		for (final DeviceDirectory.Device device: devices) {
+			tasks.add(new Callable<MessageQueue.OutgoingMessage>() {
+				@Override
+				public MessageQueue.OutgoingMessage call() throws Exception
+				{
+					SCRSAEncoder encoder = new SCRSAEncoder(device.getRSAKey());
+					byte[] encMsg = encoder.encodeData(data);
+					
+					MessageQueue.OutgoingMessage m = new MessageQueue.OutgoingMessage(0, device.getDeviceUUID(), false, encMsg, checksum);
+					m.deviceid = device.getDeviceID();
+					return m;
+				}
+			});
+		}
+		
+		ArrayList<MessageQueue.OutgoingMessage> send = new ArrayList<MessageQueue.OutgoingMessage>(devices.size());
+		try {
+			for (Future<MessageQueue.OutgoingMessage> f: pool.invokeAll(tasks)) {
+				send.add(f.get());
+			}
+		}
+		catch (InterruptedException ex) {
+			throw new IOException("Interrupted", ex);
+		}
+		catch (ExecutionException ex) {
+			Throwable th = ex.getCause();
+			if (th instanceof IOException) throw (IOException)th;
+			if (th instanceof NoSuchAlgorithmException) throw (NoSuchAlgorithmException)th;
+			throw new IOException(th);
+		}
+		return send;
+	}
+}
@@ -0,0 +1,75 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of buffers holding framed packets waiting to be written to a 
+ * notification connection. Nearly every packet fits in a standard size
+ * buffer, and those are recycled once written; larger packets get a buffer
+ * of their own.
+ * 
+ * A buffer must only be released by whoever holds it last, and only once.
+ * 
+ * @author woody
+ *
+ */
+class FrameBufferPool
+{
+	private static final int BUFSIZE = 8192;
+	private static final int MAXPOOLED = 1024;
+	
+	private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+	
+	/**
+	 * Get an empty buffer with room for at least size bytes
+	 * @param size
+	 * @return
+	 */
+	static ByteBuffer acquire(int size)
+	{
+		if (size > BUFSIZE) return ByteBuffer.allocate(size);
+		
+		ByteBuffer b = pool.poll();
+		if (b == null) return ByteBuffer.allocate(BUFSIZE);
+		
+		pooled.decrementAndGet();
+		b.clear();
+		return b;
+	}
+	
+	/**
+	 * Return a buffer to the pool
+	 * @param b
+	 */
+	static void release(ByteBuffer b)
+	{
+		if (b.capacity() != BUFSIZE) return;
+		if (pooled.incrementAndGet() > MAXPOOLED) {
+			pooled.decrementAndGet();
+			return;
+		}
+		pool.offer(b);
+	}
+}
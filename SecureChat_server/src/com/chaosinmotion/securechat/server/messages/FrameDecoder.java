@@ -0,0 +1,202 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.nio.ByteBuffer;
+import com.chaosinmotion.securechat.rsa.SCChecksum;
+
+/**
+ * Incremental decoder for our packet framing: packets are terminated by
+ * 0x00, 0x00 and 0x01 within a packet are escaped as 0x01 0x01 and 0x01 
+ * 0x02, and the last byte of each packet is a CRC8 checksum of the rest.
+ * Feed it bytes as they arrive, in chunks of any size; each complete 
+ * packet with a valid checksum is passed to processFrame.
+ * 
+ * Packets larger than the maximum frame size are discarded, along with
+ * everything up to the next terminator, so a peer which never sends a
+ * terminator can't make us buffer without limit.
+ * 
+ * This is not thread safe; each stream needs its own decoder.
+ * 
+ * @author woody
+ *
+ */
+public abstract class FrameDecoder
+{
+	private static final int INITIALSIZE = 256;
+	
+	private final int maxFrame;
+	private byte[] frame;
+	private int length;
+	private boolean escape;
+	private boolean overflow;
+	
+	/**
+	 * Create a decoder
+	 * @param max The largest packet we accept, not including the checksum
+	 */
+	public FrameDecoder(int max)
+	{
+		maxFrame = max;
+		frame = new byte[Math.min(INITIALSIZE, max + 1)];
+	}
+	
+	/**
+	 * Called with the contents of each valid packet, without the checksum.
+	 * The data is only valid for the duration of the call.
+	 * @param data
+	 * @param off
+	 * @param len
+	 */
+	protected abstract void processFrame(byte[] data, int off, int len);
+	
+	/**
+	 * Called when a packet was discarded because it was too large. By 
+	 * default this does nothing.
+	 */
+	protected void frameTooLarge()
+	{
+	}
+	
+	/**
+	 * Decode the bytes provided
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	public void decode(byte[] buf, int off, int len)
+	{
+		int i = off;
+		int end = off + len;
+		
+		while (i < end) {
+			if (escape) {
+				byte b = buf[i++];
+				escape = false;
+				if (b == 0) {
+					endFrame();
+				} else {
+					append((byte)(b - 1));
+				}
+				continue;
+			}
+			
+			/*
+			 * Find the next run of bytes which need no decoding, and copy
+			 * them all at once.
+			 */
+			int start = i;
+			while ((i < end) && (buf[i] != 0) && (buf[i] != 1)) ++i;
+			if (i > start) append(buf, start, i - start);
+			if (i >= end) break;
+			
+			if (buf[i++] == 0) {
+				endFrame();
+			} else {
+				escape = true;
+			}
+		}
+	}
+	
+	/**
+	 * Decode the remaining bytes in the buffer
+	 * @param buf
+	 */
+	public void decode(ByteBuffer buf)
+	{
+		if (buf.hasArray()) {
+			decode(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			buf.position(buf.limit());
+		} else {
+			byte[] tmp = new byte[Math.min(4096, buf.remaining())];
+			while (buf.hasRemaining()) {
+				int n = Math.min(tmp.length, buf.remaining());
+				buf.get(tmp, 0, n);
+				decode(tmp, 0, n);
+			}
+		}
+	}
+	
+	/*************************************************************************/
+	/*																		 */
+	/*	Internals															 */
+	/*																		 */
+	/*************************************************************************/
+	
+	private void append(byte b)
+	{
+		if (overflow) return;
+		if (!ensure(1)) return;
+		frame[length++] = b;
+	}
+	
+	private void append(byte[] buf, int off, int len)
+	{
+		if (overflow) return;
+		if (!ensure(len)) return;
+		System.arraycopy(buf, off, frame, length, len);
+		length += len;
+	}
+	
+	/**
+	 * Make room for more bytes, or mark the packet as too large
+	 */
+	private boolean ensure(int len)
+	{
+		int need = length + len;
+		if (need <= frame.length) return true;
+		
+		if (need > maxFrame + 1) {
+			overflow = true;
+			length = 0;
+			return false;
+		}
+		
+		int size = frame.length;
+		while (size < need) size *= 2;
+		byte[] b = new byte[Math.min(size, maxFrame + 1)];
+		System.arraycopy(frame, 0, b, 0, length);
+		frame = b;
+		return true;
+	}
+	
+	/**
+	 * Reached the end of a packet; verify the checksum and pass it on
+	 */
+	private void endFrame()
+	{
+		if (overflow) {
+			overflow = false;
+			frameTooLarge();
+		} else if (length > 0) {
+			int len = length - 1;
+			byte c = SCChecksum.calcCRC8((byte)0, frame, 0, len);
+			if (c == frame[len]) processFrame(frame, 0, len);
+		}
+		
+		/*
+		 * Don't hang on to a large buffer after a large packet
+		 */
+		length = 0;
+		if (frame.length > 4 * INITIALSIZE) {
+			frame = new byte[INITIALSIZE];
+		}
+	}
+}
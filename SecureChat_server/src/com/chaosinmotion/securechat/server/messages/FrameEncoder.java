@@ -0,0 +1,298 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import com.chaosinmotion.securechat.rsa.SCChecksum;
+
+/**
+ * Writes packets for the notification connection straight into a buffer,
+ * already framed: each byte is escaped and added to the checksum as it is
+ * written, and the frame is terminated, exactly as SCOutputStream.writeData
+ * would have done. This avoids building the packet in one array and then
+ * copying it into another to frame it.
+ * 
+ * The message packet (0x20) is laid out as if written by DataOutputStream;
+ * see writeMessage.
+ * 
+ * All of these methods are thread safe.
+ * 
+ * @author woody
+ *
+ */
+public class FrameEncoder
+{
+	/*
+	 *	Used for dates we can't write directly; see putDate.
+	 */
+	private static final DateTimeFormatter DATEFORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+	
+	/*
+	 *	Length of a formatted date
+	 */
+	private static final int DATELENGTH = 19;
+	
+	/**
+	 * Returns the maximum size of a frame holding a payload of the given
+	 * length. Every byte (including the checksum) may need escaping, plus
+	 * the terminating zero.
+	 * @param payload
+	 * @return
+	 */
+	public static int maxFrameSize(int payload)
+	{
+		return 2 * (payload + 1) + 1;
+	}
+	
+	/**
+	 * Returns the maximum size of a message frame
+	 * @param sendername
+	 * @param message
+	 * @return
+	 * @throws UTFDataFormatException
+	 */
+	public static int maxMessageFrameSize(String sendername, byte[] message) throws UTFDataFormatException
+	{
+		int payload = 1 + 1 + 4 + 4 + (2 + DATELENGTH) + (2 + utfLength(sendername)) + 4 + message.length;
+		return maxFrameSize(payload);
+	}
+	
+	/**
+	 * Write a framed message packet. The packet is equivalent to:
+	 * 
+	 *	dos.writeByte(0x20);
+	 *	dos.writeBoolean(toflag);
+	 *	dos.writeInt(messageid);
+	 *	dos.writeInt(senderid);
+	 *	dos.writeUTF(date);					// yyyy-MM-dd'T'HH:mm:ss
+	 *	dos.writeUTF(sendername);
+	 *	dos.writeInt(message.length);
+	 *	dos.write(message);
+	 * 
+	 * The buffer must have at least maxMessageFrameSize() bytes remaining.
+	 * 
+	 * @param dst
+	 * @param messageid
+	 * @param senderid
+	 * @param sendername
+	 * @param toflag
+	 * @param ts
+	 * @param message
+	 * @throws UTFDataFormatException
+	 */
+	public static void writeMessage(ByteBuffer dst, int messageid, int senderid, 
+			String sendername, boolean toflag, Timestamp ts, byte[] message) throws UTFDataFormatException
+	{
+		byte crc = 0;
+		crc = put(dst, crc, 0x20);
+		crc = put(dst, crc, toflag ? 1 : 0);
+		crc = putInt(dst, crc, messageid);
+		crc = putInt(dst, crc, senderid);
+		crc = putDate(dst, crc, ts);
+		crc = putUTF(dst, crc, sendername);
+		crc = putInt(dst, crc, message.length);
+		crc = put(dst, crc, message, 0, message.length);
+		finish(dst, crc);
+	}
+	
+	/**
+	 * Write a framed packet consisting of a single type byte followed by
+	 * the data provided. The buffer must have at least 
+	 * maxFrameSize(data.length + 1) bytes remaining.
+	 * @param dst
+	 * @param type
+	 * @param data
+	 */
+	public static void writeFrame(ByteBuffer dst, int type, byte[] data)
+	{
+		byte crc = 0;
+		crc = put(dst, crc, type);
+		crc = put(dst, crc, data, 0, data.length);
+		finish(dst, crc);
+	}
+	
+	/*************************************************************************/
+	/*																		 */
+	/*	Internals															 */
+	/*																		 */
+	/*************************************************************************/
+	
+	/**
+	 * Write an escaped byte, returning the updated checksum
+	 */
+	private static byte put(ByteBuffer dst, byte crc, int b)
+	{
+		byte v = (byte)b;
+		if ((v == 0) || (v == 1)) {
+			dst.put((byte)1);
+			dst.put((byte)(v+1));
+		} else {
+			dst.put(v);
+		}
+		return SCChecksum.calcCRC8(crc, v);
+	}
+	
+	/**
+	 * Write an array of escaped bytes. This is where most of the time goes,
+	 * so if we can we write straight into the buffer's array.
+	 */
+	private static byte put(ByteBuffer dst, byte crc, byte[] data, int off, int len)
+	{
+		if (!dst.hasArray()) {
+			for (int i = 0; i < len; ++i) {
+				crc = put(dst, crc, data[off+i]);
+			}
+			return crc;
+		}
+		
+		byte[] a = dst.array();
+		int pos = dst.arrayOffset() + dst.position();
+		int end = off + len;
+		for (int i = off; i < end; ++i) {
+			byte v = data[i];
+			if ((v == 0) || (v == 1)) {
+				a[pos++] = 1;
+				a[pos++] = (byte)(v+1);
+			} else {
+				a[pos++] = v;
+			}
+			crc = SCChecksum.calcCRC8(crc, v);
+		}
+		dst.position(pos - dst.arrayOffset());
+		return crc;
+	}
+	
+	private static byte putShort(ByteBuffer dst, byte crc, int v)
+	{
+		crc = put(dst, crc, v >>> 8);
+		return put(dst, crc, v);
+	}
+	
+	private static byte putInt(ByteBuffer dst, byte crc, int v)
+	{
+		crc = put(dst, crc, v >>> 24);
+		crc = put(dst, crc, v >>> 16);
+		crc = put(dst, crc, v >>> 8);
+		return put(dst, crc, v);
+	}
+	
+	/**
+	 * Write two decimal digits
+	 */
+	private static byte put2(ByteBuffer dst, byte crc, int v)
+	{
+		crc = put(dst, crc, '0' + v / 10);
+		return put(dst, crc, '0' + v % 10);
+	}
+	
+	/**
+	 * Write the date as a UTF string in the format yyyy-MM-dd'T'HH:mm:ss,
+	 * in the server's time zone. We write the digits ourselves for years 
+	 * with four digits, which is all of them in practice.
+	 */
+	private static byte putDate(ByteBuffer dst, byte crc, Timestamp ts) throws UTFDataFormatException
+	{
+		LocalDateTime t = ts.toLocalDateTime();
+		int year = t.getYear();
+		if ((year < 1) || (year > 9999)) {
+			return putUTF(dst, crc, DATEFORMAT.format(t));
+		}
+		
+		crc = putShort(dst, crc, DATELENGTH);
+		crc = put2(dst, crc, year / 100);
+		crc = put2(dst, crc, year % 100);
+		crc = put(dst, crc, '-');
+		crc = put2(dst, crc, t.getMonthValue());
+		crc = put(dst, crc, '-');
+		crc = put2(dst, crc, t.getDayOfMonth());
+		crc = put(dst, crc, 'T');
+		crc = put2(dst, crc, t.getHour());
+		crc = put(dst, crc, ':');
+		crc = put2(dst, crc, t.getMinute());
+		crc = put(dst, crc, ':');
+		return put2(dst, crc, t.getSecond());
+	}
+	
+	/**
+	 * Returns the length of the string in modified UTF-8, as written by
+	 * DataOutputStream.writeUTF
+	 */
+	private static int utfLength(String str) throws UTFDataFormatException
+	{
+		int len = str.length();
+		int utflen = 0;
+		for (int i = 0; i < len; ++i) {
+			char c = str.charAt(i);
+			if ((c >= 0x0001) && (c <= 0x007F)) {
+				utflen++;
+			} else if (c > 0x07FF) {
+				utflen += 3;
+			} else {
+				utflen += 2;
+			}
+		}
+		if (utflen > 65535) {
+			throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+		}
+		return utflen;
+	}
+	
+	/**
+	 * Write a string the same way as DataOutputStream.writeUTF
+	 */
+	private static byte putUTF(ByteBuffer dst, byte crc, String str) throws UTFDataFormatException
+	{
+		crc = putShort(dst, crc, utfLength(str));
+		
+		int len = str.length();
+		for (int i = 0; i < len; ++i) {
+			char c = str.charAt(i);
+			if ((c >= 0x0001) && (c <= 0x007F)) {
+				crc = put(dst, crc, c);
+			} else if (c > 0x07FF) {
+				crc = put(dst, crc, 0xE0 | ((c >> 12) & 0x0F));
+				crc = put(dst, crc, 0x80 | ((c >>  6) & 0x3F));
+				crc = put(dst, crc, 0x80 | (c & 0x3F));
+			} else {
+				crc = put(dst, crc, 0xC0 | ((c >>  6) & 0x1F));
+				crc = put(dst, crc, 0x80 | (c & 0x3F));
+			}
+		}
+		return crc;
+	}
+	
+	/**
+	 * Write the checksum and the terminating zero
+	 */
+	private static void finish(ByteBuffer dst, byte crc)
+	{
+		if ((crc == 0) || (crc == 1)) {
+			dst.put((byte)1);
+			dst.put((byte)(crc+1));
+		} else {
+			dst.put(crc);
+		}
+		dst.put((byte)0);
+	}
+}
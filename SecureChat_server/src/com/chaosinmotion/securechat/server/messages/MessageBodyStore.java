@@ -0,0 +1,378 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+import com.chaosinmotion.securechat.server.utils.Hash;
+
+/**
+ * Stores the bodies shared by several messages once (see schema6.sql).
+ * When a sendmessages request sends the same payload to several devices,
+ * each device's Messages row holds only its own header and the hash of
+ * the payload, and the payload itself is written once to MessageBodies.
+ * 
+ * Each body counts the messages which refer to it. The count is reduced
+ * as messages are dropped or acknowledged, and the body is deleted when
+ * no message refers to it. Messages removed by the retention sweep or by
+ * dropping a partition do not reduce the count; instead the bodies job
+ * deletes bodies older than the retention period.
+ * 
+ * Setting messagebodies = no stores every message whole, as before. We
+ * count the bytes sent and stored for each send either way, so the two
+ * can be compared on the status page.
+ * 
+ * @author woody
+ *
+ */
+public class MessageBodyStore
+{
+	private static final int SWEEPBATCH = 1000;
+	
+	private static MessageBodyStore shared;
+	
+	private final boolean enabled;
+	
+	/*
+	 *	Statistics
+	 */
+	private long totalSends;
+	private long totalMessages;
+	private long totalBodies;
+	private long totalBytes;			/* bytes in the messages as sent */
+	private long totalStored;			/* bytes written to the database */
+	
+	public static synchronized MessageBodyStore getShared()
+	{
+		if (shared == null) {
+			shared = new MessageBodyStore();
+		}
+		return shared;
+	}
+	
+	private MessageBodyStore()
+	{
+		Properties p = Config.get();
+		String value = (p == null) ? null : p.getProperty("messagebodies");
+		enabled = (value == null) || !value.equalsIgnoreCase("no");
+	}
+	
+	/**
+	 * Return the message delivered to the device: the message stored for
+	 * the device followed by the body, if it has one.
+	 * @param message
+	 * @param body The body, or null
+	 * @return
+	 */
+	public static byte[] join(byte[] message, byte[] body)
+	{
+		if (body == null) return message;
+		
+		byte[] ret = new byte[message.length + body.length];
+		System.arraycopy(message, 0, ret, 0, message.length);
+		System.arraycopy(body, 0, ret, message.length, body.length);
+		return ret;
+	}
+	
+	/**
+	 * Decide how the messages of a send are stored. A body shared by more
+	 * than one message is hashed so it can be stored once. A body used by 
+	 * only one message, or every body if we are not storing them 
+	 * separately, is joined to its message. Called once for each send, 
+	 * before the messages are written.
+	 * @param send
+	 */
+	void prepare(List<MessageQueue.OutgoingMessage> send)
+	{
+		IdentityHashMap<byte[],Integer> uses = new IdentityHashMap<byte[],Integer>();
+		for (MessageQueue.OutgoingMessage m: send) {
+			if (m.body == null) continue;
+			Integer n = uses.get(m.body);
+			uses.put(m.body, (n == null) ? 1 : n + 1);
+		}
+		
+		IdentityHashMap<byte[],String> hashes = new IdentityHashMap<byte[],String>();
+		long bytes = 0;
+		long stored = 0;
+		for (MessageQueue.OutgoingMessage m: send) {
+			if (m.body != null) {
+				if (enabled && (uses.get(m.body) > 1)) {
+					String hash = hashes.get(m.body);
+					if (hash == null) {
+						hash = Hash.sha256(m.body);
+						hashes.put(m.body, hash);
+						stored += m.body.length;
+					}
+					m.bodyhash = hash;
+				} else {
+					m.message = join(m.message, m.body);
+					m.body = null;
+				}
+			}
+			
+			bytes += m.message.length;
+			if (m.body != null) bytes += m.body.length;
+			stored += m.message.length;
+		}
+		
+		synchronized(this) {
+			++totalSends;
+			totalMessages += send.size();
+			totalBodies += hashes.size();
+			totalBytes += bytes;
+			totalStored += stored;
+		}
+	}
+	
+	/**
+	 * Write the bodies of the messages, each once, counting the messages
+	 * which refer to each. The caller manages the transaction, and writes
+	 * the messages after.
+	 * @param c
+	 * @param send
+	 * @param ts
+	 * @throws SQLException
+	 */
+	static void insert(Connection c, List<MessageQueue.OutgoingMessage> send, Timestamp ts) throws SQLException
+	{
+		/*
+		 * Count the references to each body. Sorting by hash means two
+		 * transactions writing the same bodies lock them in the same order.
+		 */
+		
+		TreeMap<String,Integer> refs = new TreeMap<String,Integer>();
+		TreeMap<String,byte[]> bodies = new TreeMap<String,byte[]>();
+		for (MessageQueue.OutgoingMessage m: send) {
+			if (m.bodyhash == null) continue;
+			Integer n = refs.get(m.bodyhash);
+			refs.put(m.bodyhash, (n == null) ? 1 : n + 1);
+			bodies.put(m.bodyhash, m.body);
+		}
+		if (refs.isEmpty()) return;
+		
+		PreparedStatement ps = null;
+		TimeZone tz = TimeZone.getTimeZone("UTC");
+		Calendar cal = Calendar.getInstance(tz);
+		
+		try {
+			ps = Database.prepare(c, Query.INSERT_BODY);
+			for (Map.Entry<String,Integer> e: refs.entrySet()) {
+				ps.setString(1, e.getKey());
+				ps.setBytes(2, bodies.get(e.getKey()));
+				ps.setInt(3, e.getValue());
+				ps.setTimestamp(4, ts, cal);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+		finally {
+			if (ps != null) ps.close();
+		}
+	}
+	
+	/**
+	 * Run a statement which deletes messages and returns the body hash of
+	 * each message deleted, then release those bodies. The caller should 
+	 * run this in a transaction, so the counts stay in step with the 
+	 * messages.
+	 * @param c
+	 * @param ps
+	 * @return The number of messages deleted
+	 * @throws SQLException
+	 */
+	public static int drop(Connection c, PreparedStatement ps) throws SQLException
+	{
+		TreeMap<String,Integer> refs = new TreeMap<String,Integer>();
+		ResultSet rs = null;
+		int rows = 0;
+		
+		try {
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				++rows;
+				String hash = rs.getString(1);
+				if (hash == null) continue;
+				Integer n = refs.get(hash);
+				refs.put(hash, (n == null) ? 1 : n + 1);
+			}
+		}
+		finally {
+			if (rs != null) rs.close();
+		}
+		
+		if (!refs.isEmpty()) {
+			release(c, refs);
+		}
+		return rows;
+	}
+	
+	/**
+	 * Reduce the reference counts of the bodies given, and delete those no
+	 * longer used.
+	 * @param c
+	 * @param refs Body hash to the number of references released
+	 * @throws SQLException
+	 */
+	private static void release(Connection c, TreeMap<String,Integer> refs) throws SQLException
+	{
+		PreparedStatement ps = null;
+		
+		try {
+			String[] hashes = refs.keySet().toArray(new String[refs.size()]);
+			Integer[] counts = refs.values().toArray(new Integer[refs.size()]);
+			
+			ps = Database.prepare(c, Query.RELEASE_BODIES);
+			ps.setArray(1, c.createArrayOf("text", hashes));
+			ps.setArray(2, c.createArrayOf("int4", counts));
+			ps.executeUpdate();
+			ps.close();
+			ps = null;
+			
+			ps = Database.prepare(c, Query.DROP_RELEASED);
+			ps.setArray(1, c.createArrayOf("text", hashes));
+			ps.executeUpdate();
+		}
+		finally {
+			if (ps != null) ps.close();
+		}
+	}
+	
+	/**
+	 * Delete bodies which are no longer used, or which are older than the
+	 * retention period and no longer referred to by any message. The
+	 * retention sweep runs on its own schedule, so a message may outlive the
+	 * retention period for a while; its body is kept until the message has
+	 * gone. Run by the MaintenanceScheduler.
+	 * @return The number of bodies deleted
+	 * @throws SQLException
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	public int sweep() throws SQLException, ClassNotFoundException, IOException
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		int rows = 0;
+		
+		long retention = RetentionSweeper.getShared().getRetentionDays() * 86400000L;
+		Timestamp ts = new Timestamp(System.currentTimeMillis() - retention);
+		TimeZone tz = TimeZone.getTimeZone("UTC");
+		Calendar cal = Calendar.getInstance(tz);
+		
+		try {
+			c = Database.get();
+			/*
+			 * The conditions are repeated outside the subselect so they are
+			 * checked again against a body which is referenced by a new
+			 * message while we are deleting it.
+			 */
+			ps = c.prepareStatement(
+					"DELETE FROM MessageBodies " +
+					"WHERE bodyhash IN " +
+					"    (SELECT bodyhash " +
+					"     FROM MessageBodies " +
+					"     WHERE refcount <= 0 " +
+					"     OR (created < ? " +
+					"         AND NOT EXISTS (SELECT 1 FROM Messages " +
+					"             WHERE Messages.bodyhash = MessageBodies.bodyhash)) " +
+					"     LIMIT ?) " +
+					"AND (refcount <= 0 " +
+					"     OR (created < ? " +
+					"         AND NOT EXISTS (SELECT 1 FROM Messages " +
+					"             WHERE Messages.bodyhash = MessageBodies.bodyhash)))");
+			for (;;) {
+				ps.setTimestamp(1, ts, cal);
+				ps.setInt(2, SWEEPBATCH);
+				ps.setTimestamp(3, ts, cal);
+				int n = ps.executeUpdate();
+				rows += n;
+				if (n < SWEEPBATCH) break;
+			}
+			return rows;
+		}
+		finally {
+			if (ps != null) ps.close();
+			if (c != null) c.close();
+		}
+	}
+	
+	/*
+	 *	Statistics
+	 */
+	
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+	public synchronized long getSendCount()
+	{
+		return totalSends;
+	}
+	
+	public synchronized long getMessageCount()
+	{
+		return totalMessages;
+	}
+	
+	/**
+	 * The number of bodies stored separately
+	 * @return
+	 */
+	public synchronized long getBodyCount()
+	{
+		return totalBodies;
+	}
+	
+	/**
+	 * The average bytes per send of the messages as sent, which is what
+	 * would be stored if every message were stored whole
+	 * @return
+	 */
+	public synchronized long getBytesPerSend()
+	{
+		if (totalSends == 0) return 0;
+		return totalBytes / totalSends;
+	}
+	
+	/**
+	 * The average bytes per send written to the database
+	 * @return
+	 */
+	public synchronized long getStoredPerSend()
+	{
+		if (totalSends == 0) return 0;
+		return totalStored / totalSends;
+	}
+}
@@ -0,0 +1,471 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+
+/**
+ * Group commit for messages. When enabled, messages being enqueued are not
+ * written by the thread enqueueing them. Instead they are collected for up
+ * to ingestwindow milliseconds (default 5), or until ingestbatch messages
+ * (default 5000) are waiting, and then written together in a single
+ * transaction. The threads which enqueued them wait until the transaction
+ * has committed, so no message is acknowledged before it is durable.
+ * 
+ * With messageingest = group the messages are written with the same
+ * multi-row inserts used otherwise; this saves a commit (and the wait for
+ * the disk) per request. With messageingest = copy they are written with a
+ * single binary COPY, which is cheaper still for large numbers of messages.
+ * COPY can't return the IDs it assigns, so we take the IDs from the 
+ * message ID sequence first, and write them with the messages.
+ * 
+ * This pays off when many messages arrive at once: many users sending at
+ * the same time, a user sending to a group with many devices, or an
+ * administrative message sent to everyone. At other times it adds up to 
+ * ingestwindow milliseconds to each send.
+ * 
+ * @author woody
+ *
+ */
+public class MessageIngest
+{
+	private static final long PGEPOCH = 946684800000L;	/* 2000-01-01 UTC, in ms */
+	private static final int COPYBUFFER = 65536;
+	private static final String COPYSQL = 
+			"COPY Messages ( messageid, deviceid, senderid, toflag, received, checksum, message, bodyhash ) " +
+			"FROM STDIN ( FORMAT binary )";
+	private static final byte[] COPYHEADER = {
+			'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte)0xFF, '\r', '\n', 0,
+			0, 0, 0, 0,			/* flags */
+			0, 0, 0, 0			/* header extension length */
+		};
+	
+	/**
+	 * Upper bounds of the batch size histogram buckets
+	 */
+	private static final int[] BUCKETS = { 1, 10, 100, 1000, Integer.MAX_VALUE };
+	
+	private static MessageIngest shared;
+	private static final boolean enabled;
+	private static final boolean useCopy;
+	
+	static {
+		Properties p = Config.get();
+		String value = (p == null) ? null : p.getProperty("messageingest");
+		useCopy = (value != null) && value.equalsIgnoreCase("copy");
+		enabled = useCopy || ((value != null) && value.equalsIgnoreCase("group"));
+	}
+	
+	/**
+	 * A set of messages enqueued together, all with the same timestamp
+	 */
+	private static class Batch
+	{
+		List<MessageQueue.OutgoingMessage> rows;
+		Timestamp ts;
+		boolean done;
+		Throwable error;
+	}
+	
+	private final long window;
+	private final int maxBatch;
+	
+	private ArrayList<Batch> pending;
+	private int pendingRows;
+	private long firstPending;
+	
+	/*
+	 *	Statistics
+	 */
+	private long totalRows;
+	private long totalFlushes;
+	private long totalFlushTime;		/* ns */
+	private long totalErrors;
+	private long[] histogram;
+	
+	/**
+	 * Returns true if messages should be written through the bulk ingest
+	 * @return
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+	public static synchronized MessageIngest getShared()
+	{
+		if (shared == null) {
+			shared = new MessageIngest();
+		}
+		return shared;
+	}
+	
+	private MessageIngest()
+	{
+		window = Math.max(0, Config.getInt("ingestwindow", 5));
+		maxBatch = Math.max(1, Config.getInt("ingestbatch", 5000));
+		
+		pending = new ArrayList<Batch>();
+		histogram = new long[BUCKETS.length];
+		
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				for (;;) {
+					List<Batch> batches = take();
+					flush(batches);
+				}
+			}
+		}, "Message ingest");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Write the messages, setting the message ID of each. This returns once
+	 * the messages have been committed, or throws if they could not be. The
+	 * caller must not hold a database connection while calling this.
+	 * @param rows
+	 * @param ts
+	 * @throws SQLException
+	 */
+	void write(List<MessageQueue.OutgoingMessage> rows, Timestamp ts) throws SQLException
+	{
+		if (rows.isEmpty()) return;
+		
+		Batch b = new Batch();
+		b.rows = rows;
+		b.ts = ts;
+		
+		synchronized(this) {
+			if (pending.isEmpty()) firstPending = System.currentTimeMillis();
+			pending.add(b);
+			pendingRows += rows.size();
+			notifyAll();
+			
+			try {
+				while (!b.done) {
+					wait();
+				}
+			}
+			catch (InterruptedException ex) {
+				throw new SQLException("Interrupted waiting for messages to be written");
+			}
+		}
+		
+		if (b.error instanceof SQLException) {
+			throw (SQLException)b.error;
+		} else if (b.error != null) {
+			throw new SQLException("Unable to write messages", b.error);
+		}
+	}
+	
+	/**
+	 * Wait for the window to close, and take the pending batches
+	 * @return
+	 */
+	private synchronized List<Batch> take()
+	{
+		try {
+			for (;;) {
+				if (pending.isEmpty()) {
+					wait();
+				} else if (pendingRows >= maxBatch) {
+					break;
+				} else {
+					long delay = firstPending + window - System.currentTimeMillis();
+					if (delay <= 0) break;
+					wait(delay);
+				}
+			}
+		}
+		catch (InterruptedException ex) {
+			// Write what we have
+		}
+		
+		/*
+		 * Take whole batches up to the maximum; anything left waits for the
+		 * next flush, which starts a new window immediately.
+		 */
+		
+		ArrayList<Batch> ret = new ArrayList<Batch>();
+		int rows = 0;
+		while (!pending.isEmpty() && ((rows == 0) || (rows + pending.get(0).rows.size() <= maxBatch))) {
+			Batch b = pending.remove(0);
+			rows += b.rows.size();
+			ret.add(b);
+		}
+		pendingRows -= rows;
+		return ret;
+	}
+	
+	/**
+	 * Write the batches in a single transaction, then wake the waiting
+	 * threads once it has committed
+	 * @param batches
+	 */
+	private void flush(List<Batch> batches)
+	{
+		if (batches.isEmpty()) return;
+		
+		long start = System.nanoTime();
+		int rows = 0;
+		for (Batch b: batches) {
+			rows += b.rows.size();
+		}
+		
+		Throwable error = null;
+		Connection c = null;
+		PreparedStatement ps = null;
+		
+		try {
+			c = Database.get();
+			c.setAutoCommit(false);
+			
+			/*
+			 * We tell the waiting threads their messages are saved once we
+			 * commit, so make sure the commit waits for the disk even if the
+			 * database has been configured otherwise.
+			 */
+			
+			ps = c.prepareStatement("SET LOCAL synchronous_commit TO on");
+			ps.execute();
+			ps.close();
+			ps = null;
+			
+			for (Batch b: batches) {
+				MessageBodyStore.insert(c, b.rows, b.ts);
+			}
+			
+			if (useCopy) {
+				copy(c, batches, rows);
+			} else {
+				for (Batch b: batches) {
+					MessageQueue.insertMessages(c, b.rows, b.ts);
+				}
+			}
+			
+			c.commit();
+			c.setAutoCommit(true);
+		}
+		catch (Throwable th) {
+			error = th;
+			th.printStackTrace();
+		}
+		finally {
+			try {
+				if (ps != null) ps.close();
+				if (c != null) c.close();
+			}
+			catch (SQLException e) {
+			}
+		}
+		
+		synchronized(this) {
+			if (error == null) {
+				totalRows += rows;
+				++totalFlushes;
+				totalFlushTime += System.nanoTime() - start;
+				
+				int i = 0;
+				while (rows > BUCKETS[i]) ++i;
+				++histogram[i];
+			} else {
+				++totalErrors;
+			}
+			
+			for (Batch b: batches) {
+				b.error = error;
+				b.done = true;
+			}
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Write the batches with a single COPY
+	 * @param c
+	 * @param batches
+	 * @param rows
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	private static void copy(Connection c, List<Batch> batches, int rows) throws SQLException, IOException
+	{
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		
+		try {
+			/*
+			 * Take the message IDs
+			 */
+			
+			ps = Database.prepare(c, Query.ALLOCATE_MESSAGEIDS);
+			ps.setInt(1, rows);
+			rs = ps.executeQuery();
+			for (Batch b: batches) {
+				for (MessageQueue.OutgoingMessage m: b.rows) {
+					if (!rs.next()) throw new SQLException("Unable to allocate message IDs");
+					m.messageid = rs.getInt(1);
+				}
+			}
+			rs.close();
+			rs = null;
+			ps.close();
+			ps = null;
+			
+			/*
+			 * Write the messages
+			 */
+			
+			CopyIn copy = c.unwrap(PGConnection.class).getCopyAPI().copyIn(COPYSQL);
+			try {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream(COPYBUFFER + 8192);
+				DataOutputStream dos = new DataOutputStream(buffer);
+				dos.write(COPYHEADER);
+				
+				for (Batch b: batches) {
+					long received = (b.ts.getTime() - PGEPOCH) * 1000 + (b.ts.getNanos() / 1000) % 1000;
+					for (MessageQueue.OutgoingMessage m: b.rows) {
+						writeRow(dos, m, received);
+						if (buffer.size() >= COPYBUFFER) {
+							copy.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+							buffer.reset();
+						}
+					}
+				}
+				
+				dos.writeShort(-1);
+				copy.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+				copy.endCopy();
+			}
+			finally {
+				if (copy.isActive()) copy.cancelCopy();
+			}
+		}
+		finally {
+			if (rs != null) rs.close();
+			if (ps != null) ps.close();
+		}
+	}
+	
+	/**
+	 * Write one row in the PostgreSQL binary COPY format: a field count,
+	 * then each field as a length (-1 for null) and the field in network
+	 * byte order.
+	 * @param dos
+	 * @param m
+	 * @param received Microseconds since 2000-01-01
+	 * @throws IOException
+	 */
+	private static void writeRow(DataOutputStream dos, MessageQueue.OutgoingMessage m, long received) throws IOException
+	{
+		byte[] checksum = m.checksum.getBytes(StandardCharsets.UTF_8);
+		
+		dos.writeShort(8);
+		dos.writeInt(4);
+		dos.writeInt(m.messageid);
+		dos.writeInt(4);
+		dos.writeInt(m.deviceid);
+		dos.writeInt(4);
+		dos.writeInt(m.senderid);
+		dos.writeInt(1);
+		dos.writeBoolean(m.toflag);
+		dos.writeInt(8);
+		dos.writeLong(received);
+		dos.writeInt(checksum.length);
+		dos.write(checksum);
+		dos.writeInt(m.message.length);
+		dos.write(m.message);
+		if (m.bodyhash == null) {
+			dos.writeInt(-1);
+		} else {
+			byte[] bodyhash = m.bodyhash.getBytes(StandardCharsets.UTF_8);
+			dos.writeInt(bodyhash.length);
+			dos.write(bodyhash);
+		}
+	}
+	
+	/*
+	 *	Statistics
+	 */
+	
+	public synchronized long getRowCount()
+	{
+		return totalRows;
+	}
+	
+	public synchronized long getFlushCount()
+	{
+		return totalFlushes;
+	}
+	
+	public synchronized long getErrorCount()
+	{
+		return totalErrors;
+	}
+	
+	/**
+	 * Rows written per second of time spent writing
+	 * @return
+	 */
+	public synchronized long getRowsPerSecond()
+	{
+		if (totalFlushTime == 0) return 0;
+		return (long)(totalRows * 1.0e9 / totalFlushTime);
+	}
+	
+	/**
+	 * The number of flushes by batch size. Bucket i counts the flushes
+	 * larger than bucket i-1 and no larger than getHistogramBucket(i).
+	 * @return
+	 */
+	public synchronized long[] getBatchHistogram()
+	{
+		return histogram.clone();
+	}
+	
+	public static int getHistogramBucket(int i)
+	{
+		return BUCKETS[i];
+	}
+	
+	public synchronized int getPendingCount()
+	{
+		return pendingRows;
+	}
+}
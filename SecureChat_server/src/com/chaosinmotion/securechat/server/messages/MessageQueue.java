@@ -28,14 +28,16 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
-import java.util.Timer;
-import java.util.TimerTask;
-import com.chaosinmotion.securechat.rsa.SCRSAEncoder;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
+import com.chaosinmotion.securechat.server.cache.UserNameCache;
+import com.chaosinmotion.securechat.server.config.Config;
 import com.chaosinmotion.securechat.server.database.Database;
-import com.chaosinmotion.securechat.server.utils.Hash;
-import com.chaosinmotion.securechat.shared.Constants;
 
 /**
  * This class helps manage the process of sending messages. This saves the
@@ -46,24 +48,74 @@ import com.chaosinmotion.securechat.shared.Constants;
  */
 public class MessageQueue
 {
-	private static final long DROPPERIOD = 3600000;	/* 60*60*100 = 1 hour in ms */
-	private static final long OLDMESSAGETIME = 604800000; /* 7*24*60*60*100 = 1 week in ms */
+	private static final int MAXINSERTROWS = 1000;		/* rows per multi-row insert */
+	
+	/**
+	 * The most backlogged messages we read for a device at once, both for
+	 * getmessages and for the notification backlog.
+	 */
+	public static final int PAGESIZE = Math.max(1, Config.getInt("messagepagesize", 100));
+	
+	/**
+	 * How long, in milliseconds, a message may take between being stamped
+	 * with its received time and being committed. Message IDs are not
+	 * committed in order, so a delivery cursor only covers messages received
+	 * at least this long before the cursor was moved; more recent messages
+	 * are deleted by AckMessages if they were committed when the device
+	 * acknowledged, and otherwise are delivered rather than hidden.
+	 */
+	public static final int ACKGRACE = Math.max(0, Config.getInt("ingestwindow", 5))
+			+ 1000 * Math.max(0, Config.getInt("ackgrace", 60));
 
 	private static MessageQueue messageQueue;
-	private HashMap<Integer,NotificationSocket> notifications;
-	private Timer timer;
-	private TimerTask dropTask;
+	private HashMap<Integer,NotificationConnection> notifications;
 	
-	private static class DeviceRecord
+	/**
+	 * A message to be enqueued as part of a batch. The caller fills in the
+	 * sender, device UUID, flag, message and checksum; the message ID is
+	 * filled in when the message is saved.
+	 * 
+	 * A message may also have a body, which is delivered after the message.
+	 * Messages in the same batch which share a body should share the same
+	 * array; see MessageBodyStore.
+	 */
+	public static class OutgoingMessage
 	{
-		DeviceRecord(int devID, String pubKey)
+		int senderid;
+		String deviceuuid;
+		boolean toflag;
+		byte[] message;
+		byte[] body;
+		String bodyhash;
+		String checksum;
+		
+		int deviceid;
+		int messageid;
+		
+		public OutgoingMessage(int senderid, String deviceuuid, boolean toflag, byte[] message, String checksum)
 		{
-			deviceID = devID;
-			publicKey = pubKey;
+			this(senderid, deviceuuid, toflag, message, null, checksum);
 		}
 		
-		int deviceID;
-		String publicKey;
+		public OutgoingMessage(int senderid, String deviceuuid, boolean toflag, byte[] message, byte[] body, String checksum)
+		{
+			this.senderid = senderid;
+			this.deviceuuid = deviceuuid;
+			this.toflag = toflag;
+			this.message = message;
+			this.body = body;
+			this.checksum = checksum;
+		}
+		
+		/**
+		 * The message ID assigned when this was saved, or 0 if the device
+		 * was not found
+		 * @return
+		 */
+		public int getMessageID()
+		{
+			return messageid;
+		}
 	}
 	
 	public static synchronized MessageQueue getInstance()
@@ -76,21 +128,7 @@ public class MessageQueue
 	
 	private MessageQueue()
 	{
-		notifications = new HashMap<Integer,NotificationSocket>();
-		
-		/*
-		 * Create timer and task to drop old messages
-		 */
-		
-		timer = new Timer();
-		dropTask = new TimerTask() {
-			@Override
-			public void run()
-			{
-				dropOldMessages();
-			}
-		};
-		timer.scheduleAtFixedRate(dropTask, DROPPERIOD, DROPPERIOD);
+		notifications = new HashMap<Integer,NotificationConnection>();
 	}
 	
 	/**
@@ -98,69 +136,24 @@ public class MessageQueue
 	 * immediately sent to the device
 	 */
 	
-	synchronized void registerNotification(int deviceID, NotificationSocket socket)
+	synchronized void registerNotification(int deviceID, NotificationConnection socket)
 	{
 		notifications.put(deviceID, socket);
 	}
 	
 	/**
-	 * Unregister a notification socket
+	 * Unregister a notification socket. This does nothing if the device has
+	 * since registered a different socket.
 	 */
-	synchronized void unregisterNotification(int deviceID)
+	synchronized void unregisterNotification(int deviceID, NotificationConnection socket)
 	{
-		notifications.remove(deviceID);
-	}
-	
-	/**
-	 * The purpose of this method is to drop old messages. Messages can
-	 * accumulate because a device was erased without being dropped, or
-	 * has not been checked in a while. We drop messages that are more than
-	 * a week old, regardless if they've been delivered.
-	 * 
-	 * This should be called every hour.
-	 */
-	private void dropOldMessages()
-	{
-		Connection c = null;
-		PreparedStatement ps = null;
-		
-		Timestamp ts = new Timestamp(System.currentTimeMillis() - OLDMESSAGETIME);
-		TimeZone tz = TimeZone.getTimeZone("UTC");
-		Calendar cal = Calendar.getInstance(tz);
-
-		try {
-			c = Database.get();
-			ps = c.prepareStatement(
-					"DELETE FROM Messages " +
-					"WHERE received < ?");
-			ps.setTimestamp(1, ts, cal);
-			ps.execute();
-		}
-		catch (Throwable th) {
-			// ignore.
-		}
-		finally {
-			if (ps != null) {
-				try {
-					ps.close();
-				}
-				catch (SQLException e) {
-				}
-			}
-			if (c != null) {
-				try {
-					c.close();
-				}
-				catch (SQLException e) {
-				}
-			}
-		}
+		notifications.remove(deviceID, socket);
 	}
 	
 	/**
 	 * This encodes a cleartext message to be sent to a receiver, coded as a
 	 * message from an administrator. This is used to send requests (in JSON
-	 * format) for things like resetting a password
+	 * format) for things like resetting a password. See AdminFanout.
 	 * @param receiver Receiver UserID
 	 * @param message Message (as clear text) to send
 	 * @throws IOException 
@@ -170,208 +163,229 @@ public class MessageQueue
 	 */
 	public int enqueueAdmin(int receiver, String message) throws ClassNotFoundException, SQLException, IOException, NoSuchAlgorithmException
 	{
-		/*
-		 * Calculate checksum using raw message and salt. This allows us to
-		 * prevent someone from deleting messages unless the message was
-		 * actually correctly decoded.
-		 */
-		String checksum = Hash.sha256(message + Constants.SALT3);
-		
-		/*
-		 * Get the list of devices associated with this user, and broadcast
-		 * the message to all of them.
-		 */
-		
-		ArrayList<DeviceRecord> deviceList = new ArrayList<DeviceRecord>();
-		
-		/*
-		 * Attempt to insert a new user into the database
-		 */
+		return AdminFanout.getShared().send(Collections.singletonList(receiver), message);
+	}
+	
+	/**
+	 * Enqueue a batch of messages, as sent by a single sendmessages request.
+	 * This resolves all of the device UUIDs with a single query, then inserts
+	 * all of the messages with a single multi-row insert, all in one
+	 * transaction. The message ID assigned to each message is stored back
+	 * into the message record; messages addressed to unknown devices are
+	 * dropped and get a message ID of 0.
+	 * 
+	 * @param list
+	 * @throws ClassNotFoundException
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public void enqueue(List<OutgoingMessage> list) throws ClassNotFoundException, SQLException, IOException
+	{
+		if (list.isEmpty()) return;
 		
 		Connection c = null;
-		PreparedStatement ps = null;
-		ResultSet rs = null;
-
+		ArrayList<OutgoingMessage> send = new ArrayList<OutgoingMessage>();
+		
 		try {
 			c = Database.get();
-			ps = c.prepareStatement(
-					"SELECT deviceid, publickey " +
-					"FROM Devices " + 
-					"WHERE userid = ?");
-			ps.setInt(1, receiver);
-			rs = ps.executeQuery();
-			while (rs.next()) {
-				DeviceRecord dr = new DeviceRecord(rs.getInt(1), rs.getString(2));
-				deviceList.add(dr);
+
+			/*
+			 * Step 1: resolve the device UUIDs into device IDs. Usually
+			 * these are all in the device directory already.
+			 */
+			
+			HashSet<String> uuids = new HashSet<String>();
+			for (OutgoingMessage m: list) {
+				uuids.add(m.deviceuuid);
+			}
+			
+			Map<String,DeviceDirectory.Device> devices = DeviceDirectory.getShared().getDevices(c, uuids);
+			
+			for (OutgoingMessage m: list) {
+				DeviceDirectory.Device device = devices.get(m.deviceuuid);
+				if (device == null) {
+					m.deviceid = 0;
+					m.messageid = 0;
+				} else {
+					m.deviceid = device.getDeviceID();
+					send.add(m);
+				}
 			}
 		}
 		finally {
-			if (rs != null) rs.close();
-			if (ps != null) ps.close();
 			if (c != null) c.close();
 		}
 		
 		/*
-		 * Now encode the message for each device
+		 * Step 2: save and send them
 		 */
 		
-		int retID = 0;
-		for (DeviceRecord dr: deviceList) {
-			SCRSAEncoder encoder = new SCRSAEncoder(dr.publicKey);
-			byte[] encMsg = encoder.encodeData(message.getBytes("UTF-8"));
-			retID = enqueue(0,dr.deviceID,false,encMsg,checksum);
-		}
-		return retID;
+		enqueueDevices(send);
 	}
 	
 	/**
-	 * Enqueue a message from the sender specified to the end-user given. This
-	 * encodes the message for this user
-	 * 
-	 * @param senderid. If toflag is set, then this is being enqueued onto the
-	 * user's own device as being sent to the specified sender. Otherwise, the
-	 * senderid is the person who sent this message.
-	 * @param deviceuuid
-	 * @param message
-	 * @param checksum
-	 * @throws IOException 
-	 * @throws SQLException 
-	 * @throws ClassNotFoundException 
+	 * Enqueue a batch of messages whose device IDs have already been
+	 * filled in. This inserts all of the messages (and their shared bodies)
+	 * in one transaction, sets the message ID of each, and then notifies 
+	 * any devices that are listening.
+	 * @param send
+	 * @throws ClassNotFoundException
+	 * @throws SQLException
+	 * @throws IOException
 	 */
-	public int enqueue(int senderid, String deviceuuid, boolean toflag, byte[] message, String checksum) throws ClassNotFoundException, SQLException, IOException
+	void enqueueDevices(List<OutgoingMessage> send) throws ClassNotFoundException, SQLException, IOException
 	{
-		/*
-		 * Convert device UUID into a device index.
-		 */
+		if (send.isEmpty()) return;
 		
 		Connection c = null;
-		PreparedStatement ps = null;
-		ResultSet rs = null;
-
-		int deviceID = 0;
-
+		Timestamp ts = new Timestamp(System.currentTimeMillis());
+		
+		MessageBodyStore.getShared().prepare(send);
+		
 		try {
-			c = Database.get();
-			ps = c.prepareStatement(
-					"SELECT deviceid " +
-					"FROM Devices " + 
-					"WHERE deviceuuid = ?");
-			ps.setString(1, deviceuuid);
-			rs = ps.executeQuery();
-			if (rs.next()) {
-				deviceID = rs.getInt(1);
+			/*
+			 * Insert the messages, getting back the message IDs. If group
+			 * commit is in use it writes them for us; we don't hold a 
+			 * connection while we wait, as it will need one.
+			 */
+			
+			if (MessageIngest.isEnabled()) {
+				MessageIngest.getShared().write(send, ts);
+			} else {
+				c = Database.get();
+				c.setAutoCommit(false);
+				MessageBodyStore.insert(c, send, ts);
+				insertMessages(c, send, ts);
+				c.commit();
+				c.setAutoCommit(true);
+			}
+			
+			/*
+			 * Now that the messages are stored, notify any devices that are
+			 * listening. We only need a connection if a sender's name isn't
+			 * cached.
+			 */
+			
+			ArrayList<OutgoingMessage> listening = new ArrayList<OutgoingMessage>();
+			synchronized(this) {
+				for (OutgoingMessage m: send) {
+					if (notifications.get(m.deviceid) != null) listening.add(m);
+				}
+			}
+			
+			UserNameCache names = UserNameCache.getShared();
+			for (OutgoingMessage m: listening) {
+				if ((c == null) && !names.isCached(m.senderid)) c = Database.get();
+				sendNotification(c, m.messageid, m.senderid, m.deviceid, m.toflag, ts, m.message, m.body);
 			}
 		}
 		finally {
-			if (rs != null) rs.close();
-			if (ps != null) ps.close();
 			if (c != null) c.close();
 		}
-		
-		if (deviceID != 0) {
-			return enqueue(senderid,deviceID,toflag,message,checksum);
-		} else {
-			return 0;
-		}
 	}
 	
 	/**
-	 * Enqueue message for device by device ID. See discussion here for more
-	 * information:
-	 * 
-	 * https://jdbc.postgresql.org/documentation/head/binary-data.html
-	 * 
-	 * @param senderid
-	 * @param deviceid
-	 * @param message
-	 * @param checksum
-	 * @throws IOException 
-	 * @throws SQLException 
-	 * @throws ClassNotFoundException 
+	 * Insert messages with multi-row inserts, setting the message ID of
+	 * each. Very large lists are broken into several inserts to stay within
+	 * the parameter limits of the database. The caller manages the
+	 * transaction, and writes the bodies first.
+	 * @param c
+	 * @param send
+	 * @param ts
+	 * @throws SQLException
 	 */
-	private int enqueue(int senderid, int deviceid, boolean toflag, byte[] message, String checksum) throws ClassNotFoundException, SQLException, IOException
+	static void insertMessages(Connection c, List<OutgoingMessage> send, Timestamp ts) throws SQLException
 	{
-		/*
-		 * Save message to the database.
-		 */
-		
-		Connection c = null;
 		PreparedStatement ps = null;
 		ResultSet rs = null;
-		Timestamp ts = new Timestamp(System.currentTimeMillis());
 		TimeZone tz = TimeZone.getTimeZone("UTC");
 		Calendar cal = Calendar.getInstance(tz);
-
+		
 		try {
-			/*
-			 * Insert the message, retrieving the message ID. (Used later)
-			 */
-			c = Database.get();
-			ps = c.prepareStatement(
-					"INSERT INTO Messages " +
-					"    ( deviceid, senderid, toflag, received, checksum, message ) " +
-					"VALUES " +
-					"    ( ?, ?, ?, ?, ?, ? ); SELECT currval('Messages_messageid_seq')");
-			ps.setInt(1, deviceid);
-			ps.setInt(2, senderid);
-			ps.setBoolean(3, toflag);
-			ps.setTimestamp(4, ts, cal);
-			ps.setString(5, checksum);
-			ps.setBytes(6, message);
-			
-			ps.execute();
-			int utc = ps.getUpdateCount();
-            int messageid = 0;
-            if ((utc == 1) && ps.getMoreResults()) {
-                rs = ps.getResultSet();
-                if (rs.next()) {
-                	messageid = rs.getInt(1);
-                }
-                rs.close();
-                rs = null;
-            }
-
-            ps.close();
-            ps = null;
-			
-			/*
-			 * If the device is registered for notifications, then we look up
-			 * the extra information we need (such as the sender's name) and
-			 * immediately send a notification.
-			 */
-			
-			NotificationSocket socket;
-			synchronized(this) {
-				socket = notifications.get(deviceid);
-			}
-			if (socket != null) {
-				ps = c.prepareStatement("SELECT username FROM users WHERE userid = ?");
-				ps.setInt(1, senderid);
-				rs = ps.executeQuery();
-				String sendername = "";
-				if (rs.next()) {
-					sendername = rs.getString(1);
+			int i,len = send.size();
+			for (i = 0; i < len; i += MAXINSERTROWS) {
+				int j,end = Math.min(len, i + MAXINSERTROWS);
+				
+				StringBuilder sql = new StringBuilder(
+						"INSERT INTO Messages " +
+						"    ( deviceid, senderid, toflag, received, checksum, message, bodyhash ) " +
+						"VALUES ");
+				for (j = i; j < end; ++j) {
+					if (j > i) sql.append(", ");
+					sql.append("( ?, ?, ?, ?, ?, ?, ? )");
 				}
+				sql.append(" RETURNING messageid");
 				
-				try {
-					socket.sendMessage(messageid, senderid, sendername, toflag, ts, message);
+				ps = c.prepareStatement(sql.toString());
+				int index = 1;
+				for (j = i; j < end; ++j) {
+					OutgoingMessage m = send.get(j);
+					ps.setInt(index++, m.deviceid);
+					ps.setInt(index++, m.senderid);
+					ps.setBoolean(index++, m.toflag);
+					ps.setTimestamp(index++, ts, cal);
+					ps.setString(index++, m.checksum);
+					ps.setBytes(index++, m.message);
+					ps.setString(index++, m.bodyhash);
 				}
-				catch (IOException ex) {
-					/*
-					 * Ignore the error. This can happen because one of the
-					 * clients attached to receive notifications has screwed
-					 * something up. Since this is advisory anyway, the best
-					 * solution is to ignore it and move on to other devices.
-					 */
+				
+				/*
+				 * Rows are returned in the order they were inserted
+				 */
+				rs = ps.executeQuery();
+				j = i;
+				while (rs.next() && (j < end)) {
+					send.get(j++).messageid = rs.getInt(1);
 				}
+				rs.close();
+				rs = null;
+				ps.close();
+				ps = null;
 			}
-
-			return messageid;
 		}
 		finally {
 			if (rs != null) rs.close();
 			if (ps != null) ps.close();
-			if (c != null) c.close();
+		}
+	}
+	
+	/**
+	 * If the device is registered for notifications, then we look up the
+	 * extra information we need (such as the sender's name, which is almost
+	 * always already cached) and immediately send a notification.
+	 * @param c The connection, which may be null if the sender's name is
+	 * cached
+	 * @param messageid
+	 * @param senderid
+	 * @param deviceid
+	 * @param toflag
+	 * @param ts
+	 * @param message
+	 * @param body The message body, or null
+	 * @throws SQLException
+	 */
+	private void sendNotification(Connection c, int messageid, int senderid, int deviceid, 
+			boolean toflag, Timestamp ts, byte[] message, byte[] body) throws SQLException
+	{
+		NotificationConnection socket;
+		synchronized(this) {
+			socket = notifications.get(deviceid);
+		}
+		if (socket == null) return;
+		
+		String sendername = UserNameCache.getShared().getName(c, senderid);
+		if (sendername == null) sendername = "";
+		
+		try {
+			socket.sendMessage(messageid, senderid, sendername, toflag, ts, MessageBodyStore.join(message, body));
+		}
+		catch (IOException ex) {
+			/*
+			 * Ignore the error. This can happen because one of the
+			 * clients attached to receive notifications has screwed
+			 * something up. Since this is advisory anyway, the best
+			 * solution is to ignore it and move on to other devices.
+			 */
 		}
 	}
 }
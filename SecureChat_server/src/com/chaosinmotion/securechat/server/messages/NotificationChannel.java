@@ -0,0 +1,473 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import org.json.JSONObject;
+
+/**
+ * Non-blocking notification connection. This is serviced by one of the
+ * NotificationEventLoop threads, which read and decode packets as they
+ * arrive and write the outbound queue as the channel will accept it. If
+ * an SSLEngine is provided, the connection is encrypted.
+ * 
+ * Commands from the device are run on the worker pool rather than the
+ * event loop, since logging in requires a trip to the database. Commands
+ * from a single device are run one at a time, in the order received.
+ * 
+ * The framing is the same as SCInputStream and SCOutputStream (both ends
+ * use FrameDecoder and FrameEncoder), so this is indistinguishable from a
+ * NotificationSocket to the device.
+ * 
+ * @author woody
+ *
+ */
+class NotificationChannel extends NotificationConnection
+{
+	private static final int BUFSIZE = 4096;
+	
+	/*
+	 *	Maximum number of commands from a device waiting to be run
+	 */
+	private static final int MAXCOMMANDS = 16;
+	
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final NotificationEventLoop loop;
+	private final Executor workers;
+	private SelectionKey key;
+	
+	/*
+	 *	Buffers. netIn holds bytes read from the channel, and appIn the 
+	 *	decrypted bytes. netOut holds bytes waiting to be written to the
+	 *	channel, and appOut the packet being encrypted. Without SSL we read
+	 *	straight into appIn, and netOut is the packet being written.
+	 */
+	private ByteBuffer netIn;
+	private ByteBuffer appIn;
+	private ByteBuffer netOut;
+	private ByteBuffer appOut;
+	
+	private final AtomicBoolean writeRequested;
+	
+	private final FrameDecoder decoder;
+	
+	/*
+	 *	Commands waiting to run on the worker pool
+	 */
+	private final ArrayDeque<JSONObject> commands;
+	private boolean busy;
+	
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run()
+		{
+			runCommands();
+		}
+	};
+	
+	private final Runnable write = new Runnable() {
+		@Override
+		public void run()
+		{
+			writeRequested.set(false);
+			try {
+				pumpWrites();
+			}
+			catch (Exception ex) {
+				terminate();
+			}
+		}
+	};
+	
+	NotificationChannel(SocketChannel ch, SSLEngine e, NotificationEventLoop l, 
+			Executor w, NotificationService n)
+	{
+		super(n);
+		channel = ch;
+		engine = e;
+		loop = l;
+		workers = w;
+		
+		if (engine == null) {
+			appIn = ByteBuffer.allocate(BUFSIZE);
+		} else {
+			int netSize = engine.getSession().getPacketBufferSize();
+			int appSize = engine.getSession().getApplicationBufferSize();
+			netIn = ByteBuffer.allocate(netSize);
+			appIn = ByteBuffer.allocate(appSize);
+			netOut = ByteBuffer.allocate(netSize);
+			netOut.flip();
+		}
+		
+		writeRequested = new AtomicBoolean();
+		
+		decoder = new FrameDecoder(MAXFRAME) {
+			@Override
+			protected void processFrame(byte[] data, int off, int len)
+			{
+				if (!isClosed()) dispatch(parsePacket(data, off, len));
+			}
+			
+			@Override
+			protected void frameTooLarge()
+			{
+				terminate();
+			}
+		};
+		commands = new ArrayDeque<JSONObject>();
+	}
+	
+	/**
+	 * Start servicing this channel
+	 */
+	void start()
+	{
+		loop.register(this);
+	}
+	
+	/**
+	 * Called on the loop thread to register with the loop's selector
+	 * @param selector
+	 */
+	void register(Selector selector)
+	{
+		try {
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+			if (engine != null) {
+				engine.beginHandshake();
+			}
+		}
+		catch (IOException ex) {
+			terminate();
+		}
+	}
+
+	@Override
+	protected void packetQueued()
+	{
+		if (writeRequested.compareAndSet(false, true)) {
+			loop.execute(write);
+		}
+	}
+
+	@Override
+	protected void closeTransport()
+	{
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			// ignore.
+		}
+	}
+	
+	/**
+	 * Called on the loop thread when the channel is ready
+	 * @param k
+	 */
+	void handle(SelectionKey k)
+	{
+		try {
+			if (k.isReadable()) readChannel();
+			if (k.isValid() && k.isWritable()) pumpWrites();
+		}
+		catch (Exception ex) {
+			terminate();
+		}
+	}
+	
+	/*************************************************************************/
+	/*																		 */
+	/*	Reading																 */
+	/*																		 */
+	/*************************************************************************/
+	
+	/**
+	 * Read what is available, decrypt if necessary, and decode packets
+	 * @throws IOException
+	 */
+	private void readChannel() throws IOException
+	{
+		if (engine == null) {
+			if (channel.read(appIn) < 0) {
+				terminate();
+				return;
+			}
+			appIn.flip();
+			decode(appIn);
+			appIn.clear();
+			return;
+		}
+		
+		if (channel.read(netIn) < 0) {
+			terminate();
+			return;
+		}
+		
+		netIn.flip();
+		try {
+			while (netIn.hasRemaining()) {
+				SSLEngineResult r = engine.unwrap(netIn, appIn);
+				runTasks();
+				
+				SSLEngineResult.Status status = r.getStatus();
+				if (status == SSLEngineResult.Status.CLOSED) {
+					terminate();
+					return;
+				} else if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					/*
+					 * Decode what we have to make room, and try again
+					 */
+					if (appIn.position() == 0) {
+						appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+					} else {
+						appIn.flip();
+						decode(appIn);
+						appIn.clear();
+					}
+					continue;
+				} else if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					/*
+					 * Need the rest of the record
+					 */
+					if (netIn.limit() == netIn.capacity()) {
+						ByteBuffer b = ByteBuffer.allocate(engine.getSession().getPacketBufferSize() + netIn.capacity());
+						b.put(netIn);
+						b.flip();
+						netIn = b;
+					}
+					break;
+				}
+				
+				if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+					pumpWrites();
+				}
+				if ((r.bytesConsumed() == 0) && (r.bytesProduced() == 0)) break;
+			}
+		}
+		finally {
+			netIn.compact();
+		}
+		
+		appIn.flip();
+		decode(appIn);
+		appIn.clear();
+		
+		/*
+		 * The handshake may have just completed, which lets us send 
+		 * anything which was waiting on it.
+		 */
+		pumpWrites();
+	}
+	
+	/**
+	 * Decode packets from the buffer, stopping if we get terminated
+	 * @param buf
+	 */
+	private void decode(ByteBuffer buf)
+	{
+		if (isClosed()) {
+			buf.position(buf.limit());
+		} else {
+			decoder.decode(buf);
+		}
+	}
+	
+	/*************************************************************************/
+	/*																		 */
+	/*	Commands															 */
+	/*																		 */
+	/*************************************************************************/
+	
+	/**
+	 * Queue a command to be run on the worker pool
+	 * @param obj
+	 */
+	private void dispatch(JSONObject obj)
+	{
+		synchronized(commands) {
+			if (commands.size() >= MAXCOMMANDS) {
+				/*
+				 * The device is flooding us with commands; drop it.
+				 */
+				commands.clear();
+				obj = null;
+			} else {
+				commands.add(obj);
+				if (busy) return;
+				busy = true;
+			}
+		}
+		
+		if (obj == null) {
+			terminate();
+			return;
+		}
+		
+		try {
+			workers.execute(drain);
+		}
+		catch (RejectedExecutionException ex) {
+			terminate();
+		}
+	}
+	
+	/**
+	 * Run queued commands on a worker thread, one at a time
+	 */
+	private void runCommands()
+	{
+		for (;;) {
+			JSONObject obj;
+			synchronized(commands) {
+				obj = commands.poll();
+				if (obj == null) {
+					busy = false;
+					return;
+				}
+			}
+			
+			try {
+				if (!isClosed()) processJSONCommand(obj);
+			}
+			catch (RuntimeException ex) {
+				terminate();
+			}
+		}
+	}
+	
+	/*************************************************************************/
+	/*																		 */
+	/*	Writing																 */
+	/*																		 */
+	/*************************************************************************/
+	
+	/**
+	 * Write as much as the channel will take. If the channel fills up, we
+	 * ask the selector to tell us when we can write more.
+	 * @throws IOException
+	 */
+	private void pumpWrites() throws IOException
+	{
+		if (isClosed()) return;
+		
+		for (;;) {
+			if ((netOut != null) && netOut.hasRemaining()) {
+				channel.write(netOut);
+				if (netOut.hasRemaining()) {
+					setWriteInterest(true);
+					return;
+				}
+			}
+			
+			if (engine == null) {
+				/*
+				 * Packets are already framed, so we write them directly
+				 */
+				if (netOut != null) FrameBufferPool.release(netOut);
+				netOut = outbound.poll();
+				if (netOut == null) break;
+				packetTaken();
+			} else {
+				if (!wrap()) break;
+			}
+		}
+		
+		setWriteInterest(false);
+	}
+	
+	/**
+	 * Encrypt the next chunk of data into netOut, which must be empty. This
+	 * is either handshake data or the next outbound packet.
+	 * @return false if there is nothing to encrypt
+	 * @throws IOException
+	 */
+	private boolean wrap() throws IOException
+	{
+		HandshakeStatus hs = engine.getHandshakeStatus();
+		if (hs == HandshakeStatus.NEED_TASK) {
+			runTasks();
+			hs = engine.getHandshakeStatus();
+		}
+		
+		ByteBuffer src;
+		if (hs == HandshakeStatus.NEED_WRAP) {
+			src = EMPTY;
+		} else if (hs != HandshakeStatus.NOT_HANDSHAKING) {
+			/*
+			 * Waiting for the device to send us handshake data
+			 */
+			return false;
+		} else {
+			if ((appOut == null) || !appOut.hasRemaining()) {
+				if (appOut != null) FrameBufferPool.release(appOut);
+				appOut = outbound.poll();
+				if (appOut == null) return false;
+				packetTaken();
+			}
+			src = appOut;
+		}
+		
+		netOut.clear();
+		SSLEngineResult r = engine.wrap(src, netOut);
+		netOut.flip();
+		runTasks();
+		
+		if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+			throw new IOException("SSL connection closed");
+		}
+		return (r.bytesConsumed() > 0) || (r.bytesProduced() > 0);
+	}
+	
+	/**
+	 * Run the SSL engine's delegated tasks. These are short, so we simply
+	 * run them on the loop thread.
+	 */
+	private void runTasks()
+	{
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+	
+	private void setWriteInterest(boolean flag)
+	{
+		if ((key == null) || !key.isValid()) return;
+		
+		int ops = SelectionKey.OP_READ;
+		if (flag) ops |= SelectionKey.OP_WRITE;
+		if (key.interestOps() != ops) key.interestOps(ops);
+	}
+}
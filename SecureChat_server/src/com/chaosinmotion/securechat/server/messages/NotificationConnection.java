@@ -0,0 +1,705 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import com.chaosinmotion.securechat.server.cache.DeviceDirectory;
+import com.chaosinmotion.securechat.server.cache.UserNameCache;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+import com.chaosinmotion.securechat.server.utils.Hash;
+import com.chaosinmotion.securechat.shared.Constants;
+
+/**
+ * A connection from a device listening for real-time notifications. This
+ * holds the notification protocol: the device asks for a token, logs in,
+ * and then receives its stored messages followed by new messages as they
+ * arrive. Subclasses provide the transport: NotificationSocket uses a
+ * blocking socket and a pair of threads, and NotificationChannel uses a
+ * non-blocking channel serviced by a NotificationEventLoop.
+ * 
+ * Packets sent to the device are placed on a bounded outbound queue and
+ * written by the transport, so a slow or stalled device never holds up the
+ * thread sending it a message. If the queue fills up, the device is not
+ * keeping up, so we drop the connection. This is safe: every message 
+ * remains in the database until the device deletes it, so the device will
+ * pick up what it missed when it reconnects or polls with getmessages.
+ * 
+ * Stored messages sent after a device logs in are queued by the service's
+ * backlog executor, a page at a time, and never fill more than half the
+ * queue; the rest is left for new messages. Once the transport has written
+ * the queue down to a quarter full, the next part of the backlog is queued.
+ * No thread ever waits on a slow device.
+ * 
+ * The size of the queue is set with the notificationqueue property
+ * (default 256 packets). The number of device logins which may query the
+ * database at once is set with notificationlogins (default 8). A device
+ * which sends a command larger than notificationmaxframe bytes (default
+ * 16384) is disconnected.
+ * 
+ * @author woody
+ *
+ */
+public abstract class NotificationConnection
+{
+	private static final int QUEUESIZE = Math.max(16, Config.getInt("notificationqueue", 256));
+	
+	/*
+	 *	The backlog stops queueing at BACKLOGHIGH packets, and starts again
+	 *	once the transport has drained the queue to BACKLOGLOW
+	 */
+	private static final int BACKLOGHIGH = QUEUESIZE / 2;
+	private static final int BACKLOGLOW = QUEUESIZE / 4;
+	
+	/*
+	 *	Largest command packet we accept from a device
+	 */
+	protected static final int MAXFRAME = Math.max(1024, Config.getInt("notificationmaxframe", 16384));
+	
+	/*
+	 *	Maximum number of logins running database queries at once, and how
+	 *	long (in milliseconds) a login waits for its turn
+	 */
+	private static final Semaphore LOGINS = new Semaphore(Math.max(1, Config.getInt("notificationlogins", 8)), true);
+	private static final long LOGINWAIT = 30000;
+	
+	private static final AtomicLong totalDropped = new AtomicLong();
+	private static final AtomicLong totalOverflows = new AtomicLong();
+	
+	private final NotificationService ns;
+	
+	protected final ArrayBlockingQueue<ByteBuffer> outbound;
+	private final AtomicLong dropped;
+	private volatile boolean closed;
+	
+	private String token;
+	private volatile int deviceID;
+	
+	/*
+	 *	Stored messages still to be queued, and the message ID to read the
+	 *	next page after (0 if there is none). These are only touched by the
+	 *	backlog pump, of which at most one is scheduled at a time.
+	 */
+	private final ArrayDeque<ByteBuffer> backlog;
+	private int backlogAfter;
+	private final AtomicBoolean backlogWaiting;
+	private final Runnable backlogPump;
+
+	protected NotificationConnection(NotificationService n)
+	{
+		ns = n;
+		outbound = new ArrayBlockingQueue<ByteBuffer>(QUEUESIZE);
+		dropped = new AtomicLong();
+		
+		backlog = new ArrayDeque<ByteBuffer>();
+		backlogWaiting = new AtomicBoolean();
+		backlogPump = new Runnable() {
+			@Override
+			public void run()
+			{
+				pumpBacklog();
+			}
+		};
+	}
+	
+	/**
+	 * Called when a packet has been placed on the outbound queue, so the
+	 * transport can arrange for it to be written.
+	 */
+	protected abstract void packetQueued();
+	
+	/**
+	 * Called by the transport each time it takes a packet from the outbound
+	 * queue to write. If the backlog is waiting for room, this wakes it.
+	 */
+	protected void packetTaken()
+	{
+		if (backlogWaiting.get() && (outbound.size() <= BACKLOGLOW)) {
+			wakeBacklog();
+		}
+	}
+	
+	/**
+	 * Close the underlying transport. This is called once, when the
+	 * connection is terminated.
+	 */
+	protected abstract void closeTransport();
+
+	/**
+	 * Force terminate of this connection. Anything still waiting to be
+	 * written is discarded.
+	 */
+	public void terminate()
+	{
+		synchronized(this) {
+			if (closed) return;
+			closed = true;
+		}
+		
+		if (deviceID != 0) {
+			MessageQueue.getInstance().unregisterNotification(deviceID, this);
+		}
+		ns.removeConnection(this);
+		
+		releaseQueued();
+		closeTransport();
+		
+		/*
+		 * If the backlog is waiting for room, let it release what it holds
+		 */
+		wakeBacklog();
+	}
+	
+	/**
+	 * Discard anything waiting on the outbound queue
+	 */
+	protected void releaseQueued()
+	{
+		ByteBuffer b;
+		while ((b = outbound.poll()) != null) {
+			FrameBufferPool.release(b);
+		}
+	}
+	
+	/**
+	 * Returns true if this connection has been terminated
+	 * @return
+	 */
+	public boolean isClosed()
+	{
+		return closed;
+	}
+	
+	/**
+	 * Queue a packet to be written to the device. If the queue is full, the
+	 * device is not keeping up, and the connection is terminated.
+	 * 
+	 * The data is a framed packet from FrameEncoder, ready to write. Once
+	 * queued, the transport owns the buffer and releases it once it has 
+	 * been written. If the packet could not be queued, it is released here.
+	 * @param data
+	 * @return true if the packet was queued
+	 */
+	protected boolean send(ByteBuffer data)
+	{
+		if (!closed) {
+			if (outbound.offer(data)) {
+				packetQueued();
+				return true;
+			}
+			
+			totalOverflows.incrementAndGet();
+			terminate();
+		}
+		
+		FrameBufferPool.release(data);
+		dropped.incrementAndGet();
+		totalDropped.incrementAndGet();
+		
+		/*
+		 * We may have raced with terminate() emptying the queue
+		 */
+		if (closed) releaseQueued();
+		return false;
+	}
+	
+	/**
+	 * Returns the device this connection is logged in as, or 0 if not logged in
+	 * @return
+	 */
+	public int getDeviceID()
+	{
+		return deviceID;
+	}
+	
+	/**
+	 * Returns the number of packets waiting to be written to the device
+	 * @return
+	 */
+	public int getQueueDepth()
+	{
+		return outbound.size();
+	}
+	
+	/**
+	 * Returns the number of packets for this device we have dropped because
+	 * the device was not keeping up.
+	 * @return
+	 */
+	public long getDropCount()
+	{
+		return dropped.get();
+	}
+	
+	/**
+	 * Returns the number of packets dropped across all devices
+	 * @return
+	 */
+	public static long getTotalDropCount()
+	{
+		return totalDropped.get();
+	}
+	
+	/**
+	 * Returns the number of device logins waiting for their turn to query
+	 * the database
+	 * @return
+	 */
+	public static int getLoginWaitCount()
+	{
+		return LOGINS.getQueueLength();
+	}
+	
+	/**
+	 * Returns the number of connections terminated because their outbound
+	 * queue overflowed
+	 * @return
+	 */
+	public static long getOverflowCount()
+	{
+		return totalOverflows.get();
+	}
+	
+	/**
+	 * Validate username/password and start message pump
+	 * @param username
+	 * @param password
+	 * @return
+	 */
+	private int validate(String username, String password, String deviceid)
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		
+		int dev = 0;
+		
+		/*
+		 * A connection only logs in once; a second login would race the
+		 * first one's backlog.
+		 */
+		
+		if (deviceID != 0) return 3;
+		
+		/*
+		 * Limit the number of logins talking to the database at once, so a
+		 * flood of reconnecting devices doesn't starve the web requests of
+		 * database connections.
+		 */
+		
+		try {
+			if (!LOGINS.tryAcquire(LOGINWAIT, TimeUnit.MILLISECONDS)) return 3;
+		}
+		catch (InterruptedException ex) {
+			return 3;
+		}
+
+		try {
+			c = Database.get();
+			ps = Database.prepare(c, Query.USER_LOGIN);
+			ps.setString(1, username);
+			rs = ps.executeQuery();
+			
+			DeviceDirectory.Device device = null;
+			if (rs.next()) {
+				device = DeviceDirectory.getShared().getDevice(c, deviceid);
+				if ((device != null) && (device.getUserID() != rs.getInt(1))) {
+					device = null;
+				}
+			}
+			
+			if (device != null) {
+				/*
+				 * If the result is found, hash the entry in the way it would
+				 * be hashed by the front end, and compare to see if the
+				 * hash codes match. (This requires that the hashed password
+				 * stored in the back-end has a consistent capitalization.
+				 * We arbitrarily pick lower-case for our SHA-256 hex string.
+				 */
+				String spassword = rs.getString(2);
+				dev = device.getDeviceID();
+				
+				/*
+				 * Encrypt password with token and salt
+				 */
+				
+				spassword = spassword + Constants.SALT + token;
+				spassword = Hash.sha256(spassword);
+				
+				/*
+				 * Compare; if matches, then return the user info record
+				 * so we can store away. While the SHA256 process returns
+				 * consistent case, we compare ignoring case anyway, just
+				 * because. :-)
+				 */
+				
+				if (!spassword.equalsIgnoreCase(password)) {
+					/*
+					 * This fails to run.
+					 */
+					
+					return 1;
+				}
+			} else {
+				return 2;
+			}
+			
+			/*
+			 * At this point we're logged in. Register for real time messages
+			 * and send all of the stored messages for this device
+			 */
+			
+			rs.close();
+			rs = null;
+			ps.close();
+			ps = null;
+			
+			/*
+			 * Register for real-time messages. There is a small window in
+			 * which we may write messages out of order. We rely on the
+			 * client to sort the messages correctly.
+			 */
+			
+			deviceID = dev;
+			MessageQueue.getInstance().registerNotification(dev, this);
+			if (closed) {
+				MessageQueue.getInstance().unregisterNotification(dev, this);
+				return 3;
+			}
+						
+			/*
+			 * Read the first page of messages. We queue them for the calling
+			 * device once we've given back the database connection, so a
+			 * slow device doesn't tie up the connection.
+			 */
+			
+			backlogAfter = readBacklog(c, 0, backlog);
+		}
+		catch (Exception ignore) {
+			releaseBuffers(backlog);
+			backlogAfter = 0;
+			return 3;
+		}
+		finally {
+			try {
+				if (rs != null) rs.close();
+				if (ps != null) ps.close();
+				if (c != null) c.close();
+			}
+			catch (SQLException e) {
+				e.printStackTrace();
+			}
+			LOGINS.release();
+		}
+		
+		/*
+		 * Hand the backlog to the backlog executor, which queues it a page
+		 * at a time as the device reads it, so a device which has been
+		 * away a long time doesn't need its whole backlog held in memory.
+		 */
+		
+		scheduleBacklog();
+		return 0;
+	}
+	
+	/**
+	 * Run the backlog pump on the backlog executor. If the service has shut
+	 * down, the connection is dropped.
+	 */
+	private void scheduleBacklog()
+	{
+		try {
+			ns.getBacklogExecutor().execute(backlogPump);
+		}
+		catch (RejectedExecutionException ex) {
+			terminate();
+			releaseBuffers(backlog);
+		}
+	}
+	
+	/**
+	 * If the backlog pump is waiting for room on the outbound queue, 
+	 * schedule it to run again.
+	 */
+	private void wakeBacklog()
+	{
+		if (backlogWaiting.compareAndSet(true, false)) {
+			scheduleBacklog();
+		}
+	}
+	
+	/**
+	 * Queue as much of the backlog as we can. If the outbound queue is too
+	 * full, mark the pump as waiting; the transport wakes it once it has
+	 * written enough.
+	 */
+	private void pumpBacklog()
+	{
+		if (fillBacklog()) return;
+		
+		backlogWaiting.set(true);
+		
+		/*
+		 * The transport may have drained the queue (or the connection may
+		 * have closed) before we marked ourselves waiting.
+		 */
+		if (closed || (outbound.size() <= BACKLOGLOW)) {
+			wakeBacklog();
+		}
+	}
+	
+	/**
+	 * Move backlogged packets onto the outbound queue, reading the next page
+	 * from the database as each page is used up. Stops once the queue is
+	 * BACKLOGHIGH packets deep.
+	 * @return false if we stopped for room on the queue, true if the backlog
+	 * is done or the connection has closed
+	 */
+	private boolean fillBacklog()
+	{
+		while (!closed) {
+			ByteBuffer b = backlog.peek();
+			if (b == null) {
+				if (backlogAfter == 0) return true;
+				
+				Connection c = null;
+				try {
+					c = Database.get();
+					backlogAfter = readBacklog(c, backlogAfter, backlog);
+				}
+				catch (Exception ex) {
+					backlogAfter = 0;
+				}
+				finally {
+					try {
+						if (c != null) c.close();
+					}
+					catch (SQLException e) {
+						e.printStackTrace();
+					}
+				}
+				continue;
+			}
+			
+			if (outbound.size() >= BACKLOGHIGH) return false;
+			if (!outbound.offer(b)) return false;
+			backlog.poll();
+			packetQueued();
+		}
+		
+		/*
+		 * Closed. Release what is left, including anything we queued after
+		 * terminate() emptied the queue.
+		 */
+		releaseBuffers(backlog);
+		backlogAfter = 0;
+		releaseQueued();
+		return true;
+	}
+	
+	/**
+	 * Read the next page of backlogged messages after the message ID given,
+	 * framing each into the backlog array.
+	 * @param c
+	 * @param after
+	 * @param backlog
+	 * @return The message ID to read the following page after, or 0 if 
+	 * this was the last page
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	private int readBacklog(Connection c, int after, ArrayDeque<ByteBuffer> backlog) throws SQLException, IOException
+	{
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		
+		try {
+			UserNameCache names = UserNameCache.getShared();
+			ps = Database.prepare(c, Query.MESSAGES_FOR_DEVICE);
+			ps.setInt(1, deviceID);
+			ps.setInt(2, after);
+			ps.setInt(3, MessageQueue.ACKGRACE);
+			ps.setInt(4, MessageQueue.PAGESIZE + 1);
+			
+			int count = 0;
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				if (++count > MessageQueue.PAGESIZE) return after;
+				
+				int messageID = rs.getInt(1);
+				int senderID = rs.getInt(2);
+				boolean toflag = rs.getBoolean(3);
+				Timestamp received = rs.getTimestamp(4);
+				byte[] message = MessageBodyStore.join(rs.getBytes(5), rs.getBytes(6));
+				after = messageID;
+				
+				/*
+				 * Messages from senders without an account (the admin
+				 * sender) are not delivered through this path.
+				 */
+				String senderName = names.getName(c, senderID);
+				if (senderName == null) continue;
+				
+				backlog.add(frameMessage(messageID,senderID,senderName,toflag,received,message));
+			}
+			return 0;
+		}
+		finally {
+			if (rs != null) rs.close();
+			if (ps != null) ps.close();
+		}
+	}
+	
+	private static void releaseBuffers(ArrayDeque<ByteBuffer> backlog)
+	{
+		ByteBuffer b;
+		while ((b = backlog.poll()) != null) {
+			FrameBufferPool.release(b);
+		}
+	}
+	
+	/**
+	 * Parse the JSON command. We handle the commands 'token' and 'login'.
+	 * @param obj
+	 */
+	protected void processJSONCommand(JSONObject obj)
+	{
+		// Unknown commands are ignored.
+
+		String cmd = obj.getString("cmd");
+		
+		if (cmd.equalsIgnoreCase("token")) {
+			/*
+			 * Write header and token (as string without length)
+			 */
+			try {
+				token = UUID.randomUUID().toString();
+				byte[] b = token.getBytes("UTF-8");
+				send(frame(0x21,b));
+			}
+			catch (Exception ex) {
+			}
+			
+		} else if (cmd.equalsIgnoreCase("login")) {
+			/*
+			 * Validate login for this
+			 */
+			
+			String username = obj.getString("username");
+			String password = obj.getString("password");
+			String deviceid = obj.getString("deviceid");
+			
+			/*
+			 * Validate
+			 */
+			
+			int err = validate(username,password,deviceid);
+			if (err != 0) {
+				byte[] b = new byte[1];
+				b[0] = (byte)err;
+				send(frame(0x22,b));
+			}
+		}
+	}
+	
+	/**
+	 * Parse a packet received from the device. Packets contain a JSON
+	 * command of the form { "cmd": command, ... params ... }
+	 * @param data
+	 * @param off
+	 * @param len
+	 * @return The parsed command
+	 */
+	protected static JSONObject parsePacket(byte[] data, int off, int len)
+	{
+		String json = new String(data,off,len,StandardCharsets.UTF_8);
+		JSONTokener t = new JSONTokener(json);
+		return new JSONObject(t);
+	}
+	
+	/**
+	 * Internal method for sending a message to the specified device. This
+	 * encodes the message as a binary array and transmits it as a single 
+	 * packet to the listening device. This allows users to receive messages
+	 * during chat as soon as we are able to, for (more or less) just in time
+	 * messaging.
+	 * 
+	 * The packet returned here is similar to the packet returned by the
+	 * getmessages api, except we serialize as binary.
+	 * 
+	 * This never blocks on the device's connection: the packet is queued
+	 * for the transport, and if the queue is full the connection is
+	 * dropped.
+	 * 
+	 * @param messageid
+	 * @param senderid
+	 * @param sendername
+	 * @param ts
+	 * @param message
+	 * @throws IOException 
+	 */
+	void sendMessage(int messageid, int senderid, String sendername, 
+			boolean toflag, Timestamp ts, byte[] message) throws IOException
+	{
+		if (closed) return;
+		send(frameMessage(messageid,senderid,sendername,toflag,ts,message));
+	}
+	
+	/**
+	 * Encode a message packet, framed and ready to send
+	 */
+	private static ByteBuffer frameMessage(int messageid, int senderid, String sendername, 
+			boolean toflag, Timestamp ts, byte[] message) throws IOException
+	{
+		ByteBuffer b = FrameBufferPool.acquire(FrameEncoder.maxMessageFrameSize(sendername, message));
+		FrameEncoder.writeMessage(b, messageid, senderid, sendername, toflag, ts, message);
+		b.flip();
+		return b;
+	}
+	
+	/**
+	 * Encode a reply packet, framed and ready to send
+	 */
+	private static ByteBuffer frame(int type, byte[] data)
+	{
+		ByteBuffer b = FrameBufferPool.acquire(FrameEncoder.maxFrameSize(data.length + 1));
+		FrameEncoder.writeFrame(b, type, data);
+		b.flip();
+		return b;
+	}
+}
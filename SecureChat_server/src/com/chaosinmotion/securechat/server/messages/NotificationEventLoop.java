@@ -0,0 +1,137 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop servicing non-blocking notification channels. Each loop
+ * owns a selector and a thread; a small fixed number of these handle all
+ * of the notification connections, rather than a pair of threads per
+ * connection.
+ * 
+ * Everything which touches a channel's buffers or selection key runs on
+ * the loop's thread. Other threads hand work to the loop with execute().
+ * 
+ * @author woody
+ *
+ */
+class NotificationEventLoop implements Runnable
+{
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	private final Thread thread;
+	private volatile boolean running;
+	
+	NotificationEventLoop(int index) throws IOException
+	{
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		running = true;
+		
+		thread = new Thread(this, "Notification loop " + index);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Run the task on the loop's thread
+	 * @param r
+	 */
+	void execute(Runnable r)
+	{
+		tasks.add(r);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Start servicing a new channel
+	 * @param channel
+	 */
+	void register(final NotificationChannel channel)
+	{
+		execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				channel.register(selector);
+			}
+		});
+	}
+	
+	/**
+	 * Stop the loop. Any channels still open are terminated.
+	 */
+	void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+	
+	@Override
+	public void run()
+	{
+		while (running) {
+			try {
+				Runnable r;
+				while ((r = tasks.poll()) != null) {
+					try {
+						r.run();
+					}
+					catch (RuntimeException ex) {
+						ex.printStackTrace();
+					}
+				}
+				
+				selector.select();
+				
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					
+					NotificationChannel channel = (NotificationChannel)key.attachment();
+					channel.handle(key);
+				}
+			}
+			catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+		
+		/*
+		 * Shut down the remaining connections
+		 */
+		
+		for (SelectionKey key: selector.keys()) {
+			((NotificationChannel)key.attachment()).terminate();
+		}
+		try {
+			selector.close();
+		}
+		catch (IOException ex) {
+			// ignore.
+		}
+	}
+}
@@ -22,15 +22,26 @@ package com.chaosinmotion.securechat.server.messages;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLServerSocketFactory;
 import com.chaosinmotion.securechat.server.config.Config;
 
@@ -51,6 +62,15 @@ import com.chaosinmotion.securechat.server.config.Config;
  * Also note this can be disabled using the SecureChat.properties file
  * by setting notifications = no
  * 
+ * By default each connection is handled by a NotificationSocket, which
+ * uses two threads per connection. Setting notificationnio = yes instead
+ * services all connections from a small number of NotificationEventLoop
+ * threads (notificationthreads, default one per processor), with device
+ * logins run on a pool of notificationworkers threads (default 8).
+ * In either mode, the stored messages sent to a device after it logs in
+ * are queued by a pool of notificationbacklog threads (default 2), which
+ * only queue more once the device has read what it was given.
+ * 
  * @author woody
  *
  */
@@ -58,9 +78,14 @@ public class NotificationService
 {
 	private static NotificationService shared;
 	private ServerSocket socket;
+	private ServerSocketChannel serverChannel;
+	private SSLContext sslContext;
+	private NotificationEventLoop[] loops;
+	private ExecutorService workers;
+	private ExecutorService backlog;
 	private Thread socketThread;
 	private boolean stopService;
-	private ArrayList<NotificationSocket> notArray;
+	private Set<NotificationConnection> notArray;
 	
 	private String hostname;
 	private boolean useSSLFlag;
@@ -121,15 +146,39 @@ public class NotificationService
 			useSSLFlag = true;
 		}
 		
+		/*
+		 * Determine if we should use non-blocking channels rather than a
+		 * pair of threads per connection
+		 */
+		
+		String usenio = p.getProperty("notificationnio");
+		boolean useNIOFlag = false;
+		if ((usenio != null) && usenio.equals("yes")) {
+			useNIOFlag = true;
+		}
+		
 		/*
 		 * Now attempt to start notifications.
 		 */
-		notArray = new ArrayList<NotificationSocket>();
+		notArray = ConcurrentHashMap.<NotificationConnection>newKeySet();
+		
+		int nbacklog = Math.max(1, Config.getInt("notificationbacklog", 2));
+		backlog = Executors.newFixedThreadPool(nbacklog, new ThreadFactory() {
+			private int index;
+			
+			@Override
+			public synchronized Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Notification backlog " + (index++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
 
 		try {
 			if (useSSLFlag) {
 				/*
-				 * Create SSL server socket.
+				 * Create SSL context.
 				 */
 				
 				FileInputStream keyFile = new FileInputStream(keystore); 
@@ -141,11 +190,40 @@ public class NotificationService
 
 				KeyManager keyManagers[] = keyManagerFactory.getKeyManagers();
 
-				SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+				sslContext = SSLContext.getInstance("TLSv1.2");
 				sslContext.init(keyManagers, null, new SecureRandom());
-
+			}
+			
+			if (useNIOFlag) {
+				/*
+				 * Create the server channel and the event loops which service
+				 * the connections
+				 */
+				
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.socket().bind(new InetSocketAddress(port), 50);
+				socket = serverChannel.socket();
+				
+				int nloops = Config.getInt("notificationthreads", Runtime.getRuntime().availableProcessors());
+				loops = new NotificationEventLoop[Math.max(1, nloops)];
+				for (int i = 0; i < loops.length; ++i) {
+					loops[i] = new NotificationEventLoop(i);
+				}
+				
+				int nworkers = Math.max(1, Config.getInt("notificationworkers", 8));
+				workers = Executors.newFixedThreadPool(nworkers, new ThreadFactory() {
+					private int index;
+					
+					@Override
+					public synchronized Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "Notification worker " + (index++));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			} else if (useSSLFlag) {
 				SSLServerSocketFactory socketFactory = sslContext.getServerSocketFactory();
-
 				socket = socketFactory.createServerSocket(port, 50);
 			} else {
 				socket = new ServerSocket(port,50);
@@ -160,7 +238,7 @@ public class NotificationService
 			}
 			
 			stopService = false;
-			socketThread = new Thread(new Runnable() {
+			socketThread = NotificationThreads.newThread(new Runnable() {
 				@Override
 				public void run()
 				{
@@ -168,17 +246,36 @@ public class NotificationService
 					 * Internal thread; get socket; if one, then bind to
 					 * our notification socket handler.
 					 */
+					int next = 0;
 					while (!stopService) {
 						try {
-							Socket s = socket.accept();
-							NotificationSocket socket = new NotificationSocket(s,NotificationService.this);
-							notArray.add(socket);
+							if (serverChannel != null) {
+								SocketChannel ch = serverChannel.accept();
+								ch.configureBlocking(false);
+								
+								SSLEngine engine = null;
+								if (sslContext != null) {
+									engine = sslContext.createSSLEngine();
+									engine.setUseClientMode(false);
+								}
+								
+								NotificationEventLoop loop = loops[next++ % loops.length];
+								NotificationChannel nc = new NotificationChannel(ch,engine,loop,workers,NotificationService.this);
+								notArray.add(nc);
+								nc.start();
+								
+							} else {
+								Socket s = socket.accept();
+								NotificationSocket socket = new NotificationSocket(s,NotificationService.this);
+								notArray.add(socket);
+								socket.start();
+							}
 						}
 						catch (IOException e) {
 						}
 					}
 				}
-			});
+			}, "Notification listener");
 			socketThread.start();
 		}
 		catch (Exception ex) {
@@ -237,16 +334,51 @@ public class NotificationService
 		}
 	}
 	
+	/**
+	 * Describe how connections are being handled
+	 * @return
+	 */
+	public String getConnectionMode()
+	{
+		if (serverChannel != null) {
+			return "non-blocking channels, " + loops.length + " event loops";
+		} else if (NotificationThreads.isVirtual()) {
+			return "virtual threads";
+		} else {
+			return "platform threads";
+		}
+	}
+	
 	public Throwable getStartException()
 	{
 		return startError;
 	}
 	
-	void removeNotificationSocket(NotificationSocket s)
+	/**
+	 * Returns the executor which queues stored messages for devices which
+	 * have just logged in
+	 * @return
+	 */
+	Executor getBacklogExecutor()
+	{
+		return backlog;
+	}
+	
+	void removeConnection(NotificationConnection s)
 	{
 		notArray.remove(s);
 	}
 	
+	/**
+	 * Return a snapshot of the currently open notification sockets
+	 * @return
+	 */
+	public List<NotificationConnection> getConnections()
+	{
+		if (notArray == null) return new ArrayList<NotificationConnection>();
+		return new ArrayList<NotificationConnection>(notArray);
+	}
+	
 	/**
 	 * Terminate the notification service
 	 */
@@ -275,9 +407,21 @@ public class NotificationService
 		/*
 		 * Send termination to all current connections
 		 */
-		ArrayList<NotificationSocket> c = new ArrayList<NotificationSocket>(notArray);
-		for (NotificationSocket ns: c) {
+		for (NotificationConnection ns: getConnections()) {
 			ns.terminate();
 		}
+		
+		if (loops != null) {
+			for (NotificationEventLoop loop: loops) {
+				loop.shutdown();
+			}
+		}
+		if (workers != null) {
+			workers.shutdown();
+			workers = null;
+		}
+		if (backlog != null) {
+			backlog.shutdown();
+		}
 	}
 }
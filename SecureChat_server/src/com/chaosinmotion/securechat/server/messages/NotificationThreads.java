@@ -0,0 +1,109 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.lang.reflect.Method;
+import com.chaosinmotion.securechat.server.config.Config;
+
+/**
+ * Creates the threads used by the blocking notification listener: the
+ * accept loop and the reader and writer threads of each NotificationSocket.
+ * 
+ * If notificationthreadmode = virtual and the Java runtime supports virtual
+ * threads (Java 21 and later), these are virtual threads, which cost a few
+ * hundred bytes each while blocked rather than a full thread stack. We
+ * find virtual threads by reflection, since we build for older runtimes.
+ * Otherwise these are ordinary threads; the stack size of each can be set
+ * with notificationstack (in kilobytes), which lets more connections fit
+ * on runtimes without virtual threads.
+ * 
+ * @author woody
+ *
+ */
+class NotificationThreads
+{
+	private static final Object builder;
+	private static final Method builderName;
+	private static final Method builderUnstarted;
+	private static final long stackSize;
+	
+	static {
+		Object b = null;
+		Method n = null;
+		Method u = null;
+		
+		String mode = Config.get().getProperty("notificationthreadmode");
+		if ((mode != null) && mode.equals("virtual")) {
+			try {
+				Method ofVirtual = Thread.class.getMethod("ofVirtual");
+				Class<?> bclass = Class.forName("java.lang.Thread$Builder");
+				n = bclass.getMethod("name", String.class);
+				u = bclass.getMethod("unstarted", Runnable.class);
+				b = ofVirtual.invoke(null);
+			}
+			catch (Exception ex) {
+				/*
+				 * Virtual threads not supported by this runtime
+				 */
+				b = null;
+			}
+		}
+		
+		builder = b;
+		builderName = n;
+		builderUnstarted = u;
+		stackSize = 1024L * Math.max(0, Config.getInt("notificationstack", 0));
+	}
+	
+	/**
+	 * Returns true if we are creating virtual threads
+	 * @return
+	 */
+	static boolean isVirtual()
+	{
+		return builder != null;
+	}
+	
+	/**
+	 * Create a new, unstarted thread
+	 * @param r
+	 * @param name
+	 * @return
+	 */
+	static Thread newThread(Runnable r, String name)
+	{
+		if (builder != null) {
+			try {
+				/*
+				 * The builder is not thread safe, so serialize our use of it
+				 */
+				synchronized(builder) {
+					builderName.invoke(builder, name);
+					return (Thread)builderUnstarted.invoke(builder, r);
+				}
+			}
+			catch (Exception ex) {
+				// Fall through to a platform thread
+			}
+		}
+		
+		return new Thread(null, r, name, stackSize);
+	}
+}
@@ -0,0 +1,256 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.TreeSet;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.Database;
+
+/**
+ * Maintains the daily partitions of the Messages table (see schema3.sql).
+ * Each partition holds the messages received during one UTC day, and is
+ * named Messages_yyyymmdd.
+ * 
+ * Each time this runs we create the partitions for the next partitiondays
+ * days (default 7), starting tomorrow, and remove the partitions for days
+ * which are entirely older than the retention period. By default expired
+ * partitions are dropped; setting partitionexpiry = detach instead detaches
+ * them from Messages, leaving the table in place to be archived.
+ * 
+ * We never create the partition for today: if today's messages are going
+ * into the default partition (because the server was down, or this is the
+ * first run after the upgrade), the database would refuse to create it.
+ * 
+ * @author woody
+ *
+ */
+public class PartitionManager
+{
+	private static final DateTimeFormatter NAME = DateTimeFormatter.ofPattern("yyyyMMdd");
+	private static final String PREFIX = "messages_";
+	
+	private static PartitionManager shared;
+	
+	private final int daysAhead;
+	private final boolean detach;
+	
+	/*
+	 *	Statistics
+	 */
+	private volatile long lastRun;
+	private volatile int partitionCount;
+	private volatile String oldest;
+	private volatile String newest;
+	private volatile int totalCreated;
+	private volatile int totalRemoved;
+	private volatile String lastError;
+	
+	public static synchronized PartitionManager getShared()
+	{
+		if (shared == null) {
+			shared = new PartitionManager();
+		}
+		return shared;
+	}
+	
+	private PartitionManager()
+	{
+		daysAhead = Math.max(1, Config.getInt("partitiondays", 7));
+		
+		String value = Config.get().getProperty("partitionexpiry");
+		detach = (value != null) && value.equalsIgnoreCase("detach");
+	}
+	
+	/**
+	 * Create upcoming partitions and remove expired ones.
+	 */
+	public synchronized void maintain()
+	{
+		String error = null;
+		
+		LocalDate today = LocalDate.now(ZoneOffset.UTC);
+		long days = RetentionSweeper.getShared().getRetentionDays();
+		LocalDate expired = today.minusDays(days);
+		
+		Connection c = null;
+		Statement s = null;
+		ResultSet rs = null;
+		
+		try {
+			c = Database.get();
+			s = c.createStatement();
+			
+			/*
+			 * Find the partitions which already exist
+			 */
+			
+			TreeSet<LocalDate> partitions = new TreeSet<LocalDate>();
+			rs = s.executeQuery("SELECT c.relname " +
+					"FROM pg_inherits i, pg_class c " +
+					"WHERE i.inhrelid = c.oid " +
+					"AND i.inhparent = 'messages'::regclass");
+			while (rs.next()) {
+				String name = rs.getString(1);
+				if (!name.startsWith(PREFIX)) continue;
+				try {
+					partitions.add(LocalDate.parse(name.substring(PREFIX.length()), NAME));
+				}
+				catch (Exception ex) {
+					// not one of ours.
+				}
+			}
+			rs.close();
+			rs = null;
+			
+			/*
+			 * Create upcoming partitions. Each is created separately, so
+			 * one failure doesn't prevent the rest.
+			 */
+			
+			for (int i = 1; i <= daysAhead; ++i) {
+				LocalDate day = today.plusDays(i);
+				if (partitions.contains(day)) continue;
+				
+				try {
+					s.executeUpdate("CREATE TABLE IF NOT EXISTS " + name(day) + " " +
+							"PARTITION OF Messages " +
+							"FOR VALUES FROM ('" + day + "') TO ('" + day.plusDays(1) + "')");
+					partitions.add(day);
+					++totalCreated;
+				}
+				catch (SQLException ex) {
+					error = ex.toString();
+				}
+			}
+			
+			/*
+			 * Remove expired partitions. A partition for day D holds messages
+			 * up to the start of D+1, so it has expired once D+1 is at or 
+			 * before the start of the retention period.
+			 */
+			
+			while (!partitions.isEmpty() && !partitions.first().plusDays(1).isAfter(expired)) {
+				LocalDate day = partitions.pollFirst();
+				
+				try {
+					if (detach) {
+						s.executeUpdate("ALTER TABLE Messages DETACH PARTITION " + name(day));
+					} else {
+						s.executeUpdate("DROP TABLE IF EXISTS " + name(day));
+					}
+					++totalRemoved;
+				}
+				catch (SQLException ex) {
+					error = ex.toString();
+				}
+			}
+			
+			partitionCount = partitions.size();
+			oldest = partitions.isEmpty() ? null : partitions.first().toString();
+			newest = partitions.isEmpty() ? null : partitions.last().toString();
+		}
+		catch (Throwable th) {
+			error = th.toString();
+			th.printStackTrace();
+		}
+		finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				}
+				catch (SQLException e) {
+				}
+			}
+			if (s != null) {
+				try {
+					s.close();
+				}
+				catch (SQLException e) {
+				}
+			}
+			if (c != null) {
+				try {
+					c.close();
+				}
+				catch (SQLException e) {
+				}
+			}
+		}
+		
+		lastRun = System.currentTimeMillis();
+		lastError = error;
+	}
+	
+	private static String name(LocalDate day)
+	{
+		return PREFIX + day.format(NAME);
+	}
+	
+	/*
+	 *	Statistics
+	 */
+	
+	public long getLastRun()
+	{
+		return lastRun;
+	}
+	
+	public int getPartitionCount()
+	{
+		return partitionCount;
+	}
+	
+	public String getOldestPartition()
+	{
+		return oldest;
+	}
+	
+	public String getNewestPartition()
+	{
+		return newest;
+	}
+	
+	public int getCreatedCount()
+	{
+		return totalCreated;
+	}
+	
+	public int getRemovedCount()
+	{
+		return totalRemoved;
+	}
+	
+	public String getLastError()
+	{
+		return lastError;
+	}
+	
+	public boolean isDetaching()
+	{
+		return detach;
+	}
+}
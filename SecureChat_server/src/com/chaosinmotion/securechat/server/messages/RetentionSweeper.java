@@ -0,0 +1,201 @@
+/*	SecureChat: A secure chat system which permits secure communications 
+ *  between iOS devices and a back-end server.
+ *
+ *	Copyright © 2016 by William Edward Woody
+ *
+ *	This program is free software: you can redistribute it and/or modify it 
+ *	under the terms of the GNU General Public License as published by the 
+ *	Free Software Foundation, either version 3 of the License, or (at your 
+ *	option) any later version.
+ *
+ *	This program is distributed in the hope that it will be useful, but 
+ *	WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ *	or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+ *	for more details.
+ *
+ *	You should have received a copy of the GNU General Public License along 
+ *	with this program. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.chaosinmotion.securechat.server.messages;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.TimeZone;
+import com.chaosinmotion.securechat.server.config.Config;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.database.Query;
+
+/**
+ * Drops old messages. Messages can accumulate because a device was erased
+ * without being dropped, or has not been checked in a while. We drop 
+ * messages that are older than the retention period (the retentiondays
+ * property, default one week), regardless if they've been delivered.
+ * 
+ * Rather than deleting every expired message in one statement, we delete
+ * them in batches of retentionbatch messages (default 5000), each in its
+ * own transaction, pausing retentionpause milliseconds (default 100) 
+ * between batches. This keeps each transaction small, and avoids holding
+ * locks on rows other requests are trying to delete.
+ * 
+ * Once the Messages table is partitioned by day, expired days are dropped
+ * whole by the PartitionManager, so the sweep only finds rows which were
+ * stored in the default partition.
+ * 
+ * @author woody
+ *
+ */
+public class RetentionSweeper
+{
+	private static RetentionSweeper shared;
+	
+	private final long retention;
+	private final int batchSize;
+	private final long pause;
+	
+	/*
+	 *	Statistics. These are only written by the sweep, which runs on
+	 *	one thread at a time.
+	 */
+	private volatile long lastRun;
+	private volatile long lastDuration;
+	private volatile int lastRows;
+	private volatile int lastBatches;
+	private volatile long totalRows;
+	private volatile String lastError;
+	
+	public static synchronized RetentionSweeper getShared()
+	{
+		if (shared == null) {
+			shared = new RetentionSweeper();
+		}
+		return shared;
+	}
+	
+	private RetentionSweeper()
+	{
+		retention = 86400000L * Math.max(1, Config.getInt("retentiondays", 7));
+		batchSize = Math.max(1, Config.getInt("retentionbatch", 5000));
+		pause = Math.max(0, Config.getInt("retentionpause", 100));
+	}
+	
+	/**
+	 * Delete the messages older than the retention period
+	 */
+	public synchronized void sweep()
+	{
+		long start = System.currentTimeMillis();
+		int rows = 0;
+		int batches = 0;
+		String error = null;
+		
+		Connection c = null;
+		PreparedStatement ps = null;
+		
+		Timestamp ts = new Timestamp(start - retention);
+		TimeZone tz = TimeZone.getTimeZone("UTC");
+		Calendar cal = Calendar.getInstance(tz);
+		
+		try {
+			c = Database.get();
+			ps = Database.prepare(c, Query.DROP_EXPIRED);
+			
+			for (;;) {
+				ps.setTimestamp(1, ts, cal);
+				ps.setTimestamp(2, ts, cal);
+				ps.setInt(3, batchSize);
+				int n = ps.executeUpdate();
+				
+				rows += n;
+				++batches;
+				if (n < batchSize) break;
+				
+				/*
+				 * Give the database room to breathe. We give the connection
+				 * back while we wait.
+				 */
+				ps.close();
+				ps = null;
+				c.close();
+				c = null;
+				
+				Thread.sleep(pause);
+				
+				c = Database.get();
+				ps = Database.prepare(c, Query.DROP_EXPIRED);
+			}
+		}
+		catch (InterruptedException ex) {
+			error = "Interrupted";
+		}
+		catch (Throwable th) {
+			error = th.toString();
+			th.printStackTrace();
+		}
+		finally {
+			if (ps != null) {
+				try {
+					ps.close();
+				}
+				catch (SQLException e) {
+				}
+			}
+			if (c != null) {
+				try {
+					c.close();
+				}
+				catch (SQLException e) {
+				}
+			}
+		}
+		
+		lastRun = start;
+		lastDuration = System.currentTimeMillis() - start;
+		lastRows = rows;
+		lastBatches = batches;
+		totalRows += rows;
+		lastError = error;
+	}
+	
+	/*
+	 *	Statistics
+	 */
+	
+	public long getRetentionDays()
+	{
+		return retention / 86400000L;
+	}
+	
+	public long getLastRun()
+	{
+		return lastRun;
+	}
+	
+	public long getLastDuration()
+	{
+		return lastDuration;
+	}
+	
+	public int getLastRowCount()
+	{
+		return lastRows;
+	}
+	
+	public int getLastBatchCount()
+	{
+		return lastBatches;
+	}
+	
+	public long getTotalRowCount()
+	{
+		return totalRows;
+	}
+	
+	public String getLastError()
+	{
+		return lastError;
+	}
+}
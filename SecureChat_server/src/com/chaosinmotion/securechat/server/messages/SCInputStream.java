@@ -19,16 +19,18 @@
 
 package com.chaosinmotion.securechat.server.messages;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import com.chaosinmotion.securechat.rsa.SCChecksum;
 
 /**
  * Reads from the input stream, calling a callback when each data packet
  * is successfully extracted. Note that this should be run in a separate
  * thread, in that this will not exit the process loop until we see the end
  * of the input stream.
+ * 
+ * Packets are decoded by a FrameDecoder. Packets larger than the maximum
+ * frame size are discarded, and frameTooLarge is called.
+ * 
  * @author woody
  *
  */
@@ -36,10 +38,14 @@ public abstract class SCInputStream
 {
 	private static final int MAXSIZE = 4096;
 	
+	/*
+	 *	Default maximum packet size
+	 */
+	public static final int MAXFRAME = 65536;
+	
 	private InputStream inStream;
 	private byte[] buffer;
-	private int bufpos;
-	private int buflen;
+	private FrameDecoder decoder;
 	
 	/**
 	 * Input stream constructor
@@ -47,24 +53,31 @@ public abstract class SCInputStream
 	 */
 	public SCInputStream(InputStream is)
 	{
-		inStream = is;
-		buffer = new byte[MAXSIZE];
+		this(is, MAXFRAME);
 	}
 	
 	/**
-	 * Internal read next byte from stream.
-	 * @return next byte
-	 * @throws IOException n
+	 * Input stream constructor
+	 * @param is
+	 * @param maxFrame The largest packet we accept
 	 */
-	private int nextByte() throws IOException
+	public SCInputStream(InputStream is, int maxFrame)
 	{
-		if (bufpos >= buflen) {
-			bufpos = 0;
-			buflen = inStream.read(buffer);
-			if (buflen == -1) return -1;			// end of stream
-		}
-		
-		return 0x00FF & buffer[bufpos++];
+		inStream = is;
+		buffer = new byte[MAXSIZE];
+		decoder = new FrameDecoder(maxFrame) {
+			@Override
+			protected void processFrame(byte[] data, int off, int len)
+			{
+				processPacket(data, off, len);
+			}
+			
+			@Override
+			protected void frameTooLarge()
+			{
+				SCInputStream.this.frameTooLarge();
+			}
+		};
 	}
 		
 	/**
@@ -74,66 +87,30 @@ public abstract class SCInputStream
 	 */
 	public void processStream() throws IOException
 	{
-		byte lastByte = 0;
-		boolean startFlag = false;
-		boolean nextFlag = false;
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		
-		/*
-		 *	Run the stream, identifying 0x01 and 0x00. 
-		 */
 		for (;;) {
-			int b = nextByte();
-			if (b == -1) return;		// end of stream.
-			
-			if (b == 0) {
-				/*
-				 * Dump the processed buffer. We never escape 0.
-				 */
-				
-				processBuffer(baos.toByteArray(),lastByte);
-				baos.reset();
-				nextFlag = false;
-				startFlag = false;
-				lastByte = 0;
-				
-			} else if (nextFlag) {
-				if (startFlag) {
-					baos.write(lastByte);
-				} else {
-					startFlag = true;
-				}
-				lastByte = (byte)(b - 1);
-				nextFlag = false;
-				
-			} else if (b == 1) {
-				nextFlag = true;
-				
-			} else {
-				if (startFlag) {
-					baos.write(lastByte);
-				} else {
-					startFlag = true;
-				}
-				lastByte = (byte)b;
-			}
+			int len = inStream.read(buffer);
+			if (len == -1) return;		// end of stream.
+			decoder.decode(buffer, 0, len);
 		}
 	}
-
+	
 	/**
-	 * validates checksum. If passed, passes the buffer upwards for
-	 * further processing
-	 * @param bytes
-	 * @param checksum
+	 * Called with each packet received. The data is only valid for the
+	 * duration of the call.
+	 * @param data
+	 * @param off
+	 * @param len
 	 */
-	private void processBuffer(byte[] bytes, byte checksum)
+	public abstract void processPacket(byte[] data, int off, int len);
+	
+	/**
+	 * Called when a packet was discarded because it was too large. By
+	 * default this does nothing.
+	 */
+	public void frameTooLarge()
 	{
-		byte c = SCChecksum.calcCRC8((byte)0, bytes);
-		if (c == checksum) processPacket(bytes);
 	}
 	
-	public abstract void processPacket(byte[] data);
-	
 	/**
 	 * Close underlying stream.
 	 * @throws IOException
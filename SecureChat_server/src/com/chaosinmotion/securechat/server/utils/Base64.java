@@ -20,6 +20,8 @@
 package com.chaosinmotion.securechat.server.utils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
 
 /**
  * Encode/decode Base64. I know there is code built into the Java RTL, but
@@ -94,6 +96,47 @@ public class Base64
     	return buffer.toString();
     }
     
+    /**
+     * Encode as base64 directly to a writer, in the same format as encode().
+     * The line breaks are written as the newline string given; a caller 
+     * writing the result inside a JSON string passes "\\n".
+     * @param data
+     * @param w
+     * @param newline
+     * @throws IOException
+     */
+    public static void encode(byte[] data, Writer w, String newline) throws IOException
+    {
+        char[] buffer = new char[76];
+        int len = data.length - data.length % 3;
+        int i = 0;
+        
+        while (i < len) {
+            int pos = 0;
+            for (int end = Math.min(len, i + 54); i < end; i += 3) {
+                int eval = ((0x00FF & data[i]) << 16) | ((0x00FF & data[i+1]) << 8) | (0x00FF & data[i+2]);
+                buffer[pos++] = gEncode[0x3F & (eval >> 18)];
+                buffer[pos++] = gEncode[0x3F & (eval >> 12)];
+                buffer[pos++] = gEncode[0x3F & (eval >> 6)];
+                buffer[pos++] = gEncode[0x3F & eval];
+            }
+            w.write(buffer, 0, pos);
+            if (pos == 72) w.write(newline);
+        }
+        
+        int epos = data.length - len;
+        if (epos > 0) {
+            int eval = (0x00FF & data[len]) << 16;
+            if (epos > 1) eval |= (0x00FF & data[len+1]) << 8;
+            
+            buffer[0] = gEncode[0x3F & (eval >> 18)];
+            buffer[1] = gEncode[0x3F & (eval >> 12)];
+            buffer[2] = (epos > 1) ? gEncode[0x3F & (eval >> 6)] : '=';
+            buffer[3] = '=';
+            w.write(buffer, 0, 4);
+        }
+    }
+    
     /**
      * Internal Base64 character decoding mechanism
      * @param ch The character to decode
@@ -37,6 +37,18 @@ public class Hash
         return buf.toString();
     }
     
+    public static String sha256(byte[] data)
+    {
+        try {
+            MessageDigest d = MessageDigest.getInstance("SHA-256");
+            return byteArrayToHex(d.digest(data));
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return "";  // never happens
+        }
+    }
+    
     public static String sha256(String str)
     {
         try {
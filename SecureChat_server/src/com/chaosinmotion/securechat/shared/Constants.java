@@ -39,4 +39,10 @@ public interface Constants
 	 * SALT3 is used to salt messages for removal checksums
 	 */
 	String SALT3 = "PmsgzhD";
+
+	/**
+	 * The content type of the binary form of messages/sendmessages and
+	 * messages/getmessages
+	 */
+	String MESSAGETYPE = "application/x-securechat-messages";
 }
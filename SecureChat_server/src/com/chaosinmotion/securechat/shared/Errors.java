@@ -72,4 +72,9 @@ public interface Errors
 	 * User unknown
 	 */
 	public static final int ERROR_UNKNOWNUSER = 8;
+	
+	/**
+	 * Checksum given when acknowledging messages does not match
+	 */
+	public static final int ERROR_CHECKSUM = 9;
 }
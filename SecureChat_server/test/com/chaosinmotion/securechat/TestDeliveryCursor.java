@@ -0,0 +1,171 @@
+/*	TestDeliveryCursor.java
+ *
+ *		SecureChat Server Copyright 2016 William Edward Woody, all rights reserved.
+ */
+package com.chaosinmotion.securechat;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import com.chaosinmotion.securechat.server.commands.AckMessages;
+import com.chaosinmotion.securechat.server.commands.GetMessages;
+import com.chaosinmotion.securechat.server.commands.Login;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.json.ReturnResult;
+import com.chaosinmotion.securechat.server.messages.MessageBodyStore;
+import com.chaosinmotion.securechat.server.messages.MessageQueue;
+
+/**
+ * Checks that a device which acknowledges the message it has just been
+ * sent no longer receives it. This uses the database in 
+ * securechat.properties and the first device in the Devices table: it
+ * sends the device a message from its own user, checks that getmessages
+ * returns it, acknowledges it, and checks that getmessages no longer
+ * returns it and that it has been deleted. It then repeats the
+ * acknowledgement, which must leave the cursor where it is.
+ *
+ * Run with no arguments, against a test database: this moves the 
+ * delivery cursor of the device used. Any test messages left behind are
+ * deleted afterwards.
+ *
+ * @author woody
+ *
+ */
+public class TestDeliveryCursor
+{
+	private static final String CHECKSUM = "TestDeliveryCursor";
+	
+	private static boolean returned(Login.UserInfo user, String uuid, int messageID) throws Exception
+	{
+		JSONObject params = new JSONObject();
+		params.put("deviceid", uuid);
+		
+		boolean more = true;
+		int after = 0;
+		while (more) {
+			params.put("after", after);
+			ReturnResult r = GetMessages.processRequest(user, params);
+			JSONObject data = r.returnData();
+			JSONArray messages = data.getJSONArray("messages");
+			for (int i = 0; i < messages.length(); ++i) {
+				if (messages.getJSONObject(i).getInt("messageID") == messageID) return true;
+			}
+			more = data.getBoolean("more");
+			if (more) after = data.getInt("after");
+		}
+		return false;
+	}
+	
+	private static int ack(Login.UserInfo user, String uuid, int messageID) throws Exception
+	{
+		JSONObject params = new JSONObject();
+		params.put("deviceid", uuid);
+		params.put("messageid", messageID);
+		ReturnResult r = AckMessages.processRequest(user, params);
+		return new JSONObject(r.toString()).getJSONObject("data").getInt("messageid");
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		
+		try {
+			c = Database.get();
+			ps = c.prepareStatement("SELECT deviceuuid, userid FROM Devices ORDER BY deviceid LIMIT 1");
+			rs = ps.executeQuery();
+			if (!rs.next()) {
+				System.out.println("Need a device in the Devices table");
+				return;
+			}
+			String uuid = rs.getString(1);
+			int userid = rs.getInt(2);
+			rs.close();
+			rs = null;
+			ps.close();
+			ps = null;
+			Login.UserInfo user = new Login.UserInfo(userid);
+			
+			/*
+			 * Send the device a message and check it is waiting
+			 */
+			
+			ArrayList<MessageQueue.OutgoingMessage> list = new ArrayList<MessageQueue.OutgoingMessage>();
+			list.add(new MessageQueue.OutgoingMessage(userid, uuid, false, new byte[] { 1, 2, 3 }, CHECKSUM));
+			MessageQueue.getInstance().enqueue(list);
+			int messageID = list.get(0).getMessageID();
+			if (messageID == 0) {
+				System.out.println("Message was not saved");
+				return;
+			}
+			if (!returned(user, uuid, messageID)) {
+				System.out.println("Message " + messageID + " was not returned before it was acknowledged");
+				return;
+			}
+			
+			/*
+			 * Acknowledge it straight away, as a client does, then check it
+			 * is gone
+			 */
+			
+			int cursor = ack(user, uuid, messageID);
+			if (cursor != messageID) {
+				System.out.println("Cursor is " + cursor + ", expected " + messageID);
+				return;
+			}
+			if (returned(user, uuid, messageID)) {
+				System.out.println("Message " + messageID + " was returned after it was acknowledged");
+				return;
+			}
+			
+			ps = c.prepareStatement("SELECT COUNT(*) FROM Messages WHERE messageid = ?");
+			ps.setInt(1, messageID);
+			rs = ps.executeQuery();
+			rs.next();
+			int count = rs.getInt(1);
+			rs.close();
+			rs = null;
+			ps.close();
+			ps = null;
+			if (count != 0) {
+				System.out.println("Message " + messageID + " was not deleted");
+				return;
+			}
+			
+			/*
+			 * Acknowledging again, or acknowledging a message which does
+			 * not exist yet, must not move the cursor
+			 */
+			
+			if ((ack(user, uuid, messageID) != messageID) || (ack(user, uuid, Integer.MAX_VALUE) != messageID)) {
+				System.out.println("Repeated acknowledgement moved the cursor");
+				return;
+			}
+			
+			System.out.println("Acknowledged message " + messageID + " is no longer returned");
+		}
+		finally {
+			if (rs != null) rs.close();
+			if (ps != null) ps.close();
+			
+			/*
+			 * Clean up
+			 */
+			
+			if (c != null) {
+				c.setAutoCommit(false);
+				ps = c.prepareStatement("DELETE FROM Messages WHERE checksum = ? RETURNING bodyhash");
+				ps.setString(1, CHECKSUM);
+				MessageBodyStore.drop(c, ps);
+				ps.close();
+				c.commit();
+				c.setAutoCommit(true);
+				c.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*	TestFrameDecoder.java
+ *
+ *		SecureChat Server Copyright 2016 William Edward Woody, all rights reserved.
+ */
+package com.chaosinmotion.securechat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import com.chaosinmotion.securechat.rsa.SCChecksum;
+import com.chaosinmotion.securechat.server.messages.FrameDecoder;
+import com.chaosinmotion.securechat.server.messages.SCOutputStream;
+
+/**
+ * Checks that FrameDecoder extracts the same packets as the original
+ * SCInputStream state machine, checks the maximum frame guard, and then
+ * compares decoding throughput and memory allocated per packet.
+ *
+ * Run with no arguments. The allocation figures require a HotSpot JVM.
+ *
+ * @author woody
+ *
+ */
+public class TestFrameDecoder
+{
+	private static final int CHUNK = 4096;
+	private static final int PASSES = 20;
+
+	/**
+	 * The original decoder, as SCInputStream used to do it
+	 */
+	private static abstract class Legacy
+	{
+		private byte lastByte = 0;
+		private boolean startFlag = false;
+		private boolean nextFlag = false;
+		private ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+		void decode(byte[] buffer, int off, int len)
+		{
+			for (int i = off; i < off + len; ++i) {
+				int b = 0x00FF & buffer[i];
+
+				if (b == 0) {
+					byte[] bytes = baos.toByteArray();
+					byte c = SCChecksum.calcCRC8((byte)0, bytes);
+					if (c == lastByte) processPacket(bytes);
+					baos.reset();
+					nextFlag = false;
+					startFlag = false;
+					lastByte = 0;
+
+				} else if (nextFlag) {
+					if (startFlag) {
+						baos.write(lastByte);
+					} else {
+						startFlag = true;
+					}
+					lastByte = (byte)(b - 1);
+					nextFlag = false;
+
+				} else if (b == 1) {
+					nextFlag = true;
+
+				} else {
+					if (startFlag) {
+						baos.write(lastByte);
+					} else {
+						startFlag = true;
+					}
+					lastByte = (byte)b;
+				}
+			}
+		}
+
+		abstract void processPacket(byte[] data);
+	}
+
+	private static long allocated()
+	{
+		java.lang.management.ThreadMXBean t = ManagementFactory.getThreadMXBean();
+		if (t instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)t).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Build a stream of framed packets: mostly login commands, with some
+	 * binary packets full of bytes which need escaping, and a corrupt one
+	 */
+	private static byte[] buildStream(Random r, ArrayList<byte[]> packets) throws IOException
+	{
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		SCOutputStream out = new SCOutputStream(stream);
+
+		for (int i = 0; i < 20000; ++i) {
+			byte[] p;
+			if (i % 10 == 9) {
+				p = new byte[r.nextInt(1024) + 1];
+				r.nextBytes(p);
+				for (int j = 0; j < p.length; j += 5) p[j] = (byte)r.nextInt(2);
+			} else {
+				String cmd = "{\"cmd\":\"login\",\"username\":\"user" + r.nextInt(100000)
+						+ "\",\"password\":\"" + Long.toHexString(r.nextLong()) + Long.toHexString(r.nextLong())
+						+ Long.toHexString(r.nextLong()) + Long.toHexString(r.nextLong())
+						+ "\",\"deviceid\":\"" + java.util.UUID.randomUUID() + "\"}";
+				p = cmd.getBytes("UTF-8");
+			}
+			packets.add(p);
+			out.writeData(p);
+		}
+
+		stream.write(new byte[] { 5, 6, 7, 0 });	// bad checksum; dropped
+		return stream.toByteArray();
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		final ArrayList<byte[]> expected = new ArrayList<byte[]>();
+		byte[] stream = buildStream(new Random(1), expected);
+
+		/*
+		 * Verify both decoders produce the packets we wrote, with the
+		 * stream split at random places
+		 */
+
+		final ArrayList<byte[]> legacyOut = new ArrayList<byte[]>();
+		final ArrayList<byte[]> decoderOut = new ArrayList<byte[]>();
+		Legacy legacy = new Legacy() {
+			@Override
+			void processPacket(byte[] data)
+			{
+				legacyOut.add(data);
+			}
+		};
+		FrameDecoder decoder = new FrameDecoder(65536) {
+			@Override
+			protected void processFrame(byte[] data, int off, int len)
+			{
+				decoderOut.add(Arrays.copyOfRange(data, off, off + len));
+			}
+		};
+
+		Random r = new Random(2);
+		for (int pos = 0; pos < stream.length; ) {
+			int len = Math.min(stream.length - pos, 1 + r.nextInt(300));
+			legacy.decode(stream, pos, len);
+			decoder.decode(stream, pos, len);
+			pos += len;
+		}
+
+		if ((legacyOut.size() != expected.size()) || (decoderOut.size() != expected.size())) {
+			System.out.println("Packet count mismatch: " + expected.size() + " written, "
+					+ legacyOut.size() + " original, " + decoderOut.size() + " decoder");
+			return;
+		}
+		for (int i = 0; i < expected.size(); ++i) {
+			if (!Arrays.equals(expected.get(i), legacyOut.get(i)) || !Arrays.equals(expected.get(i), decoderOut.get(i))) {
+				System.out.println("Packet " + i + " mismatch");
+				return;
+			}
+		}
+		System.out.println("Decoded " + expected.size() + " packets identically");
+
+		/*
+		 * Verify the frame guard: an oversized packet is dropped and the
+		 * next packet still arrives
+		 */
+
+		final int[] counts = new int[2];
+		FrameDecoder guarded = new FrameDecoder(1024) {
+			@Override
+			protected void processFrame(byte[] data, int off, int len)
+			{
+				++counts[0];
+			}
+
+			@Override
+			protected void frameTooLarge()
+			{
+				++counts[1];
+			}
+		};
+		ByteArrayOutputStream big = new ByteArrayOutputStream();
+		SCOutputStream out = new SCOutputStream(big);
+		out.writeData(new byte[100000]);
+		out.writeData(new byte[] { 2, 3, 4 });
+		guarded.decode(big.toByteArray(), 0, big.size());
+		System.out.println("Frame guard: " + counts[0] + " packet delivered, " + counts[1] + " too large "
+				+ ((counts[0] == 1) && (counts[1] == 1) ? "(ok)" : "(FAILED)"));
+
+		/*
+		 * Benchmark
+		 */
+
+		final int[] sink = new int[1];
+		legacy = new Legacy() {
+			@Override
+			void processPacket(byte[] data)
+			{
+				sink[0] += data.length;
+			}
+		};
+		decoder = new FrameDecoder(65536) {
+			@Override
+			protected void processFrame(byte[] data, int off, int len)
+			{
+				sink[0] += len;
+			}
+		};
+
+		for (int round = 0; round < 2; ++round) {
+			long a0 = allocated();
+			long t0 = System.nanoTime();
+			for (int p = 0; p < PASSES; ++p) {
+				for (int pos = 0; pos < stream.length; pos += CHUNK) {
+					legacy.decode(stream, pos, Math.min(CHUNK, stream.length - pos));
+				}
+			}
+			long t1 = System.nanoTime();
+			long a1 = allocated();
+			for (int p = 0; p < PASSES; ++p) {
+				for (int pos = 0; pos < stream.length; pos += CHUNK) {
+					decoder.decode(stream, pos, Math.min(CHUNK, stream.length - pos));
+				}
+			}
+			long t2 = System.nanoTime();
+			long a2 = allocated();
+
+			if (round == 0) continue;		// warm up
+
+			double mb = (double)stream.length * PASSES / (1024 * 1024);
+			long packets = (long)expected.size() * PASSES;
+			System.out.println(String.format("original: %.0f MB/s, %d ns/packet, %d bytes/packet allocated",
+					mb / ((t1 - t0) / 1e9), (t1 - t0) / packets, (a1 - a0) / packets));
+			System.out.println(String.format("decoder:  %.0f MB/s, %d ns/packet, %d bytes/packet allocated",
+					mb / ((t2 - t1) / 1e9), (t2 - t1) / packets, (a2 - a1) / packets));
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*	TestFrameEncoder.java
+ *
+ *		SecureChat Server Copyright 2016 William Edward Woody, all rights reserved.
+ */
+package com.chaosinmotion.securechat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Random;
+import com.chaosinmotion.securechat.server.messages.FrameEncoder;
+import com.chaosinmotion.securechat.server.messages.SCOutputStream;
+
+/**
+ * Checks that FrameEncoder writes exactly the same bytes as the original
+ * DataOutputStream and SCOutputStream path for the 0x20 message packet,
+ * then compares the time and memory allocated per packet for each.
+ *
+ * Run with no arguments. The allocation figures require a HotSpot JVM.
+ *
+ * @author woody
+ *
+ */
+public class TestFrameEncoder
+{
+	private static final int ITERATIONS = 200000;
+
+	private static SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+
+	private static int messageid;
+	private static int senderid;
+	private static String sendername;
+	private static boolean toflag;
+	private static Timestamp ts;
+	private static byte[] message;
+
+	/**
+	 * The original encoding, as NotificationSocket used to do it
+	 */
+	private static byte[] legacy() throws IOException
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		String date;
+		synchronized(format) {
+			date = format.format(ts);
+		}
+
+		dos.writeByte(0x20);
+		dos.writeBoolean(toflag);
+		dos.writeInt(messageid);
+		dos.writeInt(senderid);
+		dos.writeUTF(date);
+		dos.writeUTF(sendername);
+		dos.writeInt(message.length);
+		dos.write(message);
+		dos.flush();
+
+		ByteArrayOutputStream framed = new ByteArrayOutputStream();
+		SCOutputStream out = new SCOutputStream(framed);
+		out.writeData(baos.toByteArray());
+		return framed.toByteArray();
+	}
+
+	private static void encode(ByteBuffer buf) throws IOException
+	{
+		buf.clear();
+		FrameEncoder.writeMessage(buf, messageid, senderid, sendername, toflag, ts, message);
+		buf.flip();
+	}
+
+	private static void randomMessage(Random r, int size)
+	{
+		String[] names = { "woody", "bob", "déjà vu", "中文", "nul\u0000name", "" };
+
+		messageid = r.nextInt();
+		senderid = r.nextInt(4) == 0 ? r.nextInt(256) : r.nextInt();
+		sendername = names[r.nextInt(names.length)];
+		toflag = r.nextBoolean();
+		ts = new Timestamp(r.nextLong() % 4000000000000L + 1000000000000L);
+		message = new byte[size];
+		r.nextBytes(message);
+		for (int i = 0; i < size; i += 7) message[i] = (byte)r.nextInt(3);
+	}
+
+	/**
+	 * Bytes allocated so far by this thread, or -1 if we can't tell
+	 */
+	private static long allocated()
+	{
+		java.lang.management.ThreadMXBean t = ManagementFactory.getThreadMXBean();
+		if (t instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)t).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		/*
+		 * Verify
+		 */
+
+		Random r = new Random(1);
+		ByteBuffer buf = ByteBuffer.allocate(65536);
+		for (int i = 0; i < 20000; ++i) {
+			randomMessage(r, r.nextInt(2048));
+			byte[] expected = legacy();
+			encode(buf);
+			byte[] actual = Arrays.copyOf(buf.array(), buf.remaining());
+			if (!Arrays.equals(expected, actual)) {
+				System.out.println("Mismatch for message " + i);
+				return;
+			}
+			if (actual.length > FrameEncoder.maxMessageFrameSize(sendername, message)) {
+				System.out.println("Frame size estimate too small for message " + i);
+				return;
+			}
+		}
+		System.out.println("Encoded packets identical for 20000 random messages");
+
+		/*
+		 * Benchmark
+		 */
+
+		for (int size: new int[] { 256, 1024, 4096 }) {
+			randomMessage(new Random(2), size);
+			sendername = "woody";
+
+			for (int pass = 0; pass < 2; ++pass) {
+				long a0 = allocated();
+				long t0 = System.nanoTime();
+				int total = 0;
+				for (int i = 0; i < ITERATIONS; ++i) {
+					total += legacy().length;
+				}
+				long t1 = System.nanoTime();
+				long a1 = allocated();
+				for (int i = 0; i < ITERATIONS; ++i) {
+					encode(buf);
+					total += buf.remaining();
+				}
+				long t2 = System.nanoTime();
+				long a2 = allocated();
+
+				if (pass == 0) continue;		// warm up
+
+				System.out.println("Message " + size + " bytes (" + total / (2 * ITERATIONS) + " byte frame):");
+				System.out.println("    original: " + (t1 - t0) / ITERATIONS + " ns/op, "
+						+ (a1 - a0) / ITERATIONS + " bytes/op allocated");
+				System.out.println("    encoder:  " + (t2 - t1) / ITERATIONS + " ns/op, "
+						+ (a2 - a1) / ITERATIONS + " bytes/op allocated");
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*	TestMessageBodies.java
+ *
+ *		SecureChat Server Copyright 2016 William Edward Woody, all rights reserved.
+ */
+package com.chaosinmotion.securechat;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Random;
+import com.chaosinmotion.securechat.server.database.Database;
+import com.chaosinmotion.securechat.server.messages.MessageBodyStore;
+import com.chaosinmotion.securechat.server.messages.MessageQueue;
+
+/**
+ * Measures the bytes written for each send of a message with a shared
+ * payload, as sent by a client using version 2 envelopes. This uses the
+ * database in securechat.properties, sends the requested number of
+ * messages (default 100) with payloads of the requested size (default
+ * 200K) to the first devices in the Devices table (default 10), and 
+ * reports the bytes written to the write-ahead log and the bytes stored
+ * for each send. The test messages are deleted afterwards.
+ *
+ * Run with, for example:
+ *
+ *	java TestMessageBodies 100 204800 10
+ *
+ * once as configured, and once with messagebodies = no, to compare. Run
+ * this against a test database: until they are deleted, the test messages
+ * will be delivered to the devices used. The WAL figure includes anything
+ * else written to the database at the same time.
+ *
+ * @author woody
+ *
+ */
+public class TestMessageBodies
+{
+	private static final String CHECKSUM = "TestMessageBodies";
+	private static final int HEADERSIZE = 136;		/* 1024-bit key envelope header */
+
+	private static long walPosition(Connection c, String start) throws Exception
+	{
+		PreparedStatement ps = c.prepareStatement("SELECT pg_wal_lsn_diff(pg_current_wal_lsn(), ?::pg_lsn)");
+		ps.setString(1, start);
+		ResultSet rs = ps.executeQuery();
+		rs.next();
+		long ret = rs.getLong(1);
+		rs.close();
+		ps.close();
+		return ret;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int sends = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+		int size = (args.length > 1) ? Integer.parseInt(args[1]) : 204800;
+		int ndevices = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+		Connection c = Database.get();
+
+		ArrayList<String> devices = new ArrayList<String>();
+		PreparedStatement ps = c.prepareStatement("SELECT deviceuuid FROM Devices ORDER BY deviceid LIMIT ?");
+		ps.setInt(1, ndevices);
+		ResultSet rs = ps.executeQuery();
+		while (rs.next()) {
+			devices.add(rs.getString(1));
+		}
+		rs.close();
+		ps.close();
+		if (devices.size() < 2) {
+			System.out.println("Need at least two devices in the Devices table");
+			c.close();
+			return;
+		}
+
+		ps = c.prepareStatement("SELECT pg_current_wal_lsn()::text");
+		rs = ps.executeQuery();
+		rs.next();
+		String start = rs.getString(1);
+		rs.close();
+		ps.close();
+
+		/*
+		 * Send
+		 */
+
+		Random r = new Random(1);
+		MessageQueue queue = MessageQueue.getInstance();
+		long t0 = System.nanoTime();
+		for (int i = 0; i < sends; ++i) {
+			byte[] body = new byte[size];
+			r.nextBytes(body);
+
+			ArrayList<MessageQueue.OutgoingMessage> list = new ArrayList<MessageQueue.OutgoingMessage>();
+			for (String uuid: devices) {
+				byte[] header = new byte[HEADERSIZE];
+				r.nextBytes(header);
+				list.add(new MessageQueue.OutgoingMessage(1, uuid, false, header, body, CHECKSUM));
+			}
+			queue.enqueue(list);
+		}
+		long t1 = System.nanoTime();
+		long wal = walPosition(c, start);
+
+		MessageBodyStore store = MessageBodyStore.getShared();
+		System.out.println("Message bodies " + (store.isEnabled() ? "stored once" : "stored with each message"));
+		System.out.println(sends + " sends of " + size + " bytes to " + devices.size() + " devices, "
+				+ (t1 - t0) / (1000000L * sends) + " ms per send");
+		System.out.println("Bytes as sent per send:     " + store.getBytesPerSend());
+		System.out.println("Bytes stored per send:      " + store.getStoredPerSend());
+		System.out.println("WAL bytes written per send: " + wal / sends);
+
+		/*
+		 * Clean up
+		 */
+
+		c.setAutoCommit(false);
+		ps = c.prepareStatement("DELETE FROM Messages WHERE checksum = ? RETURNING bodyhash");
+		ps.setString(1, CHECKSUM);
+		int deleted = MessageBodyStore.drop(c, ps);
+		ps.close();
+		c.commit();
+		c.setAutoCommit(true);
+		c.close();
+		System.out.println("Deleted " + deleted + " test messages");
+	}
+}
@@ -0,0 +1,262 @@
+/*	TestMessageResult.java
+ *
+ *		SecureChat Server Copyright 2016 William Edward Woody, all rights reserved.
+ */
+package com.chaosinmotion.securechat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import com.chaosinmotion.securechat.server.json.MessageReturnResult;
+import com.chaosinmotion.securechat.server.utils.Base64;
+
+/**
+ * Checks that writing a MessageReturnResult to a stream gives the same
+ * messages as the original toString() path, then compares the time and the
+ * peak heap used to return backlogs of 1,000 and 10,000 messages each way.
+ * 
+ * Each path reads the page into a MessageReturnResult first. The original
+ * path then converts the result to an indented string and writes it as the
+ * servlet did. The streaming path writes each message straight to the
+ * stream, and the binary path writes each message without Base64 or JSON.
+ *
+ * Run with no arguments.
+ *
+ * @author woody
+ *
+ */
+public class TestMessageResult
+{
+	private static final int MESSAGESIZE = 512;
+	
+	/**
+	 * Stands in for the database: the rows of a backlog
+	 */
+	private static int[] senders;
+	private static Timestamp[] times;
+	private static byte[][] payloads;
+	
+	/**
+	 * Stands in for the servlet output stream
+	 */
+	private static class NullStream extends OutputStream
+	{
+		long count;
+		
+		@Override
+		public void write(int b)
+		{
+			++count;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			count += len;
+		}
+	}
+	
+	/**
+	 * The page of messages, as GetMessages reads it before it is written
+	 */
+	private static MessageReturnResult page(int count)
+	{
+		MessageReturnResult mrr = new MessageReturnResult();
+		for (int i = 0; i < count; ++i) {
+			mrr.addMessage(i + 1, senders[i], "user" + senders[i], (i & 1) != 0, times[i], payloads[i]);
+		}
+		mrr.setMore(count);
+		return mrr;
+	}
+	
+	private static void makeRows(int count)
+	{
+		Random r = new Random(1);
+		senders = new int[count];
+		times = new Timestamp[count];
+		payloads = new byte[count][];
+		for (int i = 0; i < count; ++i) {
+			senders[i] = r.nextInt(1000);
+			times[i] = new Timestamp(1470000000000L + r.nextInt(1000000000));
+			payloads[i] = new byte[MESSAGESIZE];
+			r.nextBytes(payloads[i]);
+		}
+	}
+	
+	private static void legacy(int count, OutputStream os) throws IOException
+	{
+		os.write(page(count).toString().getBytes("ISO-8859-1"));
+	}
+	
+	private static void streamed(int count, OutputStream os) throws IOException
+	{
+		page(count).write(os);
+	}
+	
+	private static void binary(int count, OutputStream os) throws IOException
+	{
+		page(count).writeBinary(os);
+	}
+	
+	/**
+	 * Check the binary result against the messages in the JSON result
+	 */
+	private static boolean checkBinary(byte[] data, JSONObject json) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		JSONArray array = json.getJSONArray("messages");
+		
+		for (int i = 0; i < array.length(); ++i) {
+			JSONObject m = array.getJSONObject(i);
+			if (dis.readByte() != 0x20) return false;
+			if (dis.readBoolean() != m.getBoolean("toflag")) return false;
+			if (dis.readInt() != m.getInt("messageID")) return false;
+			if (dis.readInt() != m.getInt("senderID")) return false;
+			if (!dis.readUTF().equals(m.getString("received"))) return false;
+			if (!dis.readUTF().equals(m.getString("senderName"))) return false;
+			byte[] message = new byte[dis.readInt()];
+			dis.readFully(message);
+			if (!Arrays.equals(message, Base64.decode(m.getString("message")))) return false;
+		}
+		
+		if (dis.readByte() != 0x2F) return false;
+		if (dis.readBoolean() != json.getBoolean("more")) return false;
+		if (dis.readInt() != json.getInt("after")) return false;
+		return dis.read() == -1;
+	}
+	
+	private static long usedHeap()
+	{
+		for (int i = 0; i < 3; ++i) System.gc();
+		long used = 0;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				used += pool.getUsage().getUsed();
+				pool.resetPeakUsage();
+			}
+		}
+		return used;
+	}
+	
+	private static long peakHeap()
+	{
+		long peak = 0;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+	
+	public static void main(String[] args) throws IOException
+	{
+		/*
+		 * Verify the Base64 writer against the original encoder
+		 */
+		
+		Random r = new Random(3);
+		for (int i = 0; i < 2000; ++i) {
+			byte[] data = new byte[r.nextInt(300)];
+			r.nextBytes(data);
+			StringWriter w = new StringWriter();
+			Base64.encode(data, w, "\n");
+			if (!w.toString().equals(Base64.encode(data))) {
+				System.out.println("Base64 mismatch for " + data.length + " bytes");
+				return;
+			}
+		}
+		System.out.println("Base64 writer matches for 2000 random arrays");
+		
+		/*
+		 * Verify both paths give the same messages
+		 */
+		
+		makeRows(1000);
+		ByteArrayOutputStream a = new ByteArrayOutputStream();
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		legacy(1000, a);
+		streamed(1000, b);
+		JSONObject ja = new JSONObject(a.toString("UTF-8"));
+		JSONObject jb = new JSONObject(b.toString("UTF-8"));
+		JSONObject da = ja.getJSONObject("data");
+		JSONObject db = jb.getJSONObject("data");
+		JSONArray ma = da.getJSONArray("messages");
+		JSONArray mb = db.getJSONArray("messages");
+		boolean same = (ja.getBoolean("success") == jb.getBoolean("success"))
+				&& (da.getBoolean("more") == db.getBoolean("more"))
+				&& (da.getInt("after") == db.getInt("after"))
+				&& (ma.length() == mb.length());
+		for (int i = 0; same && (i < ma.length()); ++i) {
+			JSONObject x = ma.getJSONObject(i);
+			JSONObject y = mb.getJSONObject(i);
+			for (String key: JSONObject.getNames(x)) {
+				if (!x.get(key).equals(y.get(key))) same = false;
+			}
+			if (JSONObject.getNames(x).length != JSONObject.getNames(y).length) same = false;
+		}
+		if (!same) {
+			System.out.println("Results differ");
+			return;
+		}
+		
+		ByteArrayOutputStream c = new ByteArrayOutputStream();
+		binary(1000, c);
+		if (!checkBinary(c.toByteArray(), da)) {
+			System.out.println("Binary result differs");
+			return;
+		}
+		System.out.println("Streamed and binary results match: " + a.size() + " bytes formatted, " 
+				+ b.size() + " bytes streamed, " + c.size() + " bytes binary");
+		
+		/*
+		 * Benchmark
+		 */
+		
+		for (int count: new int[] { 1000, 10000 }) {
+			makeRows(count);
+			NullStream out = new NullStream();
+			
+			for (int pass = 0; pass < 3; ++pass) {
+				long base = usedHeap();
+				long t0 = System.nanoTime();
+				legacy(count, out);
+				long t1 = System.nanoTime();
+				long peak0 = peakHeap() - base;
+				
+				base = usedHeap();
+				long t2 = System.nanoTime();
+				streamed(count, out);
+				long t3 = System.nanoTime();
+				long peak1 = peakHeap() - base;
+				
+				base = usedHeap();
+				long t4 = System.nanoTime();
+				binary(count, out);
+				long t5 = System.nanoTime();
+				long peak2 = peakHeap() - base;
+				
+				if (pass < 2) continue;		// warm up
+				
+				System.out.println(count + " messages of " + MESSAGESIZE + " bytes:");
+				System.out.println("    original: " + (t1 - t0) / 1000000 + " ms, peak heap " 
+						+ peak0 / 1024 + " KB");
+				System.out.println("    streamed: " + (t3 - t2) / 1000000 + " ms, peak heap " 
+						+ peak1 / 1024 + " KB");
+				System.out.println("    binary:   " + (t5 - t4) / 1000000 + " ms, peak heap " 
+						+ peak2 / 1024 + " KB");
+			}
+		}
+	}
+}
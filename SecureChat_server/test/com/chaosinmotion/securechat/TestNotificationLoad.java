@@ -0,0 +1,154 @@
+/*	TestNotificationLoad.java
+ *
+ *		SecureChat Server Copyright 2016 William Edward Woody, all rights reserved.
+ */
+package com.chaosinmotion.securechat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import com.chaosinmotion.securechat.server.messages.NotificationService;
+import com.chaosinmotion.securechat.server.messages.SCOutputStream;
+
+/**
+ * Load test for the notification service. This starts the notification
+ * service in this process using the settings in securechat.properties,
+ * opens the requested number of connections (default 10000), asks each
+ * for a login token so we know the connection is being serviced, and then
+ * reports the heap and threads used per idle connection.
+ *
+ * Run with, for example:
+ *
+ *	java -Xmx512m TestNotificationLoad 50000
+ *
+ * with notificationthreadmode = virtual or notificationnio = yes to compare
+ * against the default. Virtual threads need Java 21 or later; on older
+ * runtimes that setting falls back to platform threads, so check the mode
+ * reported. The properties must set notificationssl = no. Note
+ * that you will probably need to raise the open file limit (ulimit -n) to
+ * more than twice the number of connections, since both ends of every
+ * connection are in this process. For the same reason the heap figure
+ * includes the client end of each socket, so it overstates the server's
+ * cost slightly.
+ *
+ * @author woody
+ *
+ */
+public class TestNotificationLoad
+{
+	private static final byte[] TOKEN = "{\"cmd\":\"token\"}".getBytes();
+
+	/**
+	 * Read one packet, returning the first byte of the packet
+	 * @param is
+	 * @return
+	 * @throws IOException
+	 */
+	private static int readReply(InputStream is) throws IOException
+	{
+		int first = -1;
+		for (;;) {
+			int ch = is.read();
+			if (ch == -1) throw new IOException("Connection closed");
+			if (ch == 0) return first;
+			if (first == -1) first = ch;
+		}
+	}
+
+	private static long usedHeap(MemoryMXBean mem) throws InterruptedException
+	{
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		return mem.getHeapMemoryUsage().getUsed();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int count = 10000;
+		if (args.length > 0) count = Integer.parseInt(args[0]);
+
+		NotificationService ns = NotificationService.getShared();
+		if (!ns.isRunning()) {
+			System.out.println("Notification service did not start");
+			if (ns.getStartException() != null) ns.getStartException().printStackTrace();
+			return;
+		}
+		if (ns.getSSLFlag()) {
+			System.out.println("Set notificationssl = no for this test");
+			ns.terminate();
+			return;
+		}
+
+		int port = ns.getServerPort();
+		System.out.println("Notification service using " + ns.getConnectionMode() + " on port " + port
+				+ " (Java " + System.getProperty("java.version") + ")");
+
+		MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		long heapBefore = usedHeap(mem);
+		int threadsBefore = threads.getThreadCount();
+
+		/*
+		 * Open the connections. Each requests a token, which proves the
+		 * server is servicing the connection.
+		 */
+
+		ArrayList<Socket> sockets = new ArrayList<Socket>(count);
+		long start = System.currentTimeMillis();
+		try {
+			for (int i = 0; i < count; ++i) {
+				Socket s = new Socket("localhost", port);
+				sockets.add(s);
+
+				new SCOutputStream(s.getOutputStream()).writeData(TOKEN);
+				if (readReply(s.getInputStream()) != 0x21) {
+					System.out.println("Unexpected reply on connection " + i);
+				}
+
+				if ((i + 1) % 5000 == 0) {
+					System.out.println((i + 1) + " connections");
+				}
+			}
+		}
+		catch (IOException ex) {
+			System.out.println("Failed after " + sockets.size() + " connections: " + ex.getMessage());
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		int open = sockets.size();
+		Thread.sleep(1000);
+		long heapAfter = usedHeap(mem);
+		int threadsAfter = threads.getThreadCount();
+
+		System.out.println();
+		System.out.println("Connections:            " + open + " (" + ns.getConnections().size() + " on server)");
+		System.out.println("Connect time:           " + elapsed + " ms");
+		System.out.println("Heap used before:       " + (heapBefore / 1024) + " KB");
+		System.out.println("Heap used after:        " + (heapAfter / 1024) + " KB");
+		System.out.println("Platform threads added: " + (threadsAfter - threadsBefore));
+		if (open > 0) {
+			System.out.println("Heap per connection:    " + ((heapAfter - heapBefore) / open) + " bytes");
+		}
+
+		/*
+		 * Clean up
+		 */
+
+		for (Socket s: sockets) {
+			try {
+				s.close();
+			}
+			catch (IOException ex) {
+				// ignore.
+			}
+		}
+		ns.terminate();
+	}
+}
@@ -0,0 +1,252 @@
+/*	TestRSAEncoder.java
+ *
+ *		SecureChat Server Copyright 2016 William Edward Woody, all rights reserved.
+ */
+package com.chaosinmotion.securechat;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Random;
+import com.chaosinmotion.securechat.rsa.SCChecksum;
+import com.chaosinmotion.securechat.rsa.SCRSAEncoder;
+import com.chaosinmotion.securechat.rsa.SCRSAKey;
+import com.chaosinmotion.securechat.rsa.SCRSAPadding;
+
+/**
+ * Checks that SCRSAEncoder output decrypts back to the original data,
+ * both serially and in parallel, then compares the time to encrypt a
+ * message with the original encoder, the new encoder and the new encoder
+ * in parallel, for 1024, 2048 and 4096 bit keys and a range of message
+ * sizes.
+ *
+ * Run with no arguments. The parallel figures depend on the number of
+ * processors available.
+ *
+ * @author woody
+ *
+ */
+public class TestRSAEncoder
+{
+	private static final int[] KEYSIZES = { 1024, 2048, 4096 };
+	private static final int[] MESSAGESIZES = { 100, 4096, 65536 };
+	private static final long RUNTIME = 1000;		/* ms per measurement */
+
+	/**
+	 * The original encoder, as SCRSAEncoder used to do it (with the
+	 * alignment of short or sign extended blocks fixed as on Android)
+	 */
+	private static byte[] legacy(SCRSAKey key, byte[] data) throws Exception
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		SCRSAPadding padding = new SCRSAPadding(key.getSize());
+		int msgSize = padding.getMessageSize();
+		int encSize = padding.getEncodeSize();
+		byte[] msgBuffer = new byte[msgSize];
+		byte[] encBuffer = new byte[encSize];
+
+		int len = data.length;
+		int msgPos = 0;
+		int dataPos = 0;
+		msgBuffer[msgPos++] = (byte)(len >> 24);
+		msgBuffer[msgPos++] = (byte)(len >> 16);
+		msgBuffer[msgPos++] = (byte)(len >> 8);
+		msgBuffer[msgPos++] = (byte)(len);
+
+		while ((dataPos < len) || (msgPos > 0)) {
+			if (dataPos < len) msgBuffer[msgPos++] = data[dataPos++];
+			if ((msgPos >= msgSize) || ((dataPos >= len) && (msgPos > 0))) {
+				for (int p = msgPos; p < msgSize; ++p) msgBuffer[p] = 0;
+				msgPos = 0;
+
+				legacyPad(msgBuffer, encBuffer);
+				BigInteger bi = new BigInteger(1,encBuffer);
+				byte[] enc = key.transform(bi).toByteArray();
+				Arrays.fill(encBuffer, (byte)0);
+				int srcStart = 0;
+				int dstStart = encSize - enc.length;
+				int length = enc.length;
+				if (dstStart < 0) {
+					srcStart -= dstStart;
+					length += dstStart;
+					dstStart = 0;
+				}
+				System.arraycopy(enc, srcStart, encBuffer, dstStart, length);
+				baos.write(encBuffer);
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * The original padding, which seeded a new strong SecureRandom for
+	 * every block
+	 */
+	private static void legacyPad(byte[] msg, byte[] enc) throws Exception
+	{
+		int i,j;
+		int encSize = enc.length;
+		int msgSize = msg.length;
+		int msgOffset = encSize - msgSize;
+
+		System.arraycopy(msg, 0, enc, msgOffset, msgSize);
+		enc[msgOffset-1] = SCChecksum.calcCRC8((byte)0, msg);
+
+		SecureRandom sr = SecureRandom.getInstanceStrong();
+		byte[] rbuf = new byte[msgOffset-1];
+		sr.nextBytes(rbuf);
+		System.arraycopy(rbuf, 0, enc, 0, rbuf.length);
+		enc[0] &= 0x3F;
+
+		MessageDigest d = MessageDigest.getInstance("SHA-256");
+		d.update(enc, 0, msgOffset-1);
+		byte[] gMask = d.digest();
+		d.reset();
+		j = 0;
+		for (i = msgOffset-1; i < encSize; ++i) {
+			enc[i] ^= gMask[j++];
+			if (j >= 32) j = 0;
+		}
+		d.update(enc, msgOffset-1, msgSize+1);
+		byte[] hMask = d.digest();
+		j = 0;
+		for (i = 0; i < msgOffset-1; ++i) {
+			enc[i] ^= hMask[j++];
+			if (j >= 32) j = 0;
+		}
+		enc[0] &= 0x3F;
+	}
+
+	/**
+	 * Decrypt with the private key, returning the original data, or null
+	 * if any block fails its checksum
+	 */
+	private static byte[] decrypt(RSAPrivateKey key, int bits, byte[] enc) throws Exception
+	{
+		SCRSAPadding padding = new SCRSAPadding(bits);
+		int msgSize = padding.getMessageSize();
+		int encSize = padding.getEncodeSize();
+		byte[] block = new byte[encSize];
+		byte[] msg = new byte[msgSize];
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+		for (int pos = 0; pos < enc.length; pos += encSize) {
+			BigInteger bi = new BigInteger(1, Arrays.copyOfRange(enc, pos, pos + encSize));
+			byte[] b = bi.modPow(key.getPrivateExponent(), key.getModulus()).toByteArray();
+			Arrays.fill(block, (byte)0);
+			if (b.length > encSize) {
+				System.arraycopy(b, b.length - encSize, block, 0, encSize);
+			} else {
+				System.arraycopy(b, 0, block, encSize - b.length, b.length);
+			}
+			if (!padding.decode(block, msg)) return null;
+			stream.write(msg);
+		}
+
+		byte[] s = stream.toByteArray();
+		int len = ((s[0] & 0xFF) << 24) | ((s[1] & 0xFF) << 16) | ((s[2] & 0xFF) << 8) | (s[3] & 0xFF);
+		return Arrays.copyOfRange(s, 4, 4 + len);
+	}
+
+	private interface Op
+	{
+		void run() throws Exception;
+	}
+
+	/**
+	 * Microseconds per run of the operation
+	 */
+	private static long time(Op op) throws Exception
+	{
+		long end = System.currentTimeMillis() + RUNTIME / 4;
+		while (System.currentTimeMillis() < end) op.run();		// warm up
+
+		int count = 0;
+		long start = System.nanoTime();
+		end = System.currentTimeMillis() + RUNTIME;
+		while (System.currentTimeMillis() < end) {
+			op.run();
+			++count;
+		}
+		return (System.nanoTime() - start) / (1000L * count);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Random r = new Random(1);
+		System.out.println(Runtime.getRuntime().availableProcessors() + " processors");
+
+		for (int bits: KEYSIZES) {
+			KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+			gen.initialize(bits);
+			KeyPair pair = gen.generateKeyPair();
+			RSAPublicKey pub = (RSAPublicKey)pair.getPublic();
+			RSAPrivateKey priv = (RSAPrivateKey)pair.getPrivate();
+			final SCRSAKey key = new SCRSAKey(pub.getPublicExponent() + "," + bits + "," + pub.getModulus());
+			final SCRSAEncoder encoder = new SCRSAEncoder(key);
+
+			/*
+			 * Verify
+			 */
+
+			for (int i = 0; i < 50; ++i) {
+				byte[] data = new byte[r.nextInt(i < 40 ? 300 : 20000)];
+				r.nextBytes(data);
+
+				byte[] serial = encoder.encodeData(data);
+				byte[] parallel = new byte[encoder.getEncodedSize(data.length) + 3];
+				encoder.encodeData(data, parallel, 3, true);
+				parallel = Arrays.copyOfRange(parallel, 3, parallel.length);
+
+				if (!Arrays.equals(data, decrypt(priv, bits, serial))
+						|| !Arrays.equals(data, decrypt(priv, bits, parallel))
+						|| !Arrays.equals(data, decrypt(priv, bits, legacy(key, data)))) {
+					System.out.println(bits + " bit key: message " + i + " did not decrypt");
+					return;
+				}
+			}
+			System.out.println(bits + " bit key: 50 random messages decrypt correctly");
+
+			/*
+			 * Benchmark
+			 */
+
+			for (int size: MESSAGESIZES) {
+				final byte[] data = new byte[size];
+				r.nextBytes(data);
+				final byte[] out = new byte[encoder.getEncodedSize(size)];
+
+				long t0 = time(new Op() {
+					@Override
+					public void run() throws Exception
+					{
+						legacy(key, data);
+					}
+				});
+				long t1 = time(new Op() {
+					@Override
+					public void run() throws Exception
+					{
+						encoder.encodeData(data, out, 0, false);
+					}
+				});
+				long t2 = time(new Op() {
+					@Override
+					public void run() throws Exception
+					{
+						encoder.encodeData(data, out, 0, true);
+					}
+				});
+
+				System.out.println(String.format("    %6d bytes (%3d blocks): original %7d us, encoder %7d us, parallel %7d us",
+						size, out.length / (bits / 8), t0, t1, t2));
+			}
+		}
+	}
+}